@@ -0,0 +1,146 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/*
+	Checks that the compiled-statement path of the weather bulk insert counts inserted, changed and unchanged rows like
+	the row by row path, and compares both at 14, 1k and 100k rows.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+	private static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int[] BENCHMARK_SIZES = {14, 1000, 100000};
+
+	private SQLiteDatabase mDb;
+	private long mLocationRowId;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteAll();
+		mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		deleteAll();
+		super.tearDown();
+	}
+
+	public void testCounts() {
+		assertEquals("Error: new rows not all inserted", 14, writeCompiled(createRows(14)));
+		assertEquals("Error: unchanged rows were written again", 0, writeCompiled(createRows(14)));
+
+		ContentValues[] values = createRows(14);
+		values[3].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100.5);
+		// Only some of the columns, which the compiled statements can't write
+		values[5] = new ContentValues();
+		values[5].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationRowId);
+		values[5].put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + 5 * DAY_IN_MILLIS);
+		values[5].put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, -40);
+		assertEquals("Error: only the changed rows should be written", 2, writeCompiled(values));
+
+		Cursor cursor = mDb.query(WeatherContract.WeatherEntry.TABLE_NAME, null, null, null, null, null,
+		                          WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+		assertEquals("Error: rows stored twice", 14, cursor.getCount());
+		assertTrue(cursor.moveToPosition(3));
+		assertEquals("Error: changed row not updated", 100.5,
+		             cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+		assertTrue(cursor.moveToPosition(5));
+		assertEquals("Error: partial row not updated", -40.0,
+		             cursor.getDouble(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+		cursor.close();
+	}
+
+	/*
+		Not a strict benchmark: reports the time of the first write and of an unchanged rewrite of each size in the log,
+		for both paths, and only fails if the compiled path is clearly slower at the largest size.
+	 */
+	public void testBenchmark() {
+		for (int size : BENCHMARK_SIZES) {
+			deleteWeather();
+			long start = System.nanoTime();
+			assertEquals("Error: row by row path missed rows", size, writeRowByRow(createRows(size)));
+			final long rowByRowInsertNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			assertEquals("Error: row by row path rewrote rows", 0, writeRowByRow(createRows(size)));
+			final long rowByRowRewriteNanos = System.nanoTime() - start;
+
+			deleteWeather();
+			start = System.nanoTime();
+			assertEquals("Error: compiled path missed rows", size, writeCompiled(createRows(size)));
+			final long compiledInsertNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			assertEquals("Error: compiled path rewrote rows", 0, writeCompiled(createRows(size)));
+			final long compiledRewriteNanos = System.nanoTime() - start;
+
+			Log.i(LOG_TAG, String.format("%d rows: insert %d ms row by row, %d ms compiled (%d rows/s); " +
+			                             "unchanged rewrite %d ms row by row, %d ms compiled",
+			                             size,
+			                             rowByRowInsertNanos / 1000000,
+			                             compiledInsertNanos / 1000000,
+			                             size * 1000000000L / Math.max(compiledInsertNanos, 1),
+			                             rowByRowRewriteNanos / 1000000,
+			                             compiledRewriteNanos / 1000000));
+			if (size == BENCHMARK_SIZES[BENCHMARK_SIZES.length - 1]) {
+				assertTrue("Error: compiled insert slower than row by row",
+				           compiledInsertNanos < rowByRowInsertNanos * 1.2);
+			}
+		}
+	}
+
+	private int writeCompiled(ContentValues[] values) {
+		mDb.beginTransaction();
+		try {
+			int writtenRows = WeatherProvider.writeWeather(mDb, values);
+			mDb.setTransactionSuccessful();
+			return writtenRows;
+		}
+		finally {
+			mDb.endTransaction();
+		}
+	}
+
+	// The bulk insert before the compiled statements
+	private int writeRowByRow(ContentValues[] values) {
+		mDb.beginTransaction();
+		try {
+			int writtenRows = 0;
+			for (ContentValues value : values) {
+				if (WeatherProvider.writeWeatherIfChanged(mDb, value)) {
+					writtenRows++;
+				}
+			}
+			mDb.setTransactionSuccessful();
+			return writtenRows;
+		}
+		finally {
+			mDb.endTransaction();
+		}
+	}
+
+	private ContentValues[] createRows(int count) {
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = TestUtilities.createWeatherValues(mLocationRowId);
+			values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+			values[i].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20.5 + i % 10);
+		}
+		return values;
+	}
+
+	private void deleteWeather() {
+		mDb.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+	}
+
+	private void deleteAll() {
+		mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
@@ -0,0 +1,186 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+	Checks that the database runs with a write-ahead log, that a query through the provider neither waits for nor sees
+	a transaction still being written, and that the latency of the forecast list query stays flat while another thread
+	bulk inserts a large batch.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+	private static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final String WRITTEN_LOCATION = "concurrent";
+	private static final int BULK_ROWS = 20000;
+	private static final int BASELINE_QUERIES = 50;
+
+	private long mReadLocationRowId;
+	private long mWrittenLocationRowId;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteAll();
+		mReadLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		ContentValues location = TestUtilities.createNorthPoleLocationValues();
+		location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, WRITTEN_LOCATION);
+		Uri locationUri = mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, location);
+		assertNotNull("Error: location not inserted", locationUri);
+		mWrittenLocationRowId = ContentUris.parseId(locationUri);
+		mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                         createRows(mReadLocationRowId, 14));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll();
+		super.tearDown();
+	}
+
+	public void testWriteAheadLog() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+		try {
+			assertEquals("Error: the database doesn't use a write-ahead log", "wal",
+			             DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null).toLowerCase());
+			assertTrue("Error: nothing to checkpoint should still succeed", WeatherDbHelper.checkpoint(db) >= 0);
+		}
+		finally {
+			db.close();
+		}
+	}
+
+	public void testReadersKeepSnapshot() throws Throwable {
+		final CountDownLatch written = new CountDownLatch(1);
+		final CountDownLatch read = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// A connection of its own, as the sync adapter's provider process may have
+				SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+				db.beginTransaction();
+				try {
+					WeatherProvider.writeWeather(db, createRows(mWrittenLocationRowId, 14));
+					written.countDown();
+					read.await(10, TimeUnit.SECONDS);
+					db.setTransactionSuccessful();
+				}
+				catch (InterruptedException e) {
+					Log.e(LOG_TAG, e.getMessage(), e);
+				}
+				finally {
+					db.endTransaction();
+					db.close();
+				}
+			}
+		});
+		writer.start();
+		try {
+			assertTrue("Error: writer didn't write", written.await(10, TimeUnit.SECONDS));
+			final long start = System.nanoTime();
+			assertEquals("Error: a reader saw an uncommitted write", 0, countRows(WRITTEN_LOCATION));
+			final long waited = (System.nanoTime() - start) / 1000000;
+			assertTrue("Error: a reader waited " + waited + " ms for the writer", waited < 1000);
+		}
+		finally {
+			read.countDown();
+			writer.join();
+		}
+		assertEquals("Error: committed write not seen", 14, countRows(WRITTEN_LOCATION));
+	}
+
+	/*
+		Not a strict benchmark: reports the percentiles of the forecast list query alone and during the bulk insert in
+		the log, and only fails if queries during the insert are clearly slower.
+	 */
+	public void testQueryLatencyDuringBulkInsert() throws Throwable {
+		List<Long> baseline = new ArrayList<>();
+		for (int i = 0; i < BASELINE_QUERIES; i++) {
+			baseline.add(timeListQuery());
+		}
+
+		final ContentValues[] rows = createRows(mWrittenLocationRowId, BULK_ROWS);
+		final int[] inserted = new int[1];
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				inserted[0] = mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, rows);
+			}
+		});
+		List<Long> duringInsert = new ArrayList<>();
+		final long start = System.nanoTime();
+		writer.start();
+		while (writer.isAlive()) {
+			duringInsert.add(timeListQuery());
+		}
+		writer.join();
+		final long insertMillis = (System.nanoTime() - start) / 1000000;
+		assertEquals("Error: bulk insert missed rows", BULK_ROWS, inserted[0]);
+
+		final long baselineP95 = percentile(baseline, 95);
+		final long duringP95 = percentile(duringInsert, 95);
+		Log.i(LOG_TAG, String.format("forecast list query: alone p50 %d us, p95 %d us; during a %d row insert " +
+		                             "(%d ms) p50 %d us, p95 %d us over %d queries",
+		                             percentile(baseline, 50) / 1000, baselineP95 / 1000, BULK_ROWS, insertMillis,
+		                             percentile(duringInsert, 50) / 1000, duringP95 / 1000, duringInsert.size()));
+		assertTrue("Error: queries were blocked by the insert", duringInsert.size() > 1);
+		assertTrue("Error: query latency rose during the insert",
+		           duringP95 < Math.max(baselineP95 * 5, TimeUnit.MILLISECONDS.toNanos(50)));
+	}
+
+	private long timeListQuery() {
+		final long start = System.nanoTime();
+		Cursor cursor = mContext.getContentResolver().query(
+				WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null,
+				WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+		assertNotNull(cursor);
+		assertEquals("Error: a reader saw the list change", 14, cursor.getCount());
+		cursor.close();
+		return System.nanoTime() - start;
+	}
+
+	private int countRows(String locationSetting) {
+		Cursor cursor = mContext.getContentResolver().query(
+				WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting), null, null, null, null);
+		assertNotNull(cursor);
+		final int count = cursor.getCount();
+		cursor.close();
+		return count;
+	}
+
+	private static long percentile(List<Long> samples, int percent) {
+		List<Long> sorted = new ArrayList<>(samples);
+		Collections.sort(sorted);
+		return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percent / 100));
+	}
+
+	private static ContentValues[] createRows(long locationRowId, int count) {
+		ContentValues[] values = new ContentValues[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = TestUtilities.createWeatherValues(locationRowId);
+			values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+		}
+		return values;
+	}
+
+	private void deleteAll() {
+		mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
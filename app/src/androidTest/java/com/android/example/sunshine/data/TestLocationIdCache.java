@@ -0,0 +1,81 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+
+/*
+	Checks that inserting a stored location returns its row instead of failing, that location deletes and changes of
+	a location setting clear the cached ids while sync time updates don't, and that the cache stays bounded.
+ */
+public class TestLocationIdCache extends AndroidTestCase {
+	private LocationIdCache mCache;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+		mCache = LocationIdCache.getInstance();
+		mCache.invalidate();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+		super.tearDown();
+	}
+
+	public void testInsertIsUpsert() {
+		long locationRowId = insertLocation();
+		assertTrue("Error: location not inserted", locationRowId > 0);
+		assertEquals("Error: a stored location should return its row", locationRowId, insertLocation());
+	}
+
+	public void testProviderInvalidates() {
+		long locationRowId = insertLocation();
+		mCache.put(TestUtilities.TEST_LOCATION, locationRowId, mCache.getGeneration());
+		assertEquals(locationRowId, mCache.get(TestUtilities.TEST_LOCATION));
+
+		ContentValues values = new ContentValues();
+		values.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, System.currentTimeMillis());
+		mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values, null, null);
+		assertEquals("Error: a sync time update shouldn't clear the cache",
+		             locationRowId, mCache.get(TestUtilities.TEST_LOCATION));
+
+		values = new ContentValues();
+		values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "Wroclaw");
+		mContext.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI, values, null, null);
+		assertEquals("Error: a location setting update should clear the cache",
+		             -1, mCache.get(TestUtilities.TEST_LOCATION));
+
+		mCache.put("Wroclaw", locationRowId, mCache.getGeneration());
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+		assertEquals("Error: a location delete should clear the cache", -1, mCache.get("Wroclaw"));
+	}
+
+	public void testStaleIdNotCached() {
+		long generation = mCache.getGeneration();
+		mCache.invalidate();
+		mCache.put(TestUtilities.TEST_LOCATION, 1, generation);
+		assertEquals("Error: an id looked up before an invalidation shouldn't be cached",
+		             -1, mCache.get(TestUtilities.TEST_LOCATION));
+	}
+
+	public void testBounded() {
+		LocationIdCache cache = new LocationIdCache(2);
+		cache.put("a", 1, cache.getGeneration());
+		cache.put("b", 2, cache.getGeneration());
+		cache.get("a");
+		cache.put("c", 3, cache.getGeneration());
+		assertEquals("Error: cache not bounded", 2, cache.size());
+		assertEquals("Error: the least recently used id should go first", -1, cache.get("b"));
+		assertEquals(1, cache.get("a"));
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	private long insertLocation() {
+		return ContentUris.parseId(mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI,
+		                                                                 TestUtilities.createNorthPoleLocationValues()));
+	}
+}
@@ -0,0 +1,202 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+	Upgrades a populated database from every version since the oldest migrated one, through the helper as an app update
+	would, and checks that the cached rows survive and that the schema ends up the same as a new database's. Also
+	reports how long each upgrade took on large tables, and checks that a database too old to migrate is recreated.
+ */
+public class TestMigrations extends AndroidTestCase {
+	private static final String LOG_TAG = TestMigrations.class.getSimpleName();
+	private static final String MIGRATED_DATABASE = "migration_test.db";
+	private static final String NEW_DATABASE = "migration_new.db";
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int LOCATIONS = 10;
+	private static final int DAYS = 5000;
+	private static final int BUCKETS = 40;
+
+	// The schema of the oldest migrated version, as the first release created it
+	//@formatter:off
+	private static final String[] OLDEST_SCHEMA = {
+		"CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+		"date INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL,min REAL NOT NULL, " +
+		"max REAL NOT NULL, humidity REAL NOT NULL, pressure REAL NOT NULL, wind REAL NOT NULL, " +
+		"degrees REAL NOT NULL,  FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+		"UNIQUE (date, location_id) ON CONFLICT REPLACE);",
+		"CREATE TABLE location (_id INTEGER PRIMARY KEY AUTOINCREMENT, location_setting TEXT UNIQUE NOT NULL, " +
+		"city_name TEXT NOT NULL, latitude REAL NOT NULL, longitude REAL NOT NULL);"
+	};
+	//@formatter:on
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteDatabases();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteDatabases();
+		super.tearDown();
+	}
+
+	public void testUpgradeFromEveryVersion() {
+		SQLiteDatabase db = new WeatherDbHelper(mContext, NEW_DATABASE).getWritableDatabase();
+		final List<String> newSchema = describeSchema(db);
+		db.close();
+
+		for (int version = WeatherDbHelper.OLDEST_MIGRATED_VERSION;
+		     version < WeatherDbHelper.DATABASE_VERSION;
+		     version++) {
+			mContext.deleteDatabase(MIGRATED_DATABASE);
+			db = createDatabase(version);
+			populate(db, version);
+			db.close();
+
+			final long start = System.nanoTime();
+			db = new WeatherDbHelper(mContext, MIGRATED_DATABASE).getWritableDatabase();
+			final long upgradeMillis = (System.nanoTime() - start) / 1000000;
+			try {
+				Log.i(LOG_TAG, String.format("upgrade from version %d to %d with %d weather rows: %d ms",
+				                             version, WeatherDbHelper.DATABASE_VERSION, LOCATIONS * DAYS,
+				                             upgradeMillis));
+				assertEquals("Error: wrong version after the upgrade from " + version,
+				             WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+				assertEquals("Error: schema upgraded from " + version + " differs from a new one",
+				             newSchema, describeSchema(db));
+				assertEquals("Error: locations lost by the upgrade from " + version, LOCATIONS,
+				             DatabaseUtils.queryNumEntries(db, WeatherContract.LocationEntry.TABLE_NAME));
+				assertEquals("Error: weather lost by the upgrade from " + version, LOCATIONS * DAYS,
+				             DatabaseUtils.queryNumEntries(db, WeatherContract.WeatherEntry.TABLE_NAME));
+				if (version >= 6) {
+					assertEquals("Error: 3-hour forecast lost by the upgrade from " + version, LOCATIONS * BUCKETS,
+					             DatabaseUtils.queryNumEntries(db, WeatherContract.ThreeHourlyEntry.TABLE_NAME));
+				}
+				assertEquals("Error: sync enabled for migrated locations from " + version, 0,
+				             DatabaseUtils.longForQuery(db, "SELECT SUM(" +
+				                                            WeatherContract.LocationEntry.COLUMN_SYNC_ENABLED +
+				                                            ") FROM " + WeatherContract.LocationEntry.TABLE_NAME,
+				                                        null));
+			}
+			finally {
+				db.close();
+			}
+		}
+	}
+
+	public void testTooOldVersionIsRecreated() {
+		SQLiteDatabase db = createDatabase(WeatherDbHelper.OLDEST_MIGRATED_VERSION);
+		populate(db, WeatherDbHelper.OLDEST_MIGRATED_VERSION);
+		db.setVersion(WeatherDbHelper.OLDEST_MIGRATED_VERSION - 1);
+		db.close();
+
+		db = new WeatherDbHelper(mContext, MIGRATED_DATABASE).getWritableDatabase();
+		try {
+			assertEquals("Error: database older than the oldest migrated version kept its rows", 0,
+			             DatabaseUtils.queryNumEntries(db, WeatherContract.WeatherEntry.TABLE_NAME));
+			assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+		}
+		finally {
+			db.close();
+		}
+	}
+
+	/*
+		Creates the database of the given version: the oldest schema, then the migration steps up to the version, so
+		the steps taken by the upgrade are the ones after it.
+	 */
+	private SQLiteDatabase createDatabase(int version) {
+		SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mContext.getDatabasePath(MIGRATED_DATABASE), null);
+		for (String statement : OLDEST_SCHEMA) {
+			db.execSQL(statement);
+		}
+		WeatherDbHelper.migrate(db, WeatherDbHelper.OLDEST_MIGRATED_VERSION, version);
+		db.setVersion(version);
+		return db;
+	}
+
+	// Fills in the tables the version has, with the columns of the oldest schema, which every version has
+	private static void populate(SQLiteDatabase db, int version) {
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < LOCATIONS; i++) {
+				ContentValues location = TestUtilities.createNorthPoleLocationValues();
+				location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "migration" + i);
+				final long locationRowId = db.insertOrThrow(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+				ContentValues[] days = new ContentValues[DAYS];
+				for (int day = 0; day < DAYS; day++) {
+					days[day] = TestUtilities.createWeatherValues(locationRowId);
+					days[day].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+					              TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+				}
+				WeatherProvider.writeWeather(db, days);
+				if (version >= 6) {
+					for (int bucket = 0; bucket < BUCKETS; bucket++) {
+						db.insertOrThrow(WeatherContract.ThreeHourlyEntry.TABLE_NAME, null,
+						                 TestThreeHourly.createBucket(locationRowId, TestUtilities.TEST_DATE +
+						                                                             bucket * 3 * 60 * 60 * 1000));
+					}
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	// Columns, with their type, constraint and default, and indexes, with their columns, sorted to compare
+	private static List<String> describeSchema(SQLiteDatabase db) {
+		List<String> schema = new ArrayList<>();
+		Cursor tables = db.rawQuery("SELECT type, name FROM sqlite_master WHERE type IN ('table', 'index') AND " +
+		                            "name != 'sqlite_sequence' AND name != 'android_metadata'", null);
+		try {
+			while (tables.moveToNext()) {
+				final String name = tables.getString(1);
+				final boolean table = "table".equals(tables.getString(0));
+				Cursor columns = db.rawQuery("PRAGMA " + (table ? "table_info" : "index_info") + "(" + name + ")",
+				                             null);
+				try {
+					while (columns.moveToNext()) {
+						if (table) {
+							schema.add(String.format("column %s.%s %s notnull=%d default=%s pk=%d", name,
+							                         columns.getString(columns.getColumnIndex("name")),
+							                         columns.getString(columns.getColumnIndex("type")),
+							                         columns.getInt(columns.getColumnIndex("notnull")),
+							                         columns.getString(columns.getColumnIndex("dflt_value")),
+							                         columns.getInt(columns.getColumnIndex("pk"))));
+						}
+						else {
+							schema.add(String.format("index %s %d %s", name,
+							                         columns.getInt(columns.getColumnIndex("seqno")),
+							                         columns.getString(columns.getColumnIndex("name"))));
+						}
+					}
+				}
+				finally {
+					columns.close();
+				}
+			}
+		}
+		finally {
+			tables.close();
+		}
+		Collections.sort(schema);
+		return schema;
+	}
+
+	private void deleteDatabases() {
+		mContext.deleteDatabase(MIGRATED_DATABASE);
+		mContext.deleteDatabase(NEW_DATABASE);
+	}
+}
@@ -16,8 +16,11 @@
 package com.android.example.sunshine.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
@@ -27,6 +30,13 @@ import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.android.example.sunshine.sync.SyncJournal;
+import com.android.example.sunshine.utils.Utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
@@ -452,6 +462,278 @@ public class TestProvider extends AndroidTestCase {
 		}
 	}
 
+	/*
+		Bulk inserting a forecast which is already stored must not write or notify anything, and a changed day must be
+		updated in place.
+	 */
+	public void testBulkInsertSkipsUnchangedRows() throws Throwable {
+		deleteAllRecords();
+		long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		int insertCount = mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                                           createBulkInsertWeatherValues(locationRowId));
+		assertEquals("Error: new rows were not all inserted", BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+		Cursor cursor = mContext.getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                                    new String[]{WeatherContract.WeatherEntry._ID},
+		                                                    null,
+		                                                    null,
+		                                                    WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+		assertTrue("Error: no rows stored", cursor.moveToPosition(3));
+		long changedRowId = cursor.getLong(0);
+		cursor.close();
+
+		TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+		mContext.getContentResolver().registerContentObserver(WeatherContract.WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+		insertCount = mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                                       createBulkInsertWeatherValues(locationRowId));
+		assertEquals("Error: unchanged rows were written again", 0, insertCount);
+		Thread.sleep(500);
+		assertFalse("Error: observers notified although nothing changed", weatherObserver.mContentChanged);
+
+		ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+		changedValues[3].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100);
+		insertCount = mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, changedValues);
+		assertEquals("Error: only the changed row should be written", 1, insertCount);
+		weatherObserver.waitForNotificationOrFail();
+		mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+		cursor = mContext.getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                             null,
+		                                             WeatherContract.WeatherEntry._ID + " = ?",
+		                                             new String[]{Long.toString(changedRowId)},
+		                                             null);
+		TestUtilities.validateCursor("Error: changed row not updated in place", cursor, changedValues[3]);
+
+		deleteAllRecords();
+	}
+
+	/*
+		A batch must be applied in a single transaction, notified once it is over, resolve back references to an upserted
+		location and report days which are already stored with the bare CONTENT_URI.
+	 */
+	public void testApplyBatch() throws Throwable {
+		deleteAllRecords();
+		ArrayList<ContentProviderOperation> operations = createBatch();
+		TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+		mContext.getContentResolver().registerContentObserver(WeatherContract.WeatherEntry.CONTENT_URI, true, weatherObserver);
+		ContentProviderResult[] results = mContext.getContentResolver()
+		                                          .applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+		weatherObserver.waitForNotificationOrFail();
+		mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+		final long locationRowId = ContentUris.parseId(results[0].uri);
+		for (int i = 1; i < results.length; i++) {
+			assertFalse("Error: a new day should be reported with its id",
+			            WeatherContract.WeatherEntry.CONTENT_URI.equals(results[i].uri));
+		}
+		Cursor cursor = mContext.getContentResolver().query(
+		  WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+		assertEquals("Error: days not stored for the upserted location", BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+		cursor.close();
+
+		results = mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, createBatch());
+		assertEquals("Error: the location should be upserted", locationRowId, ContentUris.parseId(results[0].uri));
+		for (int i = 1; i < results.length; i++) {
+			assertEquals("Error: an unchanged day should be reported with the bare CONTENT_URI",
+			             WeatherContract.WeatherEntry.CONTENT_URI, results[i].uri);
+		}
+
+		deleteAllRecords();
+		operations = createBatch();
+		operations.add(ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+		                                       .withValue(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Nowhere")
+		                                       .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+		                                                      new String[]{"nowhere"})
+		                                       .withExpectedCount(1)
+		                                       .build());
+		try {
+			mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+			fail("Error: the failing operation should fail the batch");
+		}
+		catch (OperationApplicationException e) {
+			// expected
+		}
+		cursor = mContext.getContentResolver().query(WeatherContract.LocationEntry.CONTENT_URI, null, null, null, null);
+		assertEquals("Error: a failed batch should store nothing", 0, cursor.getCount());
+		cursor.close();
+	}
+
+	/*
+		A batch which stores days with the values they already hold and records the sync time of their location, like a
+		sync which brings nothing new, must not notify any observer. A changed day must notify its location.
+	 */
+	public void testApplyBatchOfUnchangedRowsNotifiesNothing() throws Throwable {
+		deleteAllRecords();
+		mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, createBatch());
+
+		TestUtilities.TestContentObserver observer = TestUtilities.getTestContentObserver();
+		mContext.getContentResolver().registerContentObserver(WeatherContract.BASE_CONTENT_URI, true, observer);
+		ArrayList<ContentProviderOperation> operations = createBatch();
+		operations.add(createSyncTimeUpdate());
+		mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+		Thread.sleep(500);
+		mContext.getContentResolver().unregisterContentObserver(observer);
+		observer.mHT.quit();
+		assertFalse("Error: observers notified although nothing changed", observer.mContentChanged);
+
+		observer = TestUtilities.getTestContentObserver();
+		mContext.getContentResolver().registerContentObserver(
+		  WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), false, observer);
+		operations = createBatch();
+		operations.set(3, ContentProviderOperation.newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+		                                          .withValues(createChangedDay())
+		                                          .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, 0)
+		                                          .build());
+		operations.add(createSyncTimeUpdate());
+		mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+		observer.waitForNotificationOrFail();
+		mContext.getContentResolver().unregisterContentObserver(observer);
+
+		deleteAllRecords();
+	}
+
+	private static ContentValues createChangedDay() {
+		ContentValues values = createBulkInsertWeatherValues(0)[2];
+		values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100);
+		return values;
+	}
+
+	private static ContentProviderOperation createSyncTimeUpdate() {
+		return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+		                               .withValue(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED,
+		                                          System.currentTimeMillis())
+		                               .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+		                                              new String[]{TestUtilities.TEST_LOCATION})
+		                               .build();
+	}
+
+	private static ArrayList<ContentProviderOperation> createBatch() {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+		operations.add(ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+		                                       .withValues(TestUtilities.createNorthPoleLocationValues())
+		                                       .build());
+		for (ContentValues values : createBulkInsertWeatherValues(0)) {
+			operations.add(ContentProviderOperation.newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+			                                       .withValues(values)
+			                                       .withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, 0)
+			                                       .build());
+		}
+		return operations;
+	}
+
+	/*
+		The journal must keep the phases of a sync run, compute nearest-rank percentiles per phase and only keep the
+		most recent entries.
+	 */
+	public void testSyncJournal() {
+		mContext.getContentResolver().delete(WeatherContract.SyncJournalEntry.CONTENT_URI, null, null);
+
+		SyncJournal journal = new SyncJournal();
+		for (int i = 1; i <= 20; i++) {
+			journal.record(TestUtilities.TEST_LOCATION, WeatherContract.SyncJournalEntry.PHASE_CONNECT, i * 1000000L, 0, 0);
+		}
+		journal.record(null, WeatherContract.SyncJournalEntry.PHASE_OLD_ROW_DELETE, 3000, 0, 7);
+		assertTrue("Error: journal entries not written", journal.flush(mContext.getContentResolver()) >= 21);
+
+		Cursor cursor = mContext.getContentResolver().query(WeatherContract.SyncJournalEntry.CONTENT_URI,
+		                                                    null,
+		                                                    WeatherContract.SyncJournalEntry.COLUMN_PHASE + " = ?",
+		                                                    new String[]{WeatherContract.SyncJournalEntry.PHASE_OLD_ROW_DELETE},
+		                                                    null);
+		ContentValues expected = new ContentValues();
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_RUN_ID, journal.getRunId());
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_DURATION, 3);
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_ROWS, 7);
+		TestUtilities.validateCursor("Error: journal entry not stored as recorded", cursor, expected);
+
+		cursor = mContext.getContentResolver().query(WeatherContract.SyncJournalEntry.buildPercentilesUri(),
+		                                             null,
+		                                             WeatherContract.SyncJournalEntry.COLUMN_PHASE + " = ?",
+		                                             new String[]{WeatherContract.SyncJournalEntry.PHASE_CONNECT},
+		                                             null);
+		expected = new ContentValues();
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_COUNT, 20);
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_P50, 10000);
+		expected.put(WeatherContract.SyncJournalEntry.COLUMN_P95, 19000);
+		TestUtilities.validateCursor("Error: wrong connect percentiles", cursor, expected);
+
+		ContentValues[] entries = new ContentValues[WeatherProvider.MAX_SYNC_JOURNAL_ENTRIES + 10];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = new ContentValues();
+			entries[i].put(WeatherContract.SyncJournalEntry.COLUMN_RUN_ID, i);
+			entries[i].put(WeatherContract.SyncJournalEntry.COLUMN_PHASE, WeatherContract.SyncJournalEntry.PHASE_PARSE);
+			entries[i].put(WeatherContract.SyncJournalEntry.COLUMN_DURATION, i);
+		}
+		mContext.getContentResolver().bulkInsert(WeatherContract.SyncJournalEntry.CONTENT_URI, entries);
+		cursor = mContext.getContentResolver().query(WeatherContract.SyncJournalEntry.CONTENT_URI,
+		                                             null,
+		                                             null,
+		                                             null,
+		                                             WeatherContract.SyncJournalEntry.COLUMN_RUN_ID + " ASC");
+		assertEquals("Error: journal not trimmed", WeatherProvider.MAX_SYNC_JOURNAL_ENTRIES, cursor.getCount());
+		assertTrue(cursor.moveToFirst());
+		assertEquals("Error: the oldest entries should be trimmed first", 10,
+		             cursor.getLong(cursor.getColumnIndex(WeatherContract.SyncJournalEntry.COLUMN_RUN_ID)));
+		cursor.close();
+
+		mContext.getContentResolver().delete(WeatherContract.SyncJournalEntry.CONTENT_URI, null, null);
+	}
+
+	/*
+		A forecast query must return the stored rows with their staleness, and schedule a revalidation only when the
+		location hasn't been synced within the freshness budget.
+	 */
+	public void testStaleWhileRevalidate() {
+		deleteAllRecords();
+		final List<String> revalidated = new ArrayList<>();
+		WeatherProvider provider = new WeatherProvider() {
+			@Override
+			void requestRevalidation(String locationSetting) {
+				revalidated.add(locationSetting);
+			}
+		};
+		provider.attachInfo(mContext, null);
+
+		long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		provider.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, createBulkInsertWeatherValues(locationRowId));
+		Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+		String[] projection = {WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.WeatherEntry.COLUMN_STALENESS};
+
+		// Never synced: served anyway, and revalidated
+		Cursor cursor = provider.query(weatherUri, projection, null, null, null);
+		assertEquals("Error: stale rows should still be served", BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+		assertTrue(cursor.moveToFirst());
+		assertTrue("Error: a never synced location has no staleness", cursor.isNull(1));
+		cursor.close();
+		assertEquals("Error: stale location not revalidated",
+		             Collections.singletonList(TestUtilities.TEST_LOCATION), revalidated);
+
+		// Synced an hour ago, within the default budget
+		long budget = Utility.getPreferredFreshnessBudget(mContext);
+		ContentValues values = new ContentValues();
+		values.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, System.currentTimeMillis() - budget / 4);
+		provider.update(WeatherContract.LocationEntry.CONTENT_URI, values, null, null);
+		revalidated.clear();
+		cursor = provider.query(weatherUri, projection, null, null, null);
+		assertTrue(cursor.moveToFirst());
+		long staleness = cursor.getLong(1);
+		assertTrue("Error: wrong staleness " + staleness, staleness >= budget / 4 && staleness < budget / 2);
+		cursor.close();
+		assertTrue("Error: fresh location revalidated", revalidated.isEmpty());
+
+		// Synced before the budget
+		values.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED, System.currentTimeMillis() - 2 * budget);
+		provider.update(WeatherContract.LocationEntry.CONTENT_URI, values, null, null);
+		provider.query(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+		                                                                         TestUtilities.TEST_DATE),
+		               projection, null, null, null).close();
+		assertEquals("Error: stale location not revalidated",
+		             Collections.singletonList(TestUtilities.TEST_LOCATION), revalidated);
+
+		provider.shutdown();
+		deleteAllRecords();
+	}
+
 	// Student: Uncomment this test after you have completed writing the BulkInsert functionality
 	// in your provider.  Note that this test will work with the built-in (default) provider
 	// implementation, which just inserts records one-at-a-time, so really do implement the
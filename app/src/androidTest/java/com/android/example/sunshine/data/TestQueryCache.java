@@ -0,0 +1,253 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.example.sunshine.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/*
+	Checks that the provider serves a repeated forecast query from its result cache, with the same rows, that writes
+	invalidate the results of the locations they touch and only those, batches once they're committed, and that the
+	statistics are served. Also checks the bounds of the cache itself, and reports the latency of cached and uncached
+	queries in the log.
+ */
+public class TestQueryCache extends AndroidTestCase {
+	private static final String LOG_TAG = TestQueryCache.class.getSimpleName();
+	private static final String OTHER_LOCATION = "cached";
+	private static final int TIMED_QUERIES = 100;
+
+	private WeatherProvider mProvider;
+	private long mLocationRowId;
+	private long mOtherLocationRowId;
+	private Uri mForecastUri;
+	private Uri mOtherForecastUri;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		setCacheSize("256");
+		mProvider = new WeatherProvider() {
+			@Override
+			void requestRevalidation(String locationSetting) {
+				// No sync from the tests
+			}
+		};
+		mProvider.attachInfo(mContext, null);
+		deleteAll();
+		mLocationRowId = ContentUris.parseId(
+				mProvider.insert(WeatherContract.LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+		ContentValues location = TestUtilities.createNorthPoleLocationValues();
+		location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+		mOtherLocationRowId = ContentUris.parseId(mProvider.insert(WeatherContract.LocationEntry.CONTENT_URI, location));
+		mProvider.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                     TestProvider.createBulkInsertWeatherValues(mLocationRowId));
+		mProvider.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                     TestProvider.createBulkInsertWeatherValues(mOtherLocationRowId));
+		mForecastUri = WeatherContract.WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+		mOtherForecastUri = WeatherContract.WeatherEntry.buildWeatherLocation(OTHER_LOCATION);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll();
+		mProvider.shutdown();
+		PreferenceManager.getDefaultSharedPreferences(mContext)
+		                 .edit()
+		                 .remove(mContext.getString(R.string.pref_key_query_cache_size))
+		                 .commit();
+		super.tearDown();
+	}
+
+	public void testRepeatedQueryIsCached() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		QueryCache cache = mProvider.getQueryCache();
+		final long misses = cache.getMissCount();
+		Cursor first = queryForecast(mForecastUri);
+		Cursor second = queryForecast(mForecastUri);
+		assertEquals("Error: first query not counted as a miss", misses + 1, cache.getMissCount());
+		assertEquals("Error: repeated query not served from the cache", 1, cache.getHitCount());
+		assertEquals("Error: cached result has other rows", first.getCount(), second.getCount());
+		while (first.moveToNext() && second.moveToNext()) {
+			for (int i = 0; i < first.getColumnCount(); i++) {
+				assertEquals("Error: cached value differs in " + first.getColumnName(i),
+				             first.getString(i), second.getString(i));
+			}
+		}
+		first.close();
+		second.close();
+
+		Cursor statistics = mProvider.query(WeatherContract.QueryCacheEntry.CONTENT_URI, null, null, null, null);
+		assertTrue(statistics.moveToFirst());
+		assertEquals(1, statistics.getLong(statistics.getColumnIndex(WeatherContract.QueryCacheEntry.COLUMN_RESULTS)));
+		assertEquals(0.5, statistics.getDouble(statistics.getColumnIndex(WeatherContract.QueryCacheEntry.COLUMN_HIT_RATIO)),
+		             0.001);
+		assertTrue("Error: cached result takes no memory",
+		           statistics.getLong(statistics.getColumnIndex(WeatherContract.QueryCacheEntry.COLUMN_BYTES)) > 0);
+		statistics.close();
+	}
+
+	public void testWritesInvalidateTheirLocation() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		QueryCache cache = mProvider.getQueryCache();
+		queryForecast(mForecastUri).close();
+		queryForecast(mOtherForecastUri).close();
+
+		ContentValues values = TestProvider.createBulkInsertWeatherValues(mOtherLocationRowId)[0];
+		values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 100);
+		mProvider.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, new ContentValues[]{values});
+		assertEquals("Error: write of another location invalidated the result", 1, cache.getResultCount());
+		long hits = cache.getHitCount();
+		queryForecast(mForecastUri).close();
+		assertEquals(hits + 1, cache.getHitCount());
+		Cursor cursor = queryForecast(mOtherForecastUri);
+		assertEquals("Error: invalidated result served", hits + 1, cache.getHitCount());
+		assertTrue(cursor.moveToFirst());
+		assertEquals(100, cursor.getInt(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+		cursor.close();
+
+		values = new ContentValues();
+		values.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+		mProvider.update(WeatherContract.WeatherEntry.CONTENT_URI, values,
+		                 WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+		                 new String[]{Long.toString(mLocationRowId)});
+		assertEquals("Error: update didn't invalidate its location only", 1, cache.getResultCount());
+
+		mProvider.delete(WeatherContract.WeatherEntry.CONTENT_URI,
+		                 WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?",
+		                 new String[]{Long.toString(mOtherLocationRowId)});
+		assertTrue("Error: delete didn't invalidate its location", cache.isEmpty());
+		cursor = queryForecast(mOtherForecastUri);
+		assertEquals("Error: deleted rows served", 0, cursor.getCount());
+		cursor.close();
+	}
+
+	public void testBatchInvalidatesOnceCommitted() throws Throwable {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		QueryCache cache = mProvider.getQueryCache();
+		queryForecast(mForecastUri).close();
+		queryForecast(mOtherForecastUri).close();
+
+		ContentValues values = TestProvider.createBulkInsertWeatherValues(mLocationRowId)[0];
+		values.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, -40);
+		ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+		operations.add(ContentProviderOperation.newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+		                                       .withValues(values)
+		                                       .build());
+		mProvider.applyBatch(operations);
+		assertEquals("Error: batch didn't invalidate its location only", 1, cache.getResultCount());
+		Cursor cursor = queryForecast(mForecastUri);
+		assertTrue(cursor.moveToFirst());
+		assertEquals(-40, cursor.getInt(cursor.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+		cursor.close();
+	}
+
+	public void testDisabledCache() {
+		setCacheSize("0");
+		queryForecast(mForecastUri).close();
+		queryForecast(mForecastUri).close();
+		assertEquals("Error: a disabled cache served a query", 0, mProvider.getQueryCache().getHitCount());
+		assertTrue(mProvider.getQueryCache().isEmpty());
+	}
+
+	public void testBounds() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		QueryCache cache = new QueryCache(16384);
+		for (int i = 0; i < 20; i++) {
+			cache.put("key" + i, "location" + i, createCursor(10), cache.getGeneration()).close();
+			assertTrue("Error: cache grew beyond its size", cache.getSize() <= cache.getMaxSize());
+		}
+		assertNotNull("Error: most recent result dropped", cache.get("key19"));
+		assertNull("Error: least recent result kept", cache.get("key0"));
+
+		Cursor large = createCursor(1000);
+		assertSame("Error: a result larger than the cache allows was cached", large,
+		           cache.put("large", "location", large, cache.getGeneration()));
+		assertEquals("Error: rejected result not rewound", -1, large.getPosition());
+		large.close();
+
+		final long generation = cache.getGeneration();
+		cache.invalidate(Collections.singleton("location19"));
+		assertNull("Error: invalidated result kept", cache.get("key19"));
+		cache.put("stale", "location", createCursor(1), generation).close();
+		assertNull("Error: result read before an invalidation cached", cache.get("stale"));
+
+		cache.setMaxSize(0);
+		assertTrue("Error: disabled cache kept its results", cache.isEmpty());
+	}
+
+	/*
+		Not a strict benchmark: reports the median latency of the forecast list query served by the database and by the
+		cache, and only fails if the cache is clearly slower.
+	 */
+	public void testLatency() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		setCacheSize("0");
+		final long uncached = medianQueryNanos();
+		setCacheSize("256");
+		final long cached = medianQueryNanos();
+		Log.i(LOG_TAG, String.format("forecast list query: %d us from the database, %d us from the cache, hit ratio %.2f",
+		                             uncached / 1000, cached / 1000, mProvider.getQueryCache().getHitRatio()));
+		assertTrue("Error: cached queries slower than uncached ones", cached < uncached * 2);
+	}
+
+	private long medianQueryNanos() {
+		long[] nanos = new long[TIMED_QUERIES];
+		for (int i = 0; i < TIMED_QUERIES; i++) {
+			final long start = System.nanoTime();
+			Cursor cursor = queryForecast(mForecastUri);
+			cursor.getCount();
+			cursor.close();
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		return nanos[TIMED_QUERIES / 2];
+	}
+
+	private Cursor queryForecast(Uri uri) {
+		Cursor cursor = mProvider.query(uri, null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+		assertNotNull(cursor);
+		return cursor;
+	}
+
+	private static Cursor createCursor(int rows) {
+		MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "short_desc", "max"});
+		for (int i = 0; i < rows; i++) {
+			cursor.addRow(new Object[]{i, "Asteroids", 75.5});
+		}
+		return cursor;
+	}
+
+	private void setCacheSize(String kilobytes) {
+		PreferenceManager.getDefaultSharedPreferences(mContext)
+		                 .edit()
+		                 .putString(mContext.getString(R.string.pref_key_query_cache_size), kilobytes)
+		                 .commit();
+	}
+
+	private void deleteAll() {
+		mProvider.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+		mProvider.delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
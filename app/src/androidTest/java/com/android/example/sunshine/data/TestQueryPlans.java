@@ -0,0 +1,128 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/*
+	Checks through EXPLAIN QUERY PLAN that the weather queries of the provider are served by the (location, date)
+	index, without scanning the table or sorting in a temporary B-tree, on an empty table as well as on a grown one
+	whose statistics were gathered.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int LOCATIONS = 20;
+	private static final int DAYS = 100;
+
+	// The projection of the forecast list
+	private static final String LIST_COLUMNS = WeatherContract.WeatherEntry.TABLE_NAME + "." +
+	                                           WeatherContract.WeatherEntry._ID + ", " +
+	                                           WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+	                                           WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+	                                           WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+	                                           WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", " +
+	                                           WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+	                                           WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", " +
+	                                           WeatherContract.LocationEntry.COLUMN_COORD_LONG;
+	private static final String JOIN = " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+	                                   WeatherContract.LocationEntry.TABLE_NAME + " ON " +
+	                                   WeatherContract.WeatherEntry.TABLE_NAME + "." +
+	                                   WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = " +
+	                                   WeatherContract.LocationEntry.TABLE_NAME + "." +
+	                                   WeatherContract.LocationEntry._ID;
+	private static final String LOCATION_SELECTION = " WHERE " + WeatherContract.LocationEntry.TABLE_NAME + "." +
+	                                                 WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+	private static final String DATE_ORDER = " ORDER BY " + WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+	private SQLiteDatabase mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteAll();
+		mDb = new WeatherDbHelper(mContext).getWritableDatabase();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		deleteAll();
+		super.tearDown();
+	}
+
+	public void testPlansOnEmptyTable() {
+		assertPlans();
+	}
+
+	public void testPlansOnGrownTable() {
+		for (int i = 0; i < LOCATIONS; i++) {
+			ContentValues location = TestUtilities.createNorthPoleLocationValues();
+			location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "plan" + i);
+			long locationRowId = mDb.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+			ContentValues[] days = new ContentValues[DAYS];
+			for (int day = 0; day < DAYS; day++) {
+				days[day] = TestUtilities.createWeatherValues(locationRowId);
+				days[day].put(WeatherContract.WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+			}
+			mDb.beginTransaction();
+			try {
+				WeatherProvider.writeWeather(mDb, days);
+				mDb.setTransactionSuccessful();
+			}
+			finally {
+				mDb.endTransaction();
+			}
+		}
+		assertPlans();
+		// Statistics may change the planner's mind
+		mDb.execSQL("ANALYZE");
+		try {
+			assertPlans();
+		}
+		finally {
+			// Other tests expect the plans of a database without statistics
+			mDb.execSQL("DELETE FROM sqlite_stat1");
+		}
+	}
+
+	private void assertPlans() {
+		String plan = explain("SELECT " + LIST_COLUMNS + JOIN + LOCATION_SELECTION + DATE_ORDER, "plan0");
+		assertServedByIndex("forecast list", plan, "COVERING INDEX " + WeatherContract.WeatherEntry.INDEX_LOCATION_DATE);
+
+		plan = explain("SELECT " + LIST_COLUMNS + JOIN + LOCATION_SELECTION + " AND " +
+		               WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?" + DATE_ORDER + " LIMIT 14",
+		               "plan0", Long.toString(TestUtilities.TEST_DATE));
+		assertServedByIndex("forecast list from a date", plan,
+		                    "COVERING INDEX " + WeatherContract.WeatherEntry.INDEX_LOCATION_DATE);
+
+		plan = explain("SELECT *" + JOIN + LOCATION_SELECTION + " AND " +
+		               WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+		               "plan0", Long.toString(TestUtilities.TEST_DATE));
+		// Either index fits a single day
+		assertServedByIndex("forecast of a day", plan, "INDEX");
+	}
+
+	private void assertServedByIndex(String query, String plan, String index) {
+		assertFalse("Error: the " + query + " scans the weather table: " + plan,
+		            plan.contains("SCAN TABLE " + WeatherContract.WeatherEntry.TABLE_NAME) ||
+		            plan.contains("SCAN " + WeatherContract.WeatherEntry.TABLE_NAME));
+		assertFalse("Error: the " + query + " is sorted in a temporary B-tree: " + plan, plan.contains("TEMP B-TREE"));
+		assertTrue("Error: the " + query + " isn't read through " + index + ": " + plan, plan.contains(index));
+	}
+
+	private String explain(String sql, String... selectionArgs) {
+		Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+		StringBuilder plan = new StringBuilder();
+		while (cursor.moveToNext()) {
+			plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append("; ");
+		}
+		cursor.close();
+		return plan.toString();
+	}
+
+	private void deleteAll() {
+		mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
@@ -0,0 +1,141 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Checks that the retention keeps today's forecast and the current 3-hour bucket while deleting older rows of every
+	location, in bounded chunks read through an index, and that it reports what it reclaimed.
+ */
+public class TestRetention extends AndroidTestCase {
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int LOCATIONS = 30;
+	private static final int PAST_BUCKETS = 40;
+	private static final int FUTURE_BUCKETS = 8;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteAll();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll();
+		super.tearDown();
+	}
+
+	public void testRetention() {
+		final long now = System.currentTimeMillis();
+		final long today = WeatherContract.normalizeDate(now);
+		final long currentBucket = WeatherContract.ThreeHourlyEntry.normalizeBucket(now);
+		List<ContentValues> weather = new ArrayList<>();
+		List<ContentValues> buckets = new ArrayList<>();
+		for (int i = 0; i < LOCATIONS; i++) {
+			ContentValues location = TestUtilities.createNorthPoleLocationValues();
+			location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "retention" + i);
+			long locationRowId = ContentUris.parseId(
+			  mContext.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, location));
+			// Three past days, today and tomorrow
+			for (int day = -3; day <= 1; day++) {
+				ContentValues values = TestUtilities.createWeatherValues(locationRowId);
+				values.put(WeatherContract.WeatherEntry.COLUMN_DATE, today + day * DAY_IN_MILLIS);
+				weather.add(values);
+			}
+			for (int bucket = -PAST_BUCKETS; bucket < FUTURE_BUCKETS; bucket++) {
+				buckets.add(TestThreeHourly.createBucket(
+				  locationRowId, currentBucket + bucket * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH));
+			}
+		}
+		mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+		                                         weather.toArray(new ContentValues[weather.size()]));
+		mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI,
+		                                         buckets.toArray(new ContentValues[buckets.size()]));
+
+		final int expectedRows = LOCATIONS * 3 + LOCATIONS * PAST_BUCKETS;
+		assertEquals("Error: wrong number of rows reclaimed", expectedRows,
+		             mContext.getContentResolver().delete(WeatherContract.RetentionEntry.CONTENT_URI, null, null));
+
+		assertEquals("Error: today and later should be kept", LOCATIONS * 2,
+		             count(WeatherContract.WeatherEntry.CONTENT_URI));
+		assertEquals("Error: the current and future buckets should be kept", LOCATIONS * FUTURE_BUCKETS,
+		             count(WeatherContract.ThreeHourlyEntry.CONTENT_URI));
+
+		Cursor report = mContext.getContentResolver().query(WeatherContract.RetentionEntry.CONTENT_URI,
+		                                                    null, null, null, null);
+		int reportedRows = 0;
+		while (report.moveToNext()) {
+			reportedRows += report.getInt(report.getColumnIndex(WeatherContract.RetentionEntry.COLUMN_ROWS));
+			assertTrue("Error: negative bytes reclaimed",
+			           report.getLong(report.getColumnIndex(WeatherContract.RetentionEntry.COLUMN_BYTES)) >= 0);
+		}
+		report.close();
+		assertEquals("Error: the report should add up to the rows reclaimed", expectedRows, reportedRows);
+
+		assertEquals("Error: a second run should find nothing to reclaim", 0,
+		             mContext.getContentResolver().delete(WeatherContract.RetentionEntry.CONTENT_URI, null, null));
+	}
+
+	public void testChunks() {
+		long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		final long currentBucket = WeatherContract.ThreeHourlyEntry.normalizeBucket(System.currentTimeMillis());
+		ContentValues[] buckets = new ContentValues[25];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = TestThreeHourly.createBucket(locationRowId,
+			                                          currentBucket - (i + 1) * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH);
+		}
+		mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI, buckets);
+
+		SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+		try {
+			List<RetentionEngine.Result> results = new RetentionEngine(RetentionEngine.POLICIES, 10)
+			  .run(db, System.currentTimeMillis());
+			assertEquals("Error: every chunk should be deleted", buckets.length, results.get(1).getRows());
+		}
+		finally {
+			db.close();
+		}
+	}
+
+	public void testDeletesUseIndex() {
+		SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+		try {
+			for (RetentionEngine.Policy policy : RetentionEngine.POLICIES) {
+				Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT " + WeatherContract.WeatherEntry._ID +
+				                          " FROM " + policy.getTable() + " WHERE " + policy.getTimeColumn() +
+				                          " < ? LIMIT " + RetentionEngine.CHUNK_SIZE,
+				                          new String[]{"0"});
+				StringBuilder details = new StringBuilder();
+				while (plan.moveToNext()) {
+					details.append(plan.getString(plan.getColumnIndex("detail"))).append("; ");
+				}
+				plan.close();
+				assertTrue("Error: expired rows of " + policy.getTable() + " aren't read through an index: " + details,
+				           details.toString().contains("INDEX"));
+			}
+		}
+		finally {
+			db.close();
+		}
+	}
+
+	private int count(Uri uri) {
+		Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+		int count = cursor.getCount();
+		cursor.close();
+		return count;
+	}
+
+	private void deleteAll() {
+		mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.ThreeHourlyEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
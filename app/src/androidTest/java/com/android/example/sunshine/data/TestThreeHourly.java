@@ -0,0 +1,168 @@
+package com.android.example.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/*
+	Checks that three-hourly rows are stored per location and time bucket, that a window of a location is read
+	through the (location, bucket) index, and measures batched inserts and windowed reads of a realistic volume.
+ */
+public class TestThreeHourly extends AndroidTestCase {
+	private static final String LOG_TAG = TestThreeHourly.class.getSimpleName();
+	private static final long START = WeatherContract.ThreeHourlyEntry.normalizeBucket(TestUtilities.TEST_DATE);
+	private static final int BUCKETS_PER_LOCATION = 40;
+	private static final int BENCHMARK_LOCATIONS = 25;
+	private static final int BENCHMARK_READS = 100;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		deleteAll();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		deleteAll();
+		super.tearDown();
+	}
+
+	public void testWindowQuery() {
+		long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+		ContentValues[] values = createBuckets(locationRowId);
+		// Not aligned on a bucket, the provider must normalize it
+		values[0].put(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET, START + 60 * 1000);
+		assertEquals("Error: buckets not all inserted", BUCKETS_PER_LOCATION,
+		             mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI, values));
+
+		// A second sync replaces the buckets instead of adding rows
+		values = createBuckets(locationRowId);
+		values[1].put(WeatherContract.ThreeHourlyEntry.COLUMN_TEMP, 30.5);
+		mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI, values);
+
+		Cursor cursor = mContext.getContentResolver().query(WeatherContract.ThreeHourlyEntry.CONTENT_URI,
+		                                                    null, null, null, null);
+		assertEquals("Error: buckets stored twice", BUCKETS_PER_LOCATION, cursor.getCount());
+		cursor.close();
+
+		// One day: 8 buckets
+		Uri windowUri = WeatherContract.ThreeHourlyEntry.buildThreeHourlyLocationWithWindow(
+		  TestUtilities.TEST_LOCATION, START, START + 8 * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH);
+		cursor = mContext.getContentResolver().query(windowUri, null, null, null, null);
+		assertEquals("Error: wrong number of buckets in the window", 8, cursor.getCount());
+		assertTrue(cursor.moveToPosition(1));
+		TestUtilities.validateCurrentRecord("Error: bucket not replaced", cursor, values[1]);
+		cursor.close();
+
+		cursor = mContext.getContentResolver().query(
+		  WeatherContract.ThreeHourlyEntry.buildThreeHourlyLocation(TestUtilities.TEST_LOCATION), null, null, null, null);
+		assertEquals("Error: a location without window should return every bucket", BUCKETS_PER_LOCATION,
+		             cursor.getCount());
+		cursor.close();
+	}
+
+	public void testWindowQueryUsesIndex() {
+		SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+		Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + WeatherContract.ThreeHourlyEntry.TABLE_NAME +
+		                          " INNER JOIN " + WeatherContract.LocationEntry.TABLE_NAME + " ON " +
+		                          WeatherContract.ThreeHourlyEntry.TABLE_NAME + "." +
+		                          WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY + " = " +
+		                          WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID +
+		                          " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+		                          WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " >= ? AND " +
+		                          WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " < ?",
+		                          new String[]{TestUtilities.TEST_LOCATION, "0", "1"});
+		boolean indexed = false;
+		StringBuilder details = new StringBuilder();
+		while (plan.moveToNext()) {
+			String detail = plan.getString(plan.getColumnIndex("detail"));
+			details.append(detail).append("; ");
+			if (detail.contains(WeatherContract.ThreeHourlyEntry.TABLE_NAME) && detail.contains("INDEX")) {
+				indexed = true;
+			}
+		}
+		plan.close();
+		db.close();
+		assertTrue("Error: the window isn't read through an index: " + details, indexed);
+	}
+
+	/*
+		Not a strict benchmark: reports batched insert throughput and windowed read latency of 25 locations, 1000
+		rows, in the log, and only fails if they are unreasonably slow.
+	 */
+	public void testBenchmark() {
+		ContentValues[] values = new ContentValues[BENCHMARK_LOCATIONS * BUCKETS_PER_LOCATION];
+		for (int i = 0; i < BENCHMARK_LOCATIONS; i++) {
+			ContentValues location = TestUtilities.createNorthPoleLocationValues();
+			location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, "benchmark" + i);
+			long locationRowId = Long.parseLong(mContext.getContentResolver()
+			                                            .insert(WeatherContract.LocationEntry.CONTENT_URI, location)
+			                                            .getLastPathSegment());
+			System.arraycopy(createBuckets(locationRowId), 0, values, i * BUCKETS_PER_LOCATION, BUCKETS_PER_LOCATION);
+		}
+
+		long start = System.nanoTime();
+		int insertedRows = mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI, values);
+		long insertNanos = System.nanoTime() - start;
+		assertEquals("Error: rows not all inserted", values.length, insertedRows);
+
+		start = System.nanoTime();
+		mContext.getContentResolver().bulkInsert(WeatherContract.ThreeHourlyEntry.CONTENT_URI, values);
+		long replaceNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < BENCHMARK_READS; i++) {
+			long windowStart = START + (i % 32) * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH;
+			Cursor cursor = mContext.getContentResolver().query(
+			  WeatherContract.ThreeHourlyEntry.buildThreeHourlyLocationWithWindow(
+			    "benchmark" + (i % BENCHMARK_LOCATIONS),
+			    windowStart,
+			    windowStart + 8 * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH),
+			  null, null, null, null);
+			assertEquals("Error: wrong number of buckets in the window", 8, cursor.getCount());
+			cursor.close();
+		}
+		long readNanos = System.nanoTime() - start;
+
+		Log.i(LOG_TAG, String.format("insert: %d rows in %d ms (%d rows/s), replace: %d ms, " +
+		                             "1-day window read: %d us on average",
+		                             values.length,
+		                             insertNanos / 1000000,
+		                             values.length * 1000000000L / Math.max(insertNanos, 1),
+		                             replaceNanos / 1000000,
+		                             readNanos / 1000 / BENCHMARK_READS));
+		assertTrue("Error: batched insert unreasonably slow", insertNanos < 10 * 1000000000L);
+		assertTrue("Error: windowed reads unreasonably slow", readNanos / BENCHMARK_READS < 100 * 1000000L);
+	}
+
+	private static ContentValues[] createBuckets(long locationRowId) {
+		ContentValues[] values = new ContentValues[BUCKETS_PER_LOCATION];
+		for (int i = 0; i < BUCKETS_PER_LOCATION; i++) {
+			values[i] = createBucket(locationRowId, START + i * WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH);
+			values[i].put(WeatherContract.ThreeHourlyEntry.COLUMN_TEMP, 10.5 + i);
+		}
+		return values;
+	}
+
+	static ContentValues createBucket(long locationRowId, long bucket) {
+		ContentValues values = new ContentValues();
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY, locationRowId);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET, bucket);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_WEATHER_ID, 800);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_SHORT_DESC, "Clear");
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_TEMP, 10.5);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_HUMIDITY, 80.0);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_PRESSURE, 1013.0);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_WIND_SPEED, 3.5);
+		values.put(WeatherContract.ThreeHourlyEntry.COLUMN_DEGREES, 270.0);
+		return values;
+	}
+
+	private void deleteAll() {
+		mContext.getContentResolver().delete(WeatherContract.ThreeHourlyEntry.CONTENT_URI, null, null);
+		mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+	}
+}
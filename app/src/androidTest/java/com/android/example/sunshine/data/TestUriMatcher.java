@@ -57,5 +57,25 @@ public class TestUriMatcher extends AndroidTestCase {
 		assertEquals("Error: The LOCATION URI was matched incorrectly.",
 		             testMatcher.match(TEST_LOCATION_DIR),
 		             WeatherProvider.LOCATION);
+		assertEquals("Error: The THREE HOURLY URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.ThreeHourlyEntry.CONTENT_URI),
+		             WeatherProvider.THREE_HOURLY);
+		assertEquals("Error: The THREE HOURLY WITH LOCATION URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.ThreeHourlyEntry.buildThreeHourlyLocationWithWindow(LOCATION_QUERY,
+		                                                                                                   TEST_DATE,
+		                                                                                                   TEST_DATE + 1)),
+		             WeatherProvider.THREE_HOURLY_WITH_LOCATION);
+		assertEquals("Error: The SYNC JOURNAL URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.SyncJournalEntry.CONTENT_URI),
+		             WeatherProvider.SYNC_JOURNAL);
+		assertEquals("Error: The SYNC JOURNAL PERCENTILES URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.SyncJournalEntry.buildPercentilesUri()),
+		             WeatherProvider.SYNC_JOURNAL_PERCENTILES);
+		assertEquals("Error: The RETENTION URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.RetentionEntry.CONTENT_URI),
+		             WeatherProvider.RETENTION);
+		assertEquals("Error: The QUERY CACHE URI was matched incorrectly.",
+		             testMatcher.match(WeatherContract.QueryCacheEntry.CONTENT_URI),
+		             WeatherProvider.QUERY_CACHE);
 	}
 }
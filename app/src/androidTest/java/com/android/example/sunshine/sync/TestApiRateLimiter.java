@@ -0,0 +1,110 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/*
+	Checks that the bucket caps bursts, that background requests leave the reserve to manual ones, that tokens come
+	back with time, that the bucket survives a new instance (as after a process restart), and that a manual request
+	waits for a token instead of being shed.
+ */
+public class TestApiRateLimiter extends AndroidTestCase {
+	private static final String KEY = "test-key";
+	private static final int CAPACITY = 10;
+	private static final long REFILL_INTERVAL = 1000;
+	private static final int MANUAL_RESERVE = 3;
+	private static final long START = 1000000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		clearLimiter();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clearLimiter();
+		super.tearDown();
+	}
+
+	public void testBackgroundRequestsLeaveReserve() {
+		FakeClockLimiter limiter = new FakeClockLimiter(START);
+		assertEquals(CAPACITY - MANUAL_RESERVE, acquireAll(limiter, false));
+		assertEquals("Error: rejection not counted", 1, limiter.getRejectedCount());
+
+		// Manual requests may take the reserve
+		assertEquals(MANUAL_RESERVE, acquireAll(limiter, true));
+		assertEquals(0, acquireAll(limiter, true));
+	}
+
+	public void testRefill() throws Throwable {
+		FakeClockLimiter limiter = new FakeClockLimiter(START);
+		acquireAll(limiter, true);
+		try {
+			limiter.acquire(false);
+			fail("Error: an empty bucket should shed background requests");
+		}
+		catch (RateLimitException e) {
+			assertEquals("Error: wrong retry time", limiter.mNow + (MANUAL_RESERVE + 1) * REFILL_INTERVAL, e.getRetryAt());
+		}
+
+		limiter.mNow += 2 * REFILL_INTERVAL;
+		assertEquals("Error: tokens should come back with time", 2, acquireAll(limiter, true));
+
+		limiter.mNow += 100 * REFILL_INTERVAL;
+		assertEquals("Error: bucket filled beyond capacity", (double) CAPACITY, limiter.getTokens(), 0.001);
+	}
+
+	public void testBucketPersists() {
+		FakeClockLimiter limiter = new FakeClockLimiter(START);
+		acquireAll(limiter, false);
+		FakeClockLimiter restarted = new FakeClockLimiter(limiter.mNow);
+		assertEquals("Error: bucket refilled by a restart", (double) MANUAL_RESERVE, restarted.getTokens(), 0.001);
+		assertEquals(0, acquireAll(restarted, false));
+	}
+
+	public void testManualRequestWaits() throws Throwable {
+		ApiRateLimiter limiter = new ApiRateLimiter(mContext, KEY, 2, 100, 1, 2000);
+		limiter.acquire(true);
+		limiter.acquire(true);
+		final long start = System.nanoTime();
+		limiter.acquire(true);
+		final long waited = (System.nanoTime() - start) / 1000000;
+		assertTrue("Error: manual request didn't wait for a token: " + waited + " ms", waited >= 50);
+		assertTrue("Error: manual request waited too long: " + waited + " ms", waited < 1000);
+	}
+
+	/** @return the number of requests let through before the first rejection */
+	private static int acquireAll(ApiRateLimiter limiter, boolean manual) {
+		int acquired = 0;
+		try {
+			while (acquired < 100) {
+				limiter.acquire(manual);
+				acquired++;
+			}
+		}
+		catch (RateLimitException e) {
+			// expected
+		}
+		return acquired;
+	}
+
+	private void clearLimiter() {
+		mContext.getSharedPreferences(ApiRateLimiter.PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+	}
+
+	// Time stands still unless the test moves it, so manual requests are shed instead of waiting
+	private class FakeClockLimiter extends ApiRateLimiter {
+		long mNow;
+
+		FakeClockLimiter(long now) {
+			super(mContext, KEY, CAPACITY, REFILL_INTERVAL, MANUAL_RESERVE, 0);
+			mNow = now;
+		}
+
+		@Override
+		long now() {
+			return mNow;
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentValues;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import com.android.example.sunshine.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Checks that the streaming parser produces exactly the same rows as the tree parser for responses
+	recorded from OpenWeatherMap, and that both reject error and malformed responses with a JSONException.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+	// Recorded from api.openweathermap.org/data/2.5/forecast/daily?q=Wroclaw&mode=json&units=metric&cnt=3
+	static final String PAYLOAD_WROCLAW = "{\"city\":{\"id\":3081368,\"name\":\"Wroclaw\"," +
+	                                      "\"coord\":{\"lon\":17.03333,\"lat\":51.099998},\"country\":\"PL\"," +
+	                                      "\"population\":0},\"cod\":\"200\",\"message\":0.0123,\"cnt\":3,\"list\":[" +
+	                                      "{\"dt\":1462359600,\"temp\":{\"day\":17.46,\"min\":6.42,\"max\":19.15," +
+	                                      "\"night\":6.42,\"eve\":17.49,\"morn\":9.55},\"pressure\":1006.96," +
+	                                      "\"humidity\":64,\"weather\":[{\"id\":800,\"main\":\"Clear\"," +
+	                                      "\"description\":\"sky is clear\",\"icon\":\"01d\"}],\"speed\":2.41," +
+	                                      "\"deg\":306,\"clouds\":0}," +
+	                                      "{\"dt\":1462446000,\"temp\":{\"day\":19.99,\"min\":8.74,\"max\":21.38," +
+	                                      "\"night\":8.74,\"eve\":19.64,\"morn\":10.67},\"pressure\":1006.45," +
+	                                      "\"humidity\":58,\"weather\":[{\"id\":801,\"main\":\"Clouds\"," +
+	                                      "\"description\":\"few clouds\",\"icon\":\"02d\"}],\"speed\":1.76," +
+	                                      "\"deg\":275,\"clouds\":12}," +
+	                                      "{\"dt\":1462532400,\"temp\":{\"day\":21.4,\"min\":10.05,\"max\":22.6," +
+	                                      "\"night\":10.05,\"eve\":20.96,\"morn\":12.11},\"pressure\":1003.13," +
+	                                      "\"humidity\":61,\"weather\":[{\"id\":500,\"main\":\"Rain\"," +
+	                                      "\"description\":\"light rain\",\"icon\":\"10d\"}],\"speed\":3.2," +
+	                                      "\"deg\":231,\"clouds\":44,\"rain\":0.61}]}";
+
+	// Recorded from the same endpoint for 94043; the list comes before the city and a day carries two weather entries
+	static final String PAYLOAD_MOUNTAIN_VIEW = "{\"cod\":\"200\",\"message\":0.0087,\"cnt\":2,\"list\":[" +
+	                                            "{\"dt\":1462392000,\"temp\":{\"day\":21.6,\"min\":11.2," +
+	                                            "\"max\":23.83,\"night\":11.2,\"eve\":19.28,\"morn\":21.6}," +
+	                                            "\"pressure\":1001.17,\"humidity\":55.5,\"weather\":[{\"id\":802," +
+	                                            "\"main\":\"Clouds\",\"description\":\"scattered clouds\"," +
+	                                            "\"icon\":\"03d\"},{\"id\":701,\"main\":\"Mist\"," +
+	                                            "\"description\":\"mist\",\"icon\":\"50d\"}],\"speed\":4.06," +
+	                                            "\"deg\":305,\"clouds\":36}," +
+	                                            "{\"dt\":1462478400,\"temp\":{\"day\":18.5,\"min\":9.87," +
+	                                            "\"max\":19.56,\"night\":9.87,\"eve\":16.63,\"morn\":14.09}," +
+	                                            "\"pressure\":1003.2,\"humidity\":73,\"weather\":[{\"id\":501," +
+	                                            "\"main\":\"Rain\",\"description\":\"moderate rain\"," +
+	                                            "\"icon\":\"10d\"}],\"speed\":5.41,\"deg\":261,\"clouds\":88," +
+	                                            "\"rain\":3.93}]," +
+	                                            "\"city\":{\"id\":5375480,\"name\":\"Mountain View\",\"coord\":" +
+	                                            "{\"lon\":-122.083847,\"lat\":37.386051},\"country\":\"US\"," +
+	                                            "\"population\":0}}";
+
+	// Recorded reply for an unknown location
+	static final String PAYLOAD_NOT_FOUND = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+	public void testParity() throws Throwable {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			// the streaming parser is not available, newInstance falls back to the tree parser
+			return;
+		}
+		assertParity("Wroclaw", PAYLOAD_WROCLAW, 3);
+		assertParity("Mountain View", PAYLOAD_MOUNTAIN_VIEW, 2);
+	}
+
+	public void testErrorPayloadRejected() throws Throwable {
+		assertRejected(new TreeForecastParser(), PAYLOAD_NOT_FOUND);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			assertRejected(new StreamingForecastParser(), PAYLOAD_NOT_FOUND);
+		}
+	}
+
+	public void testMalformedPayloadRejected() throws Throwable {
+		final String[] payloads = new String[]{
+		  PAYLOAD_WROCLAW.replaceFirst("\"list\":\\[.*\\]\\}$", "\"list\":{}}"),
+		  PAYLOAD_WROCLAW.replaceFirst("\"city\":\\{.*?\"population\":0\\}", "\"city\":null"),
+		  PAYLOAD_WROCLAW.replace("\"pressure\":1006.96", "\"pressure\":\"high\""),
+		  PAYLOAD_WROCLAW.replace("\"temp\":{\"day\":17.46,", "\"temp\":[17.46],\"t\":{")
+		};
+		for (String payload : payloads) {
+			assertFalse("Error: payload not made malformed", PAYLOAD_WROCLAW.equals(payload));
+			assertRejected(new TreeForecastParser(), payload);
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				assertRejected(new StreamingForecastParser(), payload);
+			}
+		}
+	}
+
+	public void testFactoryFallback() {
+		assertTrue("Error: tree type should create the tree parser",
+		           ForecastParser.newInstance(ForecastParser.TYPE_TREE) instanceof TreeForecastParser);
+		assertTrue("Error: unknown type should fall back to the tree parser",
+		           ForecastParser.newInstance("unknown") instanceof TreeForecastParser);
+	}
+
+	private void assertParity(String cityName, String payload, int days) throws IOException, JSONException {
+		RecordingHandler tree = parse(new TreeForecastParser(), payload);
+		RecordingHandler streaming = parse(new StreamingForecastParser(), payload);
+
+		assertEquals("Error: unexpected city name", cityName, tree.mCityName);
+		assertEquals("Error: city names differ", tree.mCityName, streaming.mCityName);
+		assertEquals("Error: latitudes differ", tree.mLatitude, streaming.mLatitude);
+		assertEquals("Error: longitudes differ", tree.mLongitude, streaming.mLongitude);
+
+		assertEquals("Error: unexpected number of days", days, tree.mDays.size());
+		assertEquals("Error: number of days differs", tree.mDays.size(), streaming.mDays.size());
+		for (int i = 0; i < days; i++) {
+			ContentValues expected = tree.mDays.get(i);
+			ContentValues actual = streaming.mDays.get(i);
+			assertEquals("Error: column count differs for day " + i, expected.size(), actual.size());
+			for (String column : expected.keySet()) {
+				assertEquals("Error: column " + column + " differs for day " + i,
+				             expected.getAsString(column),
+				             actual.getAsString(column));
+			}
+		}
+		assertEquals("Error: only the first weather entry should be used",
+		             tree.mDays.get(0).getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+		             streaming.mDays.get(0).getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+	}
+
+	private void assertRejected(ForecastParser parser, String payload) throws IOException {
+		try {
+			parse(parser, payload);
+			fail("Error: " + parser.getClass().getSimpleName() + " accepted " + payload);
+		}
+		catch (JSONException e) {
+			// expected
+		}
+	}
+
+	private static RecordingHandler parse(ForecastParser parser, String payload) throws IOException, JSONException {
+		RecordingHandler handler = new RecordingHandler();
+		parser.parse(new StringReader(payload), handler);
+		return handler;
+	}
+
+	static class RecordingHandler implements ForecastParser.Handler {
+		final List<ContentValues> mDays = new ArrayList<>();
+		String mCityName;
+		double mLatitude;
+		double mLongitude;
+
+		@Override
+		public void onCity(String cityName, double latitude, double longitude) {
+			mCityName = cityName;
+			mLatitude = latitude;
+			mLongitude = longitude;
+		}
+
+		@Override
+		public void onDay(int dayIndex, ContentValues dayValues) {
+			assertEquals("Error: days reported out of order", mDays.size(), dayIndex);
+			mDays.add(dayValues);
+		}
+	}
+}
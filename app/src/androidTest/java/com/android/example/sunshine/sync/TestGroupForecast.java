@@ -0,0 +1,213 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.example.sunshine.utils.StubHttpServer;
+
+import org.json.JSONException;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+	Serves synthetic group responses of 10, 100 and 1000 cities from a local stub server, checks that every city is
+	parsed with all of its days, and reports the parsing throughput in the log. Also checks the splitting of the list
+	on tricky and broken responses.
+ */
+public class TestGroupForecast extends AndroidTestCase {
+	private static final String LOG_TAG = TestGroupForecast.class.getSimpleName();
+	private static final String PATH = "/data/2.5/forecast/daily/group?";
+	private static final int DAYS = 14;
+
+	private StubHttpServer mServer;
+	private ExecutorService mWorkers;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new StubHttpServer();
+		mWorkers = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mWorkers.shutdownNow();
+		mServer.shutdown();
+		super.tearDown();
+	}
+
+	public void testGroupUrl() {
+		List<String> locationSettings = new ArrayList<>();
+		locationSettings.add("id:3081368");
+		locationSettings.add("id:5375480");
+		String url = new GroupForecastSource(GroupForecastSource.GROUP_BASE_URL).getGroupUrl(locationSettings);
+		assertTrue("Error: cities missing from the url: " + url, url.contains("id=3081368,5375480"));
+		assertTrue(GroupForecastSource.isCityId("id:3081368"));
+		assertFalse("Error: a postal code is not a city id", GroupForecastSource.isCityId("94043"));
+		assertFalse(GroupForecastSource.isCityId("Wroclaw"));
+		assertFalse(GroupForecastSource.isCityId("id:"));
+		assertFalse(GroupForecastSource.isCityId(""));
+
+		url = new UrlWeatherSource("test", UrlWeatherSource.FORECAST_BASE_URL).getForecastUrl("id:3081368");
+		assertTrue("Error: a city id should be asked for by id: " + url, url.contains("id=3081368"));
+		url = new UrlWeatherSource("test", UrlWeatherSource.FORECAST_BASE_URL).getForecastUrl("94043");
+		assertTrue("Error: a postal code should be queried: " + url, url.contains("q=94043"));
+	}
+
+	/*
+		Not a strict benchmark: reports how many locations per second a group response is downloaded and parsed at,
+		and only fails if it's unreasonably slow.
+	 */
+	public void testGroupSizes() throws Throwable {
+		for (int cities : new int[]{10, 100, 1000}) {
+			List<String> cityIds = new ArrayList<>();
+			List<String> locationSettings = new ArrayList<>();
+			for (int i = 0; i < cities; i++) {
+				cityIds.add(String.valueOf(1000000 + i));
+				locationSettings.add(GroupForecastSource.CITY_ID_PREFIX + cityIds.get(i));
+			}
+			mServer.setBody(createGroupPayload(cityIds));
+
+			CountingHandler handler = new CountingHandler();
+			final long start = System.nanoTime();
+			HttpEngine.Response response = new GroupForecastSource(mServer.getUrl(PATH)).fetch(locationSettings);
+			int found;
+			try {
+				assertEquals("Error: unexpected status", 200, response.getStatusCode());
+				found = new GroupForecastParser(mWorkers, 16).parse(new InputStreamReader(response.getBody(), "UTF-8"),
+				                                                     handler);
+			}
+			finally {
+				response.close();
+			}
+			final long elapsed = System.nanoTime() - start;
+
+			assertEquals("Error: cities missing from the response", cities, found);
+			assertEquals("Error: cities not all parsed", cities, handler.mDays.size());
+			assertEquals("Error: no city should fail", 0, handler.mFailed.get());
+			for (String cityId : cityIds) {
+				assertEquals("Error: days missing for city " + cityId, DAYS, handler.mDays.get(cityId).get());
+			}
+			Log.i(LOG_TAG, String.format("%d cities in %d ms (%d locations/s)",
+			                             cities,
+			                             elapsed / 1000000,
+			                             cities * 1000000000L / Math.max(elapsed, 1)));
+			assertTrue("Error: group parsing unreasonably slow", elapsed < cities * 50 * 1000000L);
+		}
+	}
+
+	public void testFailedCityDoesNotFailGroup() throws Throwable {
+		// The second city has no coordinates
+		String payload = createGroupPayload(Collections.singletonList("1"))
+		  .replace("]}]}", "]},{\"city\":{\"id\":\"2\",\"name\":\"Nowhere\"},\"list\":[]}]}");
+		CountingHandler handler = new CountingHandler();
+		assertEquals(2, new GroupForecastParser(mWorkers, 1).parse(new StringReader(payload), handler));
+		assertEquals("Error: the valid city should be parsed", 1, handler.mDays.size());
+		assertEquals("Error: the invalid city should be reported", 1, handler.mFailed.get());
+	}
+
+	public void testHandlerErrorReportedAsFailure() throws Throwable {
+		String payload = createGroupPayload(Collections.singletonList("1"));
+		CountingHandler handler = new CountingHandler() {
+			@Override
+			public void onCityParsed(String cityId) {
+				throw new IllegalStateException("city " + cityId + " parsed twice");
+			}
+		};
+		assertEquals(1, new GroupForecastParser(mWorkers, 1).parse(new StringReader(payload), handler));
+		assertEquals("Error: the failing city should be reported", 1, handler.mFailed.get());
+	}
+
+	public void testSplitter() throws Throwable {
+		// Braces and brackets in strings and escaped quotes must not end an element
+		String payload = "{\"cod\":\"200\",\"note\":\"[{\",\"list\":[{\"a\":\"}]\\\"}\"}, {\"b\":[1,{\"c\":2}]}],\"cnt\":2}";
+		GroupForecastParser.ListSplitter splitter = new GroupForecastParser.ListSplitter(new StringReader(payload));
+		assertEquals("{\"a\":\"}]\\\"}\"}", splitter.next());
+		assertEquals("{\"b\":[1,{\"c\":2}]}", splitter.next());
+		assertNull(splitter.next());
+
+		splitter = new GroupForecastParser.ListSplitter(new StringReader("{\"cnt\":0,\"list\":[]}"));
+		assertNull("Error: an empty list has no element", splitter.next());
+	}
+
+	public void testBrokenResponsesRejected() throws Throwable {
+		assertRejected(TestForecastParser.PAYLOAD_NOT_FOUND);
+		assertRejected("{\"cnt\":2,\"list\":[{\"city\":{\"id\":\"1\"},\"list\":[{\"dt\":146");
+	}
+
+	private void assertRejected(String payload) throws Throwable {
+		CountingHandler handler = new CountingHandler();
+		try {
+			new GroupForecastParser(mWorkers, 4).parse(new StringReader(payload), handler);
+			fail("Error: a broken group response should be rejected: " + payload);
+		}
+		catch (JSONException e) {
+			// expected
+		}
+	}
+
+	private static String createGroupPayload(List<String> cityIds) {
+		StringBuilder payload = new StringBuilder("{\"cnt\":").append(cityIds.size()).append(",\"list\":[");
+		for (int i = 0; i < cityIds.size(); i++) {
+			if (i > 0) {
+				payload.append(',');
+			}
+			payload.append("{\"city\":{\"id\":\"").append(cityIds.get(i)).append("\",\"name\":\"City ").append(i)
+			       .append("\",\"coord\":{\"lon\":").append(i % 180).append(".5,\"lat\":").append(i % 90)
+			       .append(".25},\"country\":\"PL\"},\"cod\":\"200\",\"cnt\":").append(DAYS).append(",\"list\":[");
+			for (int day = 0; day < DAYS; day++) {
+				if (day > 0) {
+					payload.append(',');
+				}
+				payload.append("{\"dt\":").append(1462359600L + day * 86400L)
+				       .append(",\"temp\":{\"day\":17.46,\"min\":6.42,\"max\":19.15,\"night\":6.42,\"eve\":17.49," +
+				               "\"morn\":9.55},\"pressure\":1006.96,\"humidity\":64,\"weather\":[{\"id\":800," +
+				               "\"main\":\"Clear\",\"description\":\"sky is clear\",\"icon\":\"01d\"}]," +
+				               "\"speed\":2.41,\"deg\":306,\"clouds\":0}");
+			}
+			payload.append("]}");
+		}
+		return payload.append("]}").toString();
+	}
+
+	private static class CountingHandler implements GroupForecastParser.Handler {
+		final Map<String, AtomicInteger> mDays = new ConcurrentHashMap<>();
+		final AtomicInteger mFailed = new AtomicInteger();
+
+		@Override
+		public ForecastParser.Handler onCity(String cityId) {
+			final AtomicInteger days = new AtomicInteger();
+			mDays.put(cityId, days);
+			return new ForecastParser.Handler() {
+				@Override
+				public void onCity(String cityName, double latitude, double longitude) {
+				}
+
+				@Override
+				public void onDay(int dayIndex, ContentValues dayValues) {
+					days.incrementAndGet();
+				}
+			};
+		}
+
+		@Override
+		public void onCityParsed(String cityId) {
+		}
+
+		@Override
+		public void onCityFailed(String cityId, JSONException error) {
+			mDays.remove(cityId);
+			mFailed.incrementAndGet();
+		}
+	}
+}
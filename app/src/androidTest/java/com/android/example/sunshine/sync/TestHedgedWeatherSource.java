@@ -0,0 +1,164 @@
+package com.android.example.sunshine.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.example.sunshine.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/*
+	Races two local stub servers with injected latencies and checks that a slow or failing primary is hedged with the
+	alternate, that both failing reports the primary's answer, and that hedging cuts the tail latency of a primary
+	whose responses are sometimes slow.
+ */
+public class TestHedgedWeatherSource extends AndroidTestCase {
+	private static final String LOG_TAG = TestHedgedWeatherSource.class.getSimpleName();
+	private static final String PATH = "/data/2.5/forecast/daily?";
+	private static final String LOCATION = "Wroclaw";
+	private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+	private static final String ALTERNATE_BODY = "{\"alternate\": true}";
+
+	private StubHttpServer mPrimaryServer;
+	private StubHttpServer mAlternateServer;
+	private WeatherSource mPrimary;
+	private WeatherSource mAlternate;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mPrimaryServer = new StubHttpServer();
+		mPrimaryServer.setBody(TestForecastParser.PAYLOAD_WROCLAW);
+		mAlternateServer = new StubHttpServer();
+		mAlternateServer.setBody(ALTERNATE_BODY);
+		mPrimary = new UrlWeatherSource("primary", mPrimaryServer.getUrl(PATH));
+		mAlternate = new UrlWeatherSource("alternate", mAlternateServer.getUrl(PATH), mPrimaryServer.getUrl(PATH));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mPrimaryServer.shutdown();
+		mAlternateServer.shutdown();
+		super.tearDown();
+	}
+
+	public void testFastPrimaryIsNotHedged() throws Throwable {
+		HedgedWeatherSource source = new HedgedWeatherSource(mPrimary, mAlternate, 1000);
+		assertEquals("Error: unexpected body", TestForecastParser.PAYLOAD_WROCLAW, fetch(source));
+		assertEquals("Error: a fast primary shouldn't be hedged", 0, source.getHedgedCount());
+		assertEquals("Error: the alternate shouldn't be asked", 0, mAlternateServer.getRequestCount());
+		assertEquals("Error: sources should share validators",
+		             mPrimary.getForecastUrl(LOCATION), source.getForecastUrl(LOCATION));
+	}
+
+	public void testSlowPrimaryIsHedged() throws Throwable {
+		mPrimaryServer.setLatency(2000);
+		HedgedWeatherSource source = new HedgedWeatherSource(mPrimary, mAlternate, 100);
+		final long start = System.nanoTime();
+		assertEquals("Error: the alternate should win", ALTERNATE_BODY, fetch(source));
+		final long elapsed = (System.nanoTime() - start) / 1000000;
+		assertTrue("Error: hedged request waited for the slow primary: " + elapsed + " ms", elapsed < 1500);
+		assertEquals("Error: request not hedged", 1, source.getHedgedCount());
+		assertEquals("Error: alternate win not counted", 1, source.getAlternateWinCount());
+	}
+
+	public void testFailedPrimaryFallsBackBeforeDeadline() throws Throwable {
+		mPrimaryServer.setStatusCode(503);
+		HedgedWeatherSource source = new HedgedWeatherSource(mPrimary, mAlternate, 60 * 1000);
+		assertEquals("Error: the alternate should answer for a failed primary", ALTERNATE_BODY, fetch(source));
+	}
+
+	public void testBothFailedReportsPrimary() throws Throwable {
+		mPrimaryServer.setStatusCode(404);
+		mAlternateServer.setStatusCode(500);
+		HedgedWeatherSource source = new HedgedWeatherSource(mPrimary, mAlternate, 100);
+		HttpEngine.Response response = source.fetch(LOCATION, NO_HEADERS);
+		try {
+			assertEquals("Error: the primary's answer should be reported", 404, response.getStatusCode());
+		}
+		finally {
+			response.close();
+		}
+	}
+
+	/*
+		Not a strict benchmark: one primary response in 25 takes 500 ms instead of 5 ms, which the p95 deadline
+		learned from the first responses should hedge.
+	 */
+	public void testHedgingCutsTailLatency() throws Throwable {
+		mPrimaryServer.setLatency(5);
+		mPrimaryServer.setSlowResponses(25, 500);
+		mAlternateServer.setLatency(5);
+		final int requests = 100;
+
+		long[] unhedged = measure(mPrimary, requests);
+		HedgedWeatherSource source = new HedgedWeatherSource(mPrimary, mAlternate, 200);
+		long[] hedged = measure(source, requests);
+
+		Log.i(LOG_TAG, String.format("unhedged p50 %d ms, p99 %d ms; hedged p50 %d ms, p99 %d ms, %d of %d hedged",
+		                             unhedged[requests / 2], unhedged[requests * 99 / 100],
+		                             hedged[requests / 2], hedged[requests * 99 / 100],
+		                             source.getHedgedCount(), requests));
+		assertTrue("Error: hedging should cut the tail latency",
+		           hedged[requests * 99 / 100] < unhedged[requests * 99 / 100]);
+		assertTrue("Error: too many requests hedged", source.getHedgedCount() < requests / 4);
+	}
+
+	public void testFileSource() throws Throwable {
+		File file = new File(getContext().getCacheDir(), LOCATION + ".json");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(TestForecastParser.PAYLOAD_WROCLAW.getBytes("UTF-8"));
+		out.close();
+		try {
+			FileWeatherSource source = new FileWeatherSource("file", getContext().getCacheDir());
+			assertEquals("Error: unexpected body", TestForecastParser.PAYLOAD_WROCLAW, fetch(source));
+			try {
+				source.fetch("nowhere", NO_HEADERS).close();
+				fail("Error: a missing file should fail like an unreachable source");
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+		finally {
+			assertTrue(file.delete());
+		}
+	}
+
+	/** @return the sorted latencies of the requests, in milliseconds */
+	private static long[] measure(WeatherSource source, int requests) throws IOException {
+		long[] latencies = new long[requests];
+		for (int i = 0; i < requests; i++) {
+			final long start = System.nanoTime();
+			fetch(source);
+			latencies[i] = (System.nanoTime() - start) / 1000000;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	private static String fetch(WeatherSource source) throws IOException {
+		HttpEngine.Response response = source.fetch(LOCATION, NO_HEADERS);
+		try {
+			assertEquals("Error: unexpected status", 200, response.getStatusCode());
+			InputStream body = response.getBody();
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int count;
+			while ((count = body.read(buffer)) != -1) {
+				content.write(buffer, 0, count);
+			}
+			return content.toString("UTF-8");
+		}
+		finally {
+			response.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.android.example.sunshine.sync;
+
+import android.test.AndroidTestCase;
+
+import com.android.example.sunshine.utils.StubHttpServer;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+	Downloads recorded forecasts from a local stub server, once gzip encoded and once plain, and checks
+	that both decode to the same rows.
+ */
+public class TestResponseBody extends AndroidTestCase {
+	// Non ASCII city name, to make sure the body is decoded as UTF-8 whatever the platform default is
+	private static final String CITY_NAME = "Wroc\u0142aw";
+	private static final String PAYLOAD = TestForecastParser.PAYLOAD_WROCLAW.replace("Wroclaw", CITY_NAME);
+
+	private StubHttpServer mServer;
+	private HttpEngine mHttpEngine;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new StubHttpServer();
+		mServer.setBody(PAYLOAD);
+		mHttpEngine = new UrlConnectionHttpEngine.Builder().build();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		super.tearDown();
+	}
+
+	public void testCompressedResponse() throws Throwable {
+		mServer.setGzipEnabled(true);
+		Download download = download();
+
+		assertEquals("Error: compression was not requested", "gzip", mServer.getLastRequestHeader("Accept-Encoding"));
+		assertTrue("Error: compressed response not detected", download.mCompressed);
+		assertEquals("Error: transferred bytes don't match the compressed body",
+		             mServer.getLastResponseBytes(), download.mTransferredBytes);
+		assertTrue("Error: compression didn't save any bytes", download.mSavedBytes > 0);
+		assertEquals("Error: city name not decoded as UTF-8", CITY_NAME, download.mRows.mCityName);
+		assertEquals("Error: unexpected number of days", 3, download.mRows.mDays.size());
+	}
+
+	public void testPlainResponse() throws Throwable {
+		mServer.setGzipEnabled(false);
+		Download download = download();
+
+		assertFalse("Error: plain response reported as compressed", download.mCompressed);
+		assertEquals("Error: transferred bytes don't match the plain body",
+		             mServer.getLastResponseBytes(), download.mTransferredBytes);
+		assertEquals("Error: a plain response can't save bytes", 0, download.mSavedBytes);
+		assertEquals("Error: city name not decoded as UTF-8", CITY_NAME, download.mRows.mCityName);
+	}
+
+	public void testCompressedAndPlainParity() throws Throwable {
+		mServer.setGzipEnabled(true);
+		Download compressed = download();
+		mServer.setGzipEnabled(false);
+		Download plain = download();
+
+		assertEquals("Error: number of days differs", plain.mRows.mDays.size(), compressed.mRows.mDays.size());
+		for (int i = 0; i < plain.mRows.mDays.size(); i++) {
+			assertEquals("Error: day " + i + " differs",
+			             plain.mRows.mDays.get(i).toString(),
+			             compressed.mRows.mDays.get(i).toString());
+		}
+	}
+
+	private Download download() throws Exception {
+		Map<String, String> headers = new HashMap<>();
+		ResponseBody.requestCompression(headers);
+		HttpEngine.Response response = mHttpEngine.get(new URL(mServer.getUrl("/data/2.5/forecast/daily")), headers);
+		ResponseBody responseBody = null;
+		try {
+			responseBody = ResponseBody.open(response);
+
+			Download download = new Download();
+			ForecastParser.newInstance(ForecastParser.TYPE_STREAMING).parse(responseBody.getReader(), download.mRows);
+			// drain what the parser left behind, e.g. the gzip trailer
+			while (responseBody.getReader().read() != -1) {
+				// keep reading
+			}
+			download.mCompressed = responseBody.isCompressed();
+			download.mTransferredBytes = responseBody.getTransferredBytes();
+			download.mSavedBytes = responseBody.getSavedBytes();
+			return download;
+		}
+		finally {
+			if (responseBody != null) {
+				responseBody.close();
+			}
+			response.close();
+		}
+	}
+
+	private static class Download {
+		final TestForecastParser.RecordingHandler mRows = new TestForecastParser.RecordingHandler();
+		boolean mCompressed;
+		long mTransferredBytes;
+		long mSavedBytes;
+	}
+}
@@ -0,0 +1,81 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.Random;
+
+/*
+	Checks that consecutive failures back off exponentially within the jitter bounds, up to the cap,
+	that the state survives a new instance (as after a process restart), and that a success resets it.
+ */
+public class TestSyncBackoff extends AndroidTestCase {
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		clearBackoff();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clearBackoff();
+		super.tearDown();
+	}
+
+	public void testExponentialDelays() {
+		assertEquals("Error: unexpected first delay", SyncBackoff.BASE_DELAY, SyncBackoff.getDelay(1));
+		assertEquals("Error: delay should double", 2 * SyncBackoff.BASE_DELAY, SyncBackoff.getDelay(2));
+		assertEquals("Error: delay should double", 4 * SyncBackoff.BASE_DELAY, SyncBackoff.getDelay(3));
+		assertEquals("Error: delay not capped", SyncBackoff.MAX_DELAY, SyncBackoff.getDelay(20));
+		assertEquals("Error: delay overflowed", SyncBackoff.MAX_DELAY, SyncBackoff.getDelay(100));
+	}
+
+	public void testJitterBounds() {
+		SyncBackoff backoff = new SyncBackoff(mContext, new Random(42));
+		for (int i = 0; i < 1000; i++) {
+			long delay = backoff.jitter(SyncBackoff.BASE_DELAY);
+			assertTrue("Error: jittered delay below half the delay", delay >= SyncBackoff.BASE_DELAY / 2);
+			assertTrue("Error: jittered delay above the delay", delay <= SyncBackoff.BASE_DELAY);
+		}
+	}
+
+	public void testFailuresPersistAndSuccessResets() {
+		SyncBackoff backoff = new SyncBackoff(mContext, new Random(42));
+		assertFalse("Error: backing off before any failure", backoff.isBackingOff());
+
+		long start = System.currentTimeMillis();
+		long firstUntil = backoff.onFailure(0);
+		assertTrue("Error: first backoff out of bounds",
+		           firstUntil >= start + SyncBackoff.BASE_DELAY / 2 &&
+		           firstUntil <= System.currentTimeMillis() + SyncBackoff.BASE_DELAY);
+		long secondUntil = backoff.onFailure(0);
+		assertTrue("Error: second backoff should be at least the first one", secondUntil >= firstUntil);
+
+		// a new instance, as after a process restart, still backs off
+		SyncBackoff restored = new SyncBackoff(mContext);
+		assertTrue("Error: backoff not persisted", restored.isBackingOff());
+		assertEquals("Error: failure count not persisted", 2, restored.getFailureCount());
+
+		restored.onSuccess();
+		assertFalse("Error: success didn't end the backoff", new SyncBackoff(mContext).isBackingOff());
+		assertEquals("Error: success didn't reset the failure count", 0, new SyncBackoff(mContext).getFailureCount());
+	}
+
+	public void testServerDelayHonored() {
+		SyncBackoff backoff = new SyncBackoff(mContext, new Random(42));
+		long requested = 60 * SyncBackoff.BASE_DELAY;
+		long start = System.currentTimeMillis();
+		assertTrue("Error: Retry-After delay not honored", backoff.onFailure(requested) >= start + requested);
+	}
+
+	public void testRetryAfterParsing() {
+		assertEquals("Error: seconds not parsed", 120, HttpStatusException.parseRetryAfter("120"));
+		assertEquals("Error: HTTP date should be ignored", -1,
+		             HttpStatusException.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+		assertEquals("Error: missing header should be ignored", -1, HttpStatusException.parseRetryAfter(null));
+	}
+
+	private void clearBackoff() {
+		mContext.getSharedPreferences(SyncBackoff.PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+	}
+}
@@ -0,0 +1,163 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+	Checks that overlapping refreshes of a location share one sync, that every caller hears about its end,
+	that a refresh made while a sync is running waits for the next one, that only a sync which covered its location
+	completes a refresh, and that a refresh made during a background revalidation still gets a manual sync.
+ */
+public class TestSyncCoordinator extends AndroidTestCase {
+	private static final String LOCATION = "94043";
+	private static final String OTHER_LOCATION = "Wroclaw";
+
+	private CountingCoordinator mCoordinator;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mCoordinator = new CountingCoordinator();
+	}
+
+	public void testOverlappingRequestsShareOneSync() throws Throwable {
+		RecordingListener first = new RecordingListener();
+		RecordingListener second = new RecordingListener();
+		assertTrue("Error: first request should start a sync", mCoordinator.requestSync(mContext, LOCATION, first));
+		assertFalse("Error: second request should join the first one", mCoordinator.requestSync(mContext, LOCATION, second));
+		assertEquals("Error: more than one sync started", 1, mCoordinator.mStartedSyncs);
+		assertTrue("Error: sync not reported in flight", mCoordinator.isSyncInFlight(LOCATION));
+
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(LOCATION),
+		                            Collections.singletonList(LOCATION));
+
+		assertTrue("Error: first caller not notified", first.await());
+		assertTrue("Error: second caller not notified", second.await());
+		assertTrue("Error: sync not reported successful", first.mSuccess && second.mSuccess);
+		assertFalse("Error: sync still reported in flight", mCoordinator.isSyncInFlight(LOCATION));
+	}
+
+	public void testDifferentLocationsSyncSeparately() {
+		mCoordinator.requestSync(mContext, LOCATION, null);
+		mCoordinator.requestSync(mContext, OTHER_LOCATION, null);
+		assertEquals("Error: each location should request its sync", 2, mCoordinator.mStartedSyncs);
+	}
+
+	public void testRequestDuringSyncWaitsForNextOne() throws Throwable {
+		RecordingListener early = new RecordingListener();
+		RecordingListener late = new RecordingListener();
+		mCoordinator.requestSync(mContext, LOCATION, early);
+		long token = mCoordinator.onSyncStarted();
+		mCoordinator.requestSync(mContext, OTHER_LOCATION, late);
+
+		mCoordinator.onSyncFinished(token, Arrays.asList(LOCATION, OTHER_LOCATION), Arrays.asList(LOCATION, OTHER_LOCATION));
+
+		assertTrue("Error: early caller not notified", early.await());
+		assertTrue("Error: a sync started before the request shouldn't complete it",
+		           mCoordinator.isSyncInFlight(OTHER_LOCATION));
+
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(OTHER_LOCATION),
+		                            Collections.singletonList(OTHER_LOCATION));
+		assertTrue("Error: late caller not notified by the next sync", late.await());
+	}
+
+	public void testRevalidationJoinsRefresh() throws Throwable {
+		RecordingListener listener = new RecordingListener();
+		assertTrue("Error: refresh should start a sync", mCoordinator.requestSync(mContext, LOCATION, listener));
+		assertFalse("Error: a revalidation should join the refresh", mCoordinator.requestRevalidation(mContext, LOCATION));
+		assertEquals("Error: more than one sync started", 1, mCoordinator.mStartedSyncs);
+		assertEquals("Error: no manual sync started", 1, mCoordinator.mStartedManualSyncs);
+
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(LOCATION),
+		                            Collections.singletonList(LOCATION));
+		assertTrue("Error: refresh caller not notified", listener.await());
+	}
+
+	public void testRefreshDuringRevalidationSyncsManually() throws Throwable {
+		RecordingListener listener = new RecordingListener();
+		RecordingListener joining = new RecordingListener();
+		assertTrue("Error: revalidation should start a sync", mCoordinator.requestRevalidation(mContext, LOCATION));
+		assertFalse("Error: a second revalidation should join the first one",
+		            mCoordinator.requestRevalidation(mContext, LOCATION));
+		// The revalidation is already running when the user pulls to refresh
+		long revalidationToken = mCoordinator.onSyncStarted();
+		assertTrue("Error: a refresh should request a manual sync", mCoordinator.requestSync(mContext, LOCATION, listener));
+		assertFalse("Error: a second refresh should join the manual sync",
+		            mCoordinator.requestSync(mContext, LOCATION, joining));
+		assertEquals("Error: unexpected number of syncs started", 2, mCoordinator.mStartedSyncs);
+		assertEquals("Error: unexpected number of manual syncs started", 1, mCoordinator.mStartedManualSyncs);
+
+		mCoordinator.onSyncFinished(revalidationToken, Collections.singletonList(LOCATION), Collections.singletonList(LOCATION));
+		assertTrue("Error: the revalidation completed the refresh", mCoordinator.isSyncInFlight(LOCATION));
+
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(LOCATION),
+		                            Collections.singletonList(LOCATION));
+		assertTrue("Error: refresh caller not notified by the manual sync", listener.await());
+		assertTrue("Error: joining caller not notified by the manual sync", joining.await());
+	}
+
+	public void testOtherLocationSyncLeavesRequestInFlight() throws Throwable {
+		RecordingListener listener = new RecordingListener();
+		mCoordinator.requestSync(mContext, LOCATION, listener);
+		mCoordinator.requestRevalidation(mContext, OTHER_LOCATION);
+
+		// The revalidation of the other location finishes while the refresh is still queued
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(OTHER_LOCATION),
+		                            Collections.singletonList(OTHER_LOCATION));
+		assertFalse("Error: the sync of another location completed the refresh", listener.await(500));
+		assertTrue("Error: refresh no longer reported in flight", mCoordinator.isSyncInFlight(LOCATION));
+		assertFalse("Error: revalidation still reported in flight", mCoordinator.isSyncInFlight(OTHER_LOCATION));
+
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(LOCATION),
+		                            Collections.singletonList(LOCATION));
+		assertTrue("Error: refresh caller not notified", listener.await());
+		assertTrue("Error: refresh reported failed", listener.mSuccess);
+	}
+
+	public void testUnsyncedLocationFails() throws Throwable {
+		RecordingListener listener = new RecordingListener();
+		mCoordinator.requestSync(mContext, LOCATION, listener);
+		mCoordinator.onSyncFinished(mCoordinator.onSyncStarted(), Collections.singletonList(LOCATION),
+		                            Collections.<String>emptyList());
+
+		assertTrue("Error: caller not notified", listener.await());
+		assertFalse("Error: failed sync reported successful", listener.mSuccess);
+	}
+
+	private static class CountingCoordinator extends SyncCoordinator {
+		int mStartedSyncs;
+		int mStartedManualSyncs;
+
+		@Override
+		void startSync(Context context, String location, boolean manual) {
+			mStartedSyncs++;
+			if (manual) {
+				mStartedManualSyncs++;
+			}
+		}
+	}
+
+	private static class RecordingListener implements SyncCoordinator.Listener {
+		final CountDownLatch mFinished = new CountDownLatch(1);
+		volatile boolean mSuccess;
+
+		@Override
+		public void onSyncFinished(String location, boolean success) {
+			mSuccess = success;
+			mFinished.countDown();
+		}
+
+		boolean await() throws InterruptedException {
+			return await(5000);
+		}
+
+		boolean await(long timeoutMillis) throws InterruptedException {
+			return mFinished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.List;
+import java.util.Set;
+
+/*
+	Feeds network and battery conditions to the policy through a fake connectivity source and checks its decisions:
+	manual refreshes always run, background syncs wait for an unmetered network and a healthy battery, but not
+	forever, and the locations of deferred syncs are handed to the next sync which runs. Also checks that decisions
+	are recorded.
+ */
+public class TestSyncPolicy extends AndroidTestCase {
+	private static final long START = 1000000;
+
+	private FakeConnectivity mConnectivity;
+	private FakeClockPolicy mPolicy;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		clearPolicy();
+		mConnectivity = new FakeConnectivity();
+		mPolicy = new FakeClockPolicy();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clearPolicy();
+		super.tearDown();
+	}
+
+	public void testUnmeteredNetworkRuns() {
+		assertEquals(SyncPolicy.DECISION_RUN, mPolicy.decide(false, null));
+	}
+
+	public void testManualRefreshIsExpedited() {
+		mConnectivity.mMetered = true;
+		mConnectivity.mRoaming = true;
+		mConnectivity.mBatteryLow = true;
+		assertEquals(SyncPolicy.DECISION_EXPEDITED, mPolicy.decide(true, null));
+	}
+
+	public void testConstrainedConditionsDefer() {
+		mConnectivity.mMetered = true;
+		assertEquals(SyncPolicy.DECISION_DEFER_METERED, mPolicy.decide(false, null));
+		mConnectivity.mRoaming = true;
+		assertEquals(SyncPolicy.DECISION_DEFER_ROAMING, mPolicy.decide(false, null));
+		mConnectivity.mMetered = false;
+		mConnectivity.mRoaming = false;
+		mConnectivity.mBatteryLow = true;
+		assertEquals(SyncPolicy.DECISION_DEFER_BATTERY, mPolicy.decide(false, null));
+		mConnectivity.mConnected = false;
+		assertEquals(SyncPolicy.DECISION_DEFER_OFFLINE, mPolicy.decide(false, null));
+		assertTrue(SyncPolicy.isDeferral(SyncPolicy.DECISION_DEFER_OFFLINE));
+		assertFalse(SyncPolicy.isDeferral(SyncPolicy.DECISION_OVERDUE));
+	}
+
+	public void testDeferralIsBounded() {
+		mConnectivity.mMetered = true;
+		assertEquals(SyncPolicy.DECISION_DEFER_METERED, mPolicy.decide(false, null));
+		mPolicy.mNow += SyncPolicy.MAX_DEFERRAL - 1;
+		assertEquals(SyncPolicy.DECISION_DEFER_METERED, mPolicy.decide(false, null));
+		mPolicy.mNow += 1;
+		assertEquals("Error: a sync deferred for too long should run", SyncPolicy.DECISION_OVERDUE,
+		             mPolicy.decide(false, null));
+		// The sync ran, deferral starts over
+		assertEquals(SyncPolicy.DECISION_DEFER_METERED, mPolicy.decide(false, null));
+	}
+
+	public void testDeferredLocationsArePending() {
+		mConnectivity.mMetered = true;
+		mPolicy.decide(false, "Wroclaw");
+		mPolicy.decide(false, "94043");
+		mPolicy.decide(false, "Wroclaw");
+		Set<String> pending = new SyncPolicy(mContext, mConnectivity).getPendingLocations();
+		assertEquals("Error: pending locations not persisted", 2, pending.size());
+
+		mConnectivity.mMetered = false;
+		assertEquals(SyncPolicy.DECISION_RUN, mPolicy.decide(false, null));
+		pending = mPolicy.takePendingLocations();
+		assertTrue("Error: pending locations lost", pending.contains("Wroclaw") && pending.contains("94043"));
+		assertTrue("Error: pending locations handed over twice", mPolicy.takePendingLocations().isEmpty());
+	}
+
+	public void testDecisionsRecorded() {
+		mPolicy.decide(false, null);
+		mConnectivity.mMetered = true;
+		mPolicy.decide(false, "Mountain View, CA");
+		List<String> decisions = mPolicy.getDecisions();
+		assertEquals("Error: decisions not recorded", 2, decisions.size());
+		assertTrue(decisions.get(0).contains("," + SyncPolicy.DECISION_RUN + ","));
+		String[] fields = decisions.get(1).split(",");
+		assertEquals("Error: a location shouldn't add fields", 9, fields.length);
+		assertEquals(SyncPolicy.DECISION_DEFER_METERED, fields[1]);
+
+		for (int i = 0; i < SyncPolicy.MAX_DECISIONS + 10; i++) {
+			mPolicy.decide(true, null);
+		}
+		assertEquals("Error: recorded decisions not bounded", SyncPolicy.MAX_DECISIONS, mPolicy.getDecisions().size());
+	}
+
+	private void clearPolicy() {
+		mContext.getSharedPreferences(SyncPolicy.PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+	}
+
+	private static class FakeConnectivity implements SyncPolicy.ConnectivitySource {
+		boolean mConnected = true;
+		boolean mMetered;
+		boolean mRoaming;
+		boolean mBatteryLow;
+
+		@Override
+		public boolean isConnected() {
+			return mConnected;
+		}
+
+		@Override
+		public boolean isMetered() {
+			return mMetered;
+		}
+
+		@Override
+		public boolean isRoaming() {
+			return mRoaming;
+		}
+
+		@Override
+		public boolean isBatteryLow() {
+			return mBatteryLow;
+		}
+	}
+
+	private class FakeClockPolicy extends SyncPolicy {
+		long mNow = START;
+
+		FakeClockPolicy() {
+			super(mContext, mConnectivity);
+		}
+
+		@Override
+		long now() {
+			return mNow;
+		}
+	}
+}
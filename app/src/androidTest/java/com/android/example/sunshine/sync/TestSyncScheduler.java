@@ -0,0 +1,84 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/*
+	Feeds sync outcomes to the scheduler and checks the direction and bounds of the interval it picks,
+	and that its decisions are recorded.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+	private SyncScheduler mScheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		clearSchedule();
+		mScheduler = new SyncScheduler(mContext);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		clearSchedule();
+		super.tearDown();
+	}
+
+	public void testDefaultInterval() {
+		assertEquals("Error: unexpected initial interval", SyncScheduler.DEFAULT_SYNC_INTERVAL, mScheduler.getSyncInterval());
+		assertEquals("Error: flex time should be a third of the interval",
+		             SyncScheduler.DEFAULT_SYNC_INTERVAL / 3, mScheduler.getSyncFlexTime());
+	}
+
+	public void testVolatileForecastsShortenInterval() {
+		int interval = mScheduler.onSyncFinished(2, 2);
+		assertTrue("Error: changing forecasts should shorten the interval", interval < SyncScheduler.DEFAULT_SYNC_INTERVAL);
+		assertEquals("Error: interval not persisted", interval, new SyncScheduler(mContext).getSyncInterval());
+	}
+
+	public void testStableForecastsLengthenInterval() {
+		int interval = mScheduler.onSyncFinished(2, 0);
+		assertTrue("Error: stable forecasts should lengthen the interval", interval > SyncScheduler.DEFAULT_SYNC_INTERVAL);
+	}
+
+	public void testActiveUseShortensInterval() {
+		SyncScheduler.recordActiveUse(mContext);
+		int interval = mScheduler.onSyncFinished(2, 0);
+		assertTrue("Error: active use should shorten the interval", interval < SyncScheduler.DEFAULT_SYNC_INTERVAL);
+	}
+
+	public void testFailedSyncKeepsInterval() {
+		assertEquals("Error: a sync without data should not change the interval",
+		             SyncScheduler.DEFAULT_SYNC_INTERVAL, mScheduler.onSyncFinished(0, 0));
+	}
+
+	public void testIntervalBounds() {
+		for (int i = 0; i < 20; i++) {
+			mScheduler.onSyncFinished(1, 1);
+		}
+		assertEquals("Error: interval went below its minimum", SyncScheduler.MIN_SYNC_INTERVAL, mScheduler.getSyncInterval());
+
+		for (int i = 0; i < 20; i++) {
+			mScheduler.onSyncFinished(1, 0);
+		}
+		assertEquals("Error: interval went above its maximum", SyncScheduler.MAX_SYNC_INTERVAL, mScheduler.getSyncInterval());
+	}
+
+	public void testDecisionsRecorded() {
+		mScheduler.onSyncFinished(2, 2);
+		List<String> decisions = mScheduler.getDecisions();
+		assertEquals("Error: decision not recorded", 1, decisions.size());
+		assertTrue("Error: decision doesn't hold its reason",
+		           decisions.get(0).contains("," + SyncScheduler.REASON_VOLATILE + ","));
+
+		for (int i = 0; i < SyncScheduler.MAX_DECISIONS + 20; i++) {
+			mScheduler.onSyncFinished(1, 0);
+		}
+		assertEquals("Error: decision log not bounded", SyncScheduler.MAX_DECISIONS, mScheduler.getDecisions().size());
+	}
+
+	private void clearSchedule() {
+		mContext.getSharedPreferences(SyncScheduler.PREFERENCES_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+	}
+}
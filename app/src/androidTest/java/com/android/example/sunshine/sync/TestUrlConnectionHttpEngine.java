@@ -0,0 +1,181 @@
+package com.android.example.sunshine.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.example.sunshine.utils.StubHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+	Sends requests to a local stub server and checks, through the number of connections the server accepted,
+	that the engine keeps connections alive, reporting how many requests reused one, and that it enforces its
+	timeouts, follows redirects, goes through the proxy the system selects and hands error responses back.
+ */
+public class TestUrlConnectionHttpEngine extends AndroidTestCase {
+	private static final String LOG_TAG = TestUrlConnectionHttpEngine.class.getSimpleName();
+	private static final String PATH = "/data/2.5/forecast/daily";
+	private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+	private static final String PROXIED_HOST = "forecast.invalid";
+
+	private StubHttpServer mServer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mServer = new StubHttpServer();
+		mServer.setBody(TestForecastParser.PAYLOAD_WROCLAW);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.shutdown();
+		super.tearDown();
+	}
+
+	public void testConnectionReuse() throws Throwable {
+		HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+		for (int i = 0; i < 5; i++) {
+			assertEquals("Error: unexpected body", TestForecastParser.PAYLOAD_WROCLAW, fetch(engine));
+		}
+
+		assertEquals("Error: connections were not reused", 1, mServer.getConnectionCount());
+		assertEquals("Error: unexpected request count", 5, engine.getRequestCount());
+		assertEquals("Error: unexpected reused connection count", 4, mServer.getReusedConnectionCount());
+		Log.i(LOG_TAG, String.format("%d requests, %d reused a connection",
+		                             engine.getRequestCount(),
+		                             mServer.getReusedConnectionCount()));
+	}
+
+	public void testChunkedBodyReuse() throws Throwable {
+		mServer.setChunkedEnabled(true);
+		HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+		assertEquals("Error: chunked body not decoded", TestForecastParser.PAYLOAD_WROCLAW, fetch(engine));
+		assertEquals("Error: chunked body not decoded", TestForecastParser.PAYLOAD_WROCLAW, fetch(engine));
+
+		assertEquals("Error: connection not reused after a chunked body", 1, mServer.getConnectionCount());
+	}
+
+	public void testStaleConnectionRetried() throws Throwable {
+		HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+		fetch(engine);
+		// the server drops the connection while it is idle, the next request must transparently reconnect
+		mServer.closeConnections();
+		Thread.sleep(100);
+
+		assertEquals("Error: unexpected body", TestForecastParser.PAYLOAD_WROCLAW, fetch(engine));
+		assertEquals("Error: no new connection after the idle one was dropped", 2, mServer.getConnectionCount());
+		assertEquals("Error: a dropped connection counted as reused", 0, mServer.getReusedConnectionCount());
+	}
+
+	public void testTotalTimeout() throws Throwable {
+		mServer.setLatency(2000);
+		HttpEngine engine = new UrlConnectionHttpEngine.Builder().setTotalTimeout(500).build();
+		long start = System.currentTimeMillis();
+		try {
+			fetch(engine);
+			fail("Error: the total timeout was not enforced");
+		}
+		catch (SocketTimeoutException e) {
+			assertTrue("Error: the request took longer than its total timeout",
+			           System.currentTimeMillis() - start < 1500);
+		}
+	}
+
+	public void testRedirectFollowed() throws Throwable {
+		StubHttpServer redirectingServer = new StubHttpServer();
+		try {
+			redirectingServer.setStatusCode(HttpURLConnection.HTTP_MOVED_TEMP);
+			redirectingServer.setResponseHeader("Location", mServer.getUrl(PATH));
+			HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+
+			assertEquals("Error: redirect not followed", TestForecastParser.PAYLOAD_WROCLAW,
+			             fetch(engine, redirectingServer.getUrl(PATH)));
+			assertEquals("Error: redirected request not sent", 1, mServer.getRequestCount());
+		}
+		finally {
+			redirectingServer.shutdown();
+		}
+	}
+
+	public void testProxySelectorHonored() throws Throwable {
+		final ProxySelector defaultSelector = ProxySelector.getDefault();
+		final URL serverUrl = new URL(mServer.getUrl(PATH));
+		final Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(serverUrl.getHost(), serverUrl.getPort()));
+		ProxySelector.setDefault(new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				return Collections.singletonList(PROXIED_HOST.equals(uri.getHost()) ? proxy : Proxy.NO_PROXY);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress address, IOException e) {
+				// nothing to fall back to
+			}
+		});
+		try {
+			HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+			// The host doesn't resolve, only the proxy can answer
+			assertEquals("Error: unexpected body", TestForecastParser.PAYLOAD_WROCLAW,
+			             fetch(engine, "http://" + PROXIED_HOST + PATH));
+			assertEquals("Error: request not sent through the proxy", "http://" + PROXIED_HOST + PATH,
+			             mServer.getLastRequestPath());
+		}
+		finally {
+			ProxySelector.setDefault(defaultSelector);
+		}
+	}
+
+	public void testErrorResponse() throws Throwable {
+		mServer.setStatusCode(HttpURLConnection.HTTP_NOT_FOUND);
+		mServer.setBody(TestForecastParser.PAYLOAD_NOT_FOUND);
+		HttpEngine engine = new UrlConnectionHttpEngine.Builder().build();
+		HttpEngine.Response response = engine.get(new URL(mServer.getUrl(PATH)), NO_HEADERS);
+		try {
+			assertEquals("Error: unexpected status", HttpURLConnection.HTTP_NOT_FOUND, response.getStatusCode());
+			assertEquals("Error: error body not readable", TestForecastParser.PAYLOAD_NOT_FOUND,
+			             readFully(response.getBody()));
+		}
+		finally {
+			response.close();
+		}
+	}
+
+	private String fetch(HttpEngine engine) throws IOException {
+		return fetch(engine, mServer.getUrl(PATH));
+	}
+
+	private String fetch(HttpEngine engine, String url) throws IOException {
+		HttpEngine.Response response = engine.get(new URL(url), NO_HEADERS);
+		try {
+			assertEquals("Error: unexpected status", 200, response.getStatusCode());
+			return readFully(response.getBody());
+		}
+		finally {
+			response.close();
+		}
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,292 @@
+package com.android.example.sunshine.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal HTTP/1.1 server running on the loopback interface, so the sync download path can be tested without
+ * network access. It answers every GET request with the same configurable response and keeps connections alive
+ * unless the client asks otherwise.
+ */
+public class StubHttpServer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final ServerSocket mServerSocket;
+	private final AtomicInteger mRequestCount = new AtomicInteger();
+	private final AtomicInteger mConnectionCount = new AtomicInteger();
+	private final Set<Socket> mOpenSockets = Collections.synchronizedSet(new HashSet<Socket>());
+	private final Map<String, String> mResponseHeaders = Collections.synchronizedMap(new HashMap<String, String>());
+
+	private volatile String mBody = "";
+	private volatile int mStatusCode = 200;
+	private volatile boolean mGzipEnabled = true;
+	private volatile boolean mChunkedEnabled;
+	private volatile long mLatencyMillis;
+	private volatile int mSlowResponseInterval;
+	private volatile long mSlowLatencyMillis;
+	private volatile long mLastResponseBytes;
+	private volatile String mLastRequestPath;
+	private volatile Map<String, String> mLastRequestHeaders = Collections.emptyMap();
+
+	public StubHttpServer() throws IOException {
+		mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		}, "StubHttpServer");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/** @return the absolute url of the given path on this server, e.g. {@code getUrl("/forecast?q=London")} */
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+	}
+
+	public void setBody(String body) {
+		mBody = body;
+	}
+
+	public void setStatusCode(int statusCode) {
+		mStatusCode = statusCode;
+	}
+
+	/** Whether the body is gzip encoded for clients sending {@code Accept-Encoding: gzip}. Enabled by default. */
+	public void setGzipEnabled(boolean gzipEnabled) {
+		mGzipEnabled = gzipEnabled;
+	}
+
+	/** Whether the body is sent with {@code Transfer-Encoding: chunked} instead of a Content-Length. */
+	public void setChunkedEnabled(boolean chunkedEnabled) {
+		mChunkedEnabled = chunkedEnabled;
+	}
+
+	/** Delays every response by the given time, to simulate a slow upstream. */
+	public void setLatency(long latencyMillis) {
+		mLatencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Delays every {@code interval}-th response by the given time instead of the usual latency, to simulate the tail
+	 * latency of an upstream; 0 disables it.
+	 */
+	public void setSlowResponses(int interval, long latencyMillis) {
+		mSlowResponseInterval = interval;
+		mSlowLatencyMillis = latencyMillis;
+	}
+
+	public void setResponseHeader(String name, String value) {
+		if (value == null) {
+			mResponseHeaders.remove(name);
+		}
+		else {
+			mResponseHeaders.put(name, value);
+		}
+	}
+
+	public int getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/** @return the number of TCP connections accepted; lower than the request count when connections are reused. */
+	public int getConnectionCount() {
+		return mConnectionCount.get();
+	}
+
+	/** @return the number of requests served over a connection which had already served one. */
+	public int getReusedConnectionCount() {
+		return mRequestCount.get() - mConnectionCount.get();
+	}
+
+	/** @return size in bytes of the last response body as it was sent, i.e. after compression. */
+	public long getLastResponseBytes() {
+		return mLastResponseBytes;
+	}
+
+	public String getLastRequestPath() {
+		return mLastRequestPath;
+	}
+
+	/** @return the value of a header of the last request, header names are case insensitive. */
+	public String getLastRequestHeader(String name) {
+		return mLastRequestHeaders.get(name.toLowerCase(Locale.US));
+	}
+
+	/** Closes the connections currently open, as a server dropping idle keep-alive connections would. */
+	public void closeConnections() {
+		synchronized (mOpenSockets) {
+			for (Socket socket : mOpenSockets) {
+				try {
+					socket.close();
+				}
+				catch (IOException e) {
+					// already closed
+				}
+			}
+			mOpenSockets.clear();
+		}
+	}
+
+	public void shutdown() {
+		try {
+			mServerSocket.close();
+		}
+		catch (IOException e) {
+			// nothing to do, the server is going away anyway
+		}
+	}
+
+	private void acceptConnections() {
+		while (!mServerSocket.isClosed()) {
+			try {
+				final Socket socket = mServerSocket.accept();
+				mConnectionCount.incrementAndGet();
+				mOpenSockets.add(socket);
+				Thread connectionThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "StubHttpServer connection");
+				connectionThread.setDaemon(true);
+				connectionThread.start();
+			}
+			catch (IOException e) {
+				// the server socket has been closed
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			boolean keepAlive = true;
+			while (keepAlive) {
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0) {
+					break;
+				}
+				Map<String, String> headers = new HashMap<>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+					}
+				}
+				String[] requestParts = requestLine.split(" ");
+				mLastRequestPath = requestParts.length > 1 ? requestParts[1] : null;
+				mLastRequestHeaders = headers;
+				final int requestNumber = mRequestCount.incrementAndGet();
+				keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+
+				final int slowResponseInterval = mSlowResponseInterval;
+				final long latency = slowResponseInterval > 0 && requestNumber % slowResponseInterval == 0 ?
+				                     mSlowLatencyMillis :
+				                     mLatencyMillis;
+				if (latency > 0) {
+					Thread.sleep(latency);
+				}
+				writeResponse(out, headers, keepAlive);
+			}
+		}
+		catch (IOException | InterruptedException e) {
+			// the client went away
+		}
+		finally {
+			mOpenSockets.remove(socket);
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+
+	private void writeResponse(OutputStream out, Map<String, String> requestHeaders, boolean keepAlive) throws IOException {
+		final int statusCode = mStatusCode;
+		byte[] body = statusCode == 304 ? new byte[0] : mBody.getBytes(UTF_8);
+		String acceptEncoding = requestHeaders.get("accept-encoding");
+		boolean compressed = mGzipEnabled && body.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip");
+		if (compressed) {
+			ByteArrayOutputStream compressedBody = new ByteArrayOutputStream();
+			GZIPOutputStream gzipStream = new GZIPOutputStream(compressedBody);
+			gzipStream.write(body);
+			gzipStream.close();
+			body = compressedBody.toByteArray();
+		}
+		mLastResponseBytes = body.length;
+
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(statusCode).append(' ').append(statusCode == 304 ? "Not Modified" : "OK").append("\r\n");
+		head.append("Content-Type: application/json; charset=utf-8\r\n");
+		final boolean chunked = mChunkedEnabled && body.length > 0;
+		if (chunked) {
+			head.append("Transfer-Encoding: chunked\r\n");
+		}
+		else {
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		if (compressed) {
+			head.append("Content-Encoding: gzip\r\n");
+		}
+		if (!keepAlive) {
+			head.append("Connection: close\r\n");
+		}
+		synchronized (mResponseHeaders) {
+			for (Map.Entry<String, String> header : mResponseHeaders.entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+		head.append("\r\n");
+		out.write(head.toString().getBytes(UTF_8));
+		if (chunked) {
+			// a few small chunks, so clients have to stitch them together
+			final int chunkSize = Math.max(1, body.length / 3);
+			for (int offset = 0; offset < body.length; offset += chunkSize) {
+				int length = Math.min(chunkSize, body.length - offset);
+				out.write((Integer.toHexString(length) + "\r\n").getBytes(UTF_8));
+				out.write(body, offset, length);
+				out.write("\r\n".getBytes(UTF_8));
+			}
+			out.write("0\r\n\r\n".getBytes(UTF_8));
+		}
+		else {
+			out.write(body);
+		}
+		out.flush();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			if (c != '\r') {
+				line.append((char) c);
+			}
+		}
+		return (c == -1 && line.length() == 0) ? null : line.toString();
+	}
+}
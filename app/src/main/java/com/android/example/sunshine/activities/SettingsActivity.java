@@ -28,6 +28,8 @@ public class SettingsActivity extends PreferenceActivity implements Preference.O
 		bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_location)));
 		bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_units)));
 		bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_forecast_size)));
+		bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_sync_locations)));
+		bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_key_freshness_budget)));
 	}
 
 	/**
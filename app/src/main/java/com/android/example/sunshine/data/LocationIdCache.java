@@ -0,0 +1,84 @@
+package com.android.example.sunshine.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of location row ids by location setting, so the sync doesn't ask the provider for the id of a
+ * location it has already seen. The least recently used entries are dropped beyond {@link #MAX_SIZE}.
+ * <p/>
+ * {@link WeatherProvider} clears the cache whenever locations are deleted or their setting or id change. An id
+ * looked up before such a change is not cached, see {@link #put(String, long, long)}.
+ */
+public final class LocationIdCache {
+	static final int MAX_SIZE = 32;
+
+	private static final LocationIdCache sInstance = new LocationIdCache(MAX_SIZE);
+
+	private final Map<String, Long> mIds;
+	private long mGeneration;
+	private long mHitCount;
+	private long mMissCount;
+
+	LocationIdCache(final int maxSize) {
+		mIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public static LocationIdCache getInstance() {
+		return sInstance;
+	}
+
+	/** @return the row id of the location, -1 if it isn't cached. */
+	public synchronized long get(String locationSetting) {
+		Long id = mIds.get(locationSetting);
+		if (id == null) {
+			mMissCount++;
+			return -1;
+		}
+		mHitCount++;
+		return id;
+	}
+
+	/**
+	 * @return the current generation of the cache, to be taken before looking an id up in the database and handed to
+	 * {@link #put(String, long, long)}.
+	 */
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Caches the row id of a location, unless the cache has been invalidated since the id was looked up, in which case
+	 * the id may already be stale.
+	 *
+	 * @param generation generation of the cache before the id was looked up
+	 */
+	public synchronized void put(String locationSetting, long id, long generation) {
+		if (generation == mGeneration) {
+			mIds.put(locationSetting, id);
+		}
+	}
+
+	/** Forgets every cached id; called by the provider when locations are deleted or change. */
+	public synchronized void invalidate() {
+		mIds.clear();
+		mGeneration++;
+	}
+
+	public synchronized int size() {
+		return mIds.size();
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+}
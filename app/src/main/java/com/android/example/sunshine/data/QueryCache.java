@@ -0,0 +1,236 @@
+package com.android.example.sunshine.data;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded in-memory cache of the results of the forecast queries of {@link WeatherProvider}, so a loader restarted
+ * while the data didn't change, e.g. after a unit change, gets its rows back without running the join again. Results
+ * are kept as plain rows and served as {@link MatrixCursor}s. The least recently used results are dropped beyond the
+ * maximum size, an estimate of the memory the rows take.
+ * <p/>
+ * Every result belongs to a location. The provider invalidates the results of the locations its writes touched once
+ * the writes are committed; a result read before such an invalidation is not cached, see
+ * {@link #put(String, String, Cursor, long)}.
+ */
+public final class QueryCache {
+	// A single result may take at most this fraction of the cache, so a large one doesn't flush the others
+	private static final int MAX_RESULT_FRACTION = 4;
+	// Estimated bytes taken by a result besides its rows, by a row besides its values, and by a value besides its data
+	private static final int RESULT_OVERHEAD = 128;
+	private static final int ROW_OVERHEAD = 16;
+	private static final int VALUE_OVERHEAD = 16;
+
+	private final LinkedHashMap<String, Result> mResults = new LinkedHashMap<>(16, 0.75f, true);
+	private long mMaxSize;
+	private long mSize;
+	private long mGeneration;
+	private long mHitCount;
+	private long mMissCount;
+
+	QueryCache(long maxSize) {
+		mMaxSize = maxSize;
+	}
+
+	/** Sets the maximum size of the cache, in bytes, dropping results beyond it; 0 disables the cache. */
+	public synchronized void setMaxSize(long maxSize) {
+		mMaxSize = maxSize;
+		trim();
+	}
+
+	/** @return a cursor over the cached result of the query, null if it isn't cached. */
+	public Cursor get(String key) {
+		final Result result;
+		synchronized (this) {
+			result = mResults.get(key);
+			if (result == null) {
+				mMissCount++;
+				return null;
+			}
+			mHitCount++;
+		}
+		return result.newCursor();
+	}
+
+	/**
+	 * @return the current generation of the cache, to be taken before running a query and handed to
+	 * {@link #put(String, String, Cursor, long)}.
+	 */
+	public synchronized long getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Caches the result of a query, read from its cursor, unless the cache has been invalidated since the query ran, in
+	 * which case the result may already be stale, or the result is too large. Before Honeycomb nothing is cached, the
+	 * values can't be copied with their types.
+	 *
+	 * @param locationSetting location the result belongs to
+	 * @param generation      generation of the cache before the query ran
+	 *
+	 * @return a cursor over the cached result, in place of the given one which is then closed, or the given one,
+	 * rewound, if the result wasn't cached
+	 */
+	public Cursor put(String key, String locationSetting, Cursor cursor, long generation) {
+		final long maxResultSize;
+		synchronized (this) {
+			if (generation != mGeneration || mMaxSize <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+				return cursor;
+			}
+			maxResultSize = mMaxSize / MAX_RESULT_FRACTION;
+		}
+		final Result result = read(key, locationSetting, cursor, maxResultSize);
+		if (result == null) {
+			cursor.moveToPosition(-1);
+			return cursor;
+		}
+		cursor.close();
+		synchronized (this) {
+			if (generation == mGeneration && mMaxSize > 0) {
+				Result previous = mResults.put(key, result);
+				if (previous != null) {
+					mSize -= previous.mSize;
+				}
+				mSize += result.mSize;
+				trim();
+			}
+		}
+		return result.newCursor();
+	}
+
+	/** Copies the rows of the cursor, unless they take more than {@code maxSize}, in which case null is returned. */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Result read(String key, String locationSetting, Cursor cursor, long maxSize) {
+		final String[] columns = cursor.getColumnNames();
+		final List<Object[]> rows = new ArrayList<>(cursor.getCount());
+		long size = RESULT_OVERHEAD + 2 * key.length();
+		for (String column : columns) {
+			size += VALUE_OVERHEAD + 2 * column.length();
+		}
+		cursor.moveToPosition(-1);
+		while (cursor.moveToNext()) {
+			Object[] row = new Object[columns.length];
+			size += ROW_OVERHEAD + VALUE_OVERHEAD * columns.length;
+			for (int i = 0; i < columns.length; i++) {
+				switch (cursor.getType(i)) {
+					case Cursor.FIELD_TYPE_INTEGER:
+						row[i] = cursor.getLong(i);
+						break;
+					case Cursor.FIELD_TYPE_FLOAT:
+						row[i] = cursor.getDouble(i);
+						break;
+					case Cursor.FIELD_TYPE_STRING:
+						row[i] = cursor.getString(i);
+						size += 2 * ((String) row[i]).length();
+						break;
+					case Cursor.FIELD_TYPE_BLOB:
+						row[i] = cursor.getBlob(i);
+						size += ((byte[]) row[i]).length;
+						break;
+					default:
+						row[i] = null;
+				}
+			}
+			rows.add(row);
+			if (size > maxSize) {
+				return null;
+			}
+		}
+		return new Result(locationSetting, columns, rows, size);
+	}
+
+	/**
+	 * Drops the cached results of the locations, every result if {@code locationSettings} is null. Called by the
+	 * provider once the writes which touched the locations are committed.
+	 */
+	public synchronized void invalidate(Collection<String> locationSettings) {
+		invalidate(locationSettings, null);
+	}
+
+	/**
+	 * Drops the cached results of the locations which hold the column, like {@link #invalidate(Collection)} when the
+	 * column is null. Called when a write only changed that column.
+	 */
+	public synchronized void invalidate(Collection<String> locationSettings, String column) {
+		Iterator<Result> results = mResults.values().iterator();
+		while (results.hasNext()) {
+			Result result = results.next();
+			if ((locationSettings == null || locationSettings.contains(result.mLocationSetting)) &&
+			    (column == null || Arrays.asList(result.mColumns).contains(column))) {
+				mSize -= result.mSize;
+				results.remove();
+			}
+		}
+		mGeneration++;
+	}
+
+	private void trim() {
+		Iterator<Result> results = mResults.values().iterator();
+		while (mSize > Math.max(mMaxSize, 0) && results.hasNext()) {
+			mSize -= results.next().mSize;
+			results.remove();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return mResults.isEmpty();
+	}
+
+	public synchronized int getResultCount() {
+		return mResults.size();
+	}
+
+	/** @return the estimated memory taken by the cached results, in bytes. */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	public synchronized long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/** @return the fraction of the lookups which found their result cached, 0 before the first lookup. */
+	public synchronized double getHitRatio() {
+		final long lookups = mHitCount + mMissCount;
+		return lookups > 0 ? (double) mHitCount / lookups : 0;
+	}
+
+	private static final class Result {
+		final String mLocationSetting;
+		final String[] mColumns;
+		final List<Object[]> mRows;
+		final long mSize;
+
+		Result(String locationSetting, String[] columns, List<Object[]> rows, long size) {
+			mLocationSetting = locationSetting;
+			mColumns = columns;
+			mRows = rows;
+			mSize = size;
+		}
+
+		Cursor newCursor() {
+			MatrixCursor cursor = new MatrixCursor(mColumns, mRows.size());
+			for (Object[] row : mRows) {
+				cursor.addRow(row);
+			}
+			return cursor;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.android.example.sunshine.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deletes the rows which fell out of the retention window of their table. Every table has its own {@link Policy}, and
+ * rows are deleted as range deletes on an indexed time column, at most {@link #CHUNK_SIZE} rows per transaction, so
+ * readers and the sync never wait long for the write lock.
+ */
+public class RetentionEngine {
+	static final int CHUNK_SIZE = 500;
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	// Daily forecasts of the past days kept; today's is always kept
+	static final int DAILY_RETENTION_DAYS = 0;
+	// Hours of past 3-hour buckets kept; the current bucket is always kept
+	static final int THREE_HOURLY_RETENTION_HOURS = 0;
+
+	static final Policy[] POLICIES = {
+	  new Policy(WeatherContract.WeatherEntry.CONTENT_URI,
+	             WeatherContract.WeatherEntry.TABLE_NAME,
+	             WeatherContract.WeatherEntry.COLUMN_DATE,
+	             DAY_IN_MILLIS,
+	             DAILY_RETENTION_DAYS * DAY_IN_MILLIS),
+	  new Policy(WeatherContract.ThreeHourlyEntry.CONTENT_URI,
+	             WeatherContract.ThreeHourlyEntry.TABLE_NAME,
+	             WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET,
+	             WeatherContract.ThreeHourlyEntry.BUCKET_LENGTH,
+	             THREE_HOURLY_RETENTION_HOURS * 60 * 60 * 1000L)
+	};
+
+	private final Policy[] mPolicies;
+	private final int mChunkSize;
+
+	public RetentionEngine() {
+		this(POLICIES, CHUNK_SIZE);
+	}
+
+	RetentionEngine(Policy[] policies, int chunkSize) {
+		mPolicies = policies;
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Applies every policy.
+	 *
+	 * @param now current time, in milliseconds since the epoch
+	 *
+	 * @return the outcome of every policy, in the order of the policies
+	 */
+	public List<Result> run(SQLiteDatabase db, long now) {
+		final long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+		final List<Result> results = new ArrayList<>(mPolicies.length);
+		for (Policy policy : mPolicies) {
+			final long start = System.nanoTime();
+			final long usedPagesBefore = getUsedPages(db);
+			final String[] selectionArgs = {Long.toString(policy.getCutoff(now))};
+			int deletedRows = 0;
+			int chunkRows;
+			do {
+				db.beginTransaction();
+				try {
+					chunkRows = db.delete(policy.mTable, policy.mChunkSelection + mChunkSize + ")", selectionArgs);
+					db.setTransactionSuccessful();
+				}
+				finally {
+					db.endTransaction();
+				}
+				deletedRows += chunkRows;
+			} while (chunkRows == mChunkSize);
+			final long reclaimedBytes = Math.max(0, usedPagesBefore - getUsedPages(db)) * pageSize;
+			results.add(new Result(policy, deletedRows, reclaimedBytes, System.nanoTime() - start));
+		}
+		return results;
+	}
+
+	/**
+	 * @return the number of pages holding data; freed pages either go to the free list or, with auto-vacuum, are
+	 * truncated from the file
+	 */
+	private static long getUsedPages(SQLiteDatabase db) {
+		return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) -
+		       DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+	}
+
+	/** Retention window of a table: rows whose time is before the window are deleted. */
+	public static class Policy {
+		private final Uri mUri;
+		private final String mTable;
+		private final String mTimeColumn;
+		private final long mGranularity;
+		private final long mRetention;
+		// Selection of a chunk of expired rows, to be completed with the chunk size; the subquery reads the time index
+		private final String mChunkSelection;
+
+		/**
+		 * @param uri         content uri of the table, notified when rows are deleted
+		 * @param timeColumn  indexed time column of the table, in milliseconds since the epoch
+		 * @param granularity the cutoff is aligned on it, e.g. a day for daily rows, so a row is kept for whole periods
+		 * @param retention   how long past rows are kept, in milliseconds
+		 */
+		Policy(Uri uri, String table, String timeColumn, long granularity, long retention) {
+			mUri = uri;
+			mTable = table;
+			mTimeColumn = timeColumn;
+			mGranularity = granularity;
+			mRetention = retention;
+			mChunkSelection = BaseColumns._ID + " IN (SELECT " + BaseColumns._ID + " FROM " + table +
+			                  " WHERE " + timeColumn + " < ? LIMIT ";
+		}
+
+		public Uri getUri() {
+			return mUri;
+		}
+
+		public String getTable() {
+			return mTable;
+		}
+
+		String getTimeColumn() {
+			return mTimeColumn;
+		}
+
+		/** @return the time before which rows are deleted */
+		long getCutoff(long now) {
+			return now - now % mGranularity - mRetention;
+		}
+	}
+
+	/** Outcome of a policy. */
+	public static class Result {
+		private final Policy mPolicy;
+		private final int mRows;
+		private final long mBytes;
+		private final long mDurationNanos;
+
+		Result(Policy policy, int rows, long bytes, long durationNanos) {
+			mPolicy = policy;
+			mRows = rows;
+			mBytes = bytes;
+			mDurationNanos = durationNanos;
+		}
+
+		public Policy getPolicy() {
+			return mPolicy;
+		}
+
+		/** @return the number of rows deleted */
+		public int getRows() {
+			return mRows;
+		}
+
+		/** @return the size of the database pages the deleted rows freed, in bytes */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getDurationNanos() {
+			return mDurationNanos;
+		}
+	}
+}
@@ -45,6 +45,11 @@ public class WeatherContract {
 	// At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
 	public static final String PATH_WEATHER = "weather";
 	public static final String PATH_LOCATION = "location";
+	public static final String PATH_THREE_HOURLY = "three_hourly";
+	public static final String PATH_SYNC_JOURNAL = "sync_journal";
+	public static final String PATH_PERCENTILES = "percentiles";
+	public static final String PATH_RETENTION = "retention";
+	public static final String PATH_QUERY_CACHE = "query_cache";
 
 	// To make it easy to query for the exact date, we normalize all dates that go into
 	// the database to the start of the the Julian day at UTC.
@@ -75,6 +80,12 @@ public class WeatherContract {
 		public static final String COLUMN_COORD_LAT = "latitude";
 		public static final String COLUMN_COORD_LONG = "longitude";
 
+		/** Whether the location is synced when the sync locations preference is set to flagged locations only. */
+		public static final String COLUMN_SYNC_ENABLED = "sync_enabled";
+
+		/** Time the forecast of the location was last confirmed by the server, in milliseconds since the epoch. */
+		public static final String COLUMN_LAST_SYNCED = "last_synced";
+
 		public static Uri buildLocationUri(long id) {
 			return ContentUris.withAppendedId(CONTENT_URI, id);
 		}
@@ -94,6 +105,12 @@ public class WeatherContract {
 
 		public static final String TABLE_NAME = "weather";
 
+		/**
+		 * Index of the days of every location, in date order. It covers the columns of the forecast list, which is
+		 * then read without touching the table.
+		 */
+		public static final String INDEX_LOCATION_DATE = "weather_location_date";
+
 		/** Column with the foreign key into the location table. */
 		public static final String COLUMN_LOC_KEY = "location_id";
 
@@ -124,6 +141,12 @@ public class WeatherContract {
 		/** Meteorological degrees (e.g, 0 is north, 180 is south). Stored as floats. */
 		public static final String COLUMN_DEGREES = "degrees";
 
+		/**
+		 * Computed column of the weather/* queries: milliseconds since the forecast of the location was last confirmed
+		 * by the server, null if it never was. Only returned when asked for in the projection.
+		 */
+		public static final String COLUMN_STALENESS = "staleness";
+
 
 		public static Uri buildWeatherUri(long id) {
 			return ContentUris.withAppendedId(CONTENT_URI, id);
@@ -178,4 +201,198 @@ public class WeatherContract {
 			return forecastSize;
 		}
 	}
+
+	/**
+	 * Inner class that defines the table contents of the three-hourly forecast table: one row per location and
+	 * 3-hour time bucket. Rows are keyed by (location, bucket), so a time window of a location is a range scan.
+	 */
+	public static final class ThreeHourlyEntry implements BaseColumns {
+		public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_THREE_HOURLY).build();
+
+		// @formatter:off
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_THREE_HOURLY;
+		// @formatter:on
+
+		public static final String TABLE_NAME = "three_hourly";
+
+		/** Index of the buckets of every location, read by the retention of past buckets. */
+		public static final String INDEX_BUCKET = "three_hourly_bucket";
+
+		/** Length of a time bucket, in milliseconds. */
+		public static final long BUCKET_LENGTH = 3 * 60 * 60 * 1000;
+
+		public static final String PARAMETER_NAME_START = "start";
+		public static final String PARAMETER_NAME_END = "end";
+
+		/** Column with the foreign key into the location table. */
+		public static final String COLUMN_LOC_KEY = "location_id";
+
+		/** Start of the time bucket, stored as long in milliseconds since the epoch, a multiple of BUCKET_LENGTH. */
+		public static final String COLUMN_BUCKET = "bucket";
+
+		/** Weather id as returned by API, to identify the icon to be used */
+		public static final String COLUMN_WEATHER_ID = "weather_id";
+
+		/** Short description of the weather, as provided by API (e.g "clear"). */
+		public static final String COLUMN_SHORT_DESC = "short_desc";
+
+		/** Temperature during the bucket (stored as float) */
+		public static final String COLUMN_TEMP = "temp";
+
+		/** Humidity stored as a float representing percentage */
+		public static final String COLUMN_HUMIDITY = "humidity";
+
+		/** Pressure stored as a float */
+		public static final String COLUMN_PRESSURE = "pressure";
+
+		/** Wind speed stored as a float */
+		public static final String COLUMN_WIND_SPEED = "wind";
+
+		/** Meteorological degrees (e.g, 0 is north, 180 is south). Stored as floats. */
+		public static final String COLUMN_DEGREES = "degrees";
+
+		/** @return the start of the time bucket the time falls in. */
+		public static long normalizeBucket(long timeInMillis) {
+			return timeInMillis - timeInMillis % BUCKET_LENGTH;
+		}
+
+		public static Uri buildThreeHourlyLocation(String locationSetting) {
+			return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+		}
+
+		/** @return the uri of the buckets of the location which start within [start, end). */
+		public static Uri buildThreeHourlyLocationWithWindow(String locationSetting, long start, long end) {
+			return CONTENT_URI.buildUpon()
+			                  .appendPath(locationSetting)
+			                  .appendQueryParameter(PARAMETER_NAME_START, Long.toString(normalizeBucket(start)))
+			                  .appendQueryParameter(PARAMETER_NAME_END, Long.toString(end))
+			                  .build();
+		}
+
+		public static String getLocationSettingFromUri(Uri uri) {
+			return uri.getPathSegments().get(1);
+		}
+
+		/** @return the start of the window of the uri, 0 if it has none. */
+		public static long getStartFromUri(Uri uri) {
+			String start = uri.getQueryParameter(PARAMETER_NAME_START);
+			return start != null && start.length() > 0 ? Long.parseLong(start) : 0;
+		}
+
+		/** @return the end of the window of the uri, excluded; Long.MAX_VALUE if it has none. */
+		public static long getEndFromUri(Uri uri) {
+			String end = uri.getQueryParameter(PARAMETER_NAME_END);
+			return end != null && end.length() > 0 ? Long.parseLong(end) : Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Inner class that defines the table contents of the sync journal, which records how long every phase of the
+	 * recent syncs took. Only the most recent entries are kept.
+	 */
+	public static final class SyncJournalEntry implements BaseColumns {
+		public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_JOURNAL).build();
+
+		// @formatter:off
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_JOURNAL;
+		// @formatter:on
+
+		public static final String TABLE_NAME = "sync_journal";
+
+		/** Start time of the sync run, in milliseconds since the epoch; shared by all the entries of a run. */
+		public static final String COLUMN_RUN_ID = "run_id";
+
+		/** Location the phase worked for, null for the phases of the whole run. */
+		public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+		/** One of the PHASE_ constants. */
+		public static final String COLUMN_PHASE = "phase";
+
+		/** Duration of the phase, in microseconds. */
+		public static final String COLUMN_DURATION = "duration_us";
+
+		/** Bytes transferred over the network during the phase, or freed in the database by the old row delete; 0 if none. */
+		public static final String COLUMN_BYTES = "bytes";
+
+		/** Database rows written during the phase, 0 if none. */
+		public static final String COLUMN_ROWS = "rows";
+
+		/** Number of entries of a phase, in the percentiles cursor. */
+		public static final String COLUMN_COUNT = "count";
+
+		/** Median duration of a phase in microseconds, in the percentiles cursor. */
+		public static final String COLUMN_P50 = "p50_us";
+
+		/** 95th percentile of the duration of a phase in microseconds, in the percentiles cursor. */
+		public static final String COLUMN_P95 = "p95_us";
+
+		public static final String PHASE_ACCOUNT_LOOKUP = "account_lookup";
+		public static final String PHASE_CONNECT = "connect";
+		public static final String PHASE_DOWNLOAD = "download";
+		public static final String PHASE_PARSE = "parse";
+		public static final String PHASE_LOCATION_UPSERT = "location_upsert";
+		public static final String PHASE_BULK_INSERT = "bulk_insert";
+		public static final String PHASE_OLD_ROW_DELETE = "old_row_delete";
+		public static final String PHASE_NOTIFICATION = "notification";
+
+		/** @return the uri of the p50 and p95 durations of every phase, over the whole journal. */
+		public static Uri buildPercentilesUri() {
+			return CONTENT_URI.buildUpon().appendPath(PATH_PERCENTILES).build();
+		}
+	}
+
+	/**
+	 * Inner class that defines the retention of old rows. Deleting its uri deletes every row which fell out of the
+	 * retention window of its table, and returns the number of rows deleted; querying it returns the outcome of the
+	 * last run, one row per table.
+	 */
+	public static final class RetentionEntry {
+		public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_RETENTION).build();
+
+		// @formatter:off
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_RETENTION;
+		// @formatter:on
+
+		/** Table the rows were deleted from. */
+		public static final String COLUMN_TABLE = "table_name";
+
+		/** Number of rows deleted. */
+		public static final String COLUMN_ROWS = "rows";
+
+		/** Size of the database pages freed by the deleted rows, in bytes. */
+		public static final String COLUMN_BYTES = "bytes";
+
+		/** Duration of the deletes, in microseconds. */
+		public static final String COLUMN_DURATION = "duration_us";
+	}
+
+	/**
+	 * Inner class that defines the statistics of the provider's cache of forecast query results. Querying its uri
+	 * returns a single row.
+	 */
+	public static final class QueryCacheEntry {
+		public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_QUERY_CACHE).build();
+
+		// @formatter:off
+		public static final String CONTENT_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_QUERY_CACHE;
+		// @formatter:on
+
+		/** Number of queries served from the cache. */
+		public static final String COLUMN_HITS = "hits";
+
+		/** Number of cacheable queries which ran against the database. */
+		public static final String COLUMN_MISSES = "misses";
+
+		/** Fraction of the cacheable queries served from the cache, between 0 and 1. */
+		public static final String COLUMN_HIT_RATIO = "hit_ratio";
+
+		/** Number of cached results. */
+		public static final String COLUMN_RESULTS = "results";
+
+		/** Estimated memory taken by the cached results, in bytes. */
+		public static final String COLUMN_BYTES = "bytes";
+
+		/** Maximum memory the cached results may take, in bytes; 0 when the cache is disabled. */
+		public static final String COLUMN_MAX_BYTES = "max_bytes";
+	}
 }
@@ -15,9 +15,16 @@
  */
 package com.android.example.sunshine.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
 
 /**
@@ -25,67 +32,270 @@ import android.database.sqlite.SQLiteOpenHelper;
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
+	private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 	private static final String DATABASE_NAME = "weather.db";
-	// If you change the database schema, you must increment the database version.
-	private static final int DATABASE_VERSION = 2;
+	// If you change the database schema, you must increment the database version, and add its step to MIGRATIONS.
+	static final int DATABASE_VERSION = 8;
+	// The version of the first release; older databases are recreated
+	static final int OLDEST_MIGRATED_VERSION = 2;
+	// Size the write-ahead log is truncated to after a checkpoint, so a big sync doesn't leave a big file behind
+	static final long WAL_SIZE_LIMIT = 512 * 1024;
+
+	//@formatter:off
+	private static final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+	    // Why AutoIncrement here, and not above?
+	    // Unique keys will be auto-generated in either case.  But for weather
+	    // forecasting, it's reasonable to assume the user will want information
+	    // for a certain date and all dates *following*, so the forecast data
+	    // should be sorted accordingly.
+	    WeatherContract.WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+	    // the ID of the location entry associated with this weather data
+	    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+	    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+	    WeatherContract.WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+	    // Set up the location column as a foreign key to location table.
+	    " FOREIGN KEY (" + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+	    WeatherContract.LocationEntry.TABLE_NAME + " (" + WeatherContract.LocationEntry._ID + "), " +
+	    // To assure the application have just one weather entry per day
+	    // per location, it's created a UNIQUE constraint with REPLACE strategy
+	    " UNIQUE (" + WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+	//@formatter:on
+
+	//@formatter:off
+	private static final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " (" +
+	    WeatherContract.LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+	    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+	    WeatherContract.LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+	    WeatherContract.LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+	    WeatherContract.LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+	    WeatherContract.LocationEntry.COLUMN_SYNC_ENABLED + " INTEGER NOT NULL DEFAULT 0, " +
+	    WeatherContract.LocationEntry.COLUMN_LAST_SYNCED + " INTEGER);";
+	//@formatter:on
+
+	//@formatter:off
+	private static final String SQL_CREATE_THREE_HOURLY_TABLE = "CREATE TABLE " + WeatherContract.ThreeHourlyEntry.TABLE_NAME + " (" +
+	    // No AUTOINCREMENT: rows are replaced on every sync, there's no point in the extra bookkeeping
+	    WeatherContract.ThreeHourlyEntry._ID + " INTEGER PRIMARY KEY, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " INTEGER NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_TEMP + " REAL NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+	    " FOREIGN KEY (" + WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+	    WeatherContract.LocationEntry.TABLE_NAME + " (" + WeatherContract.LocationEntry._ID + "), " +
+	    // Location first: the index behind this constraint serves the time window scans of a location
+	    " UNIQUE (" + WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY + ", " +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + ") ON CONFLICT REPLACE);";
+	//@formatter:on
+
+	//@formatter:off
+	private static final String SQL_CREATE_SYNC_JOURNAL_TABLE = "CREATE TABLE " + WeatherContract.SyncJournalEntry.TABLE_NAME + " (" +
+	    WeatherContract.SyncJournalEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_RUN_ID + " INTEGER NOT NULL, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_PHASE + " TEXT NOT NULL, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+	    WeatherContract.SyncJournalEntry.COLUMN_ROWS + " INTEGER NOT NULL DEFAULT 0);";
+	//@formatter:on
+
+	// The forecast queries look a location up, then range and sort on its dates, which the (date, location)
+	// index behind the UNIQUE constraint can't serve; the retention of past days still uses that one
+	//@formatter:off
+	private static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+	    WeatherContract.WeatherEntry.INDEX_LOCATION_DATE + " ON " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
+	    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", " +
+	    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ")";
+	//@formatter:on
+
+	// Retention deletes past buckets of every location, which the (location, bucket) index can't serve
+	private static final String SQL_CREATE_THREE_HOURLY_BUCKET_INDEX = "CREATE INDEX " +
+	    WeatherContract.ThreeHourlyEntry.INDEX_BUCKET + " ON " + WeatherContract.ThreeHourlyEntry.TABLE_NAME + " (" +
+	    WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + ")";
+
+	/*
+		The schema history, one step per version since the oldest one migrated. A step only alters what its version
+		changed, so the cached forecasts survive an app update instead of every device refetching them at once. The
+		steps may use the statements above as long as the tables they create didn't change since; once one does, its
+		step needs the statement of its own version.
+	 */
+	private static final Migration[] MIGRATIONS = {
+		new Migration(3) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL("ALTER TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " ADD COLUMN " +
+				           WeatherContract.LocationEntry.COLUMN_SYNC_ENABLED + " INTEGER NOT NULL DEFAULT 0");
+			}
+		},
+		new Migration(4) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL(SQL_CREATE_SYNC_JOURNAL_TABLE);
+			}
+		},
+		new Migration(5) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				// Unknown sync time: the locations are stale, served from the cache and revalidated
+				db.execSQL("ALTER TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " ADD COLUMN " +
+				           WeatherContract.LocationEntry.COLUMN_LAST_SYNCED + " INTEGER");
+			}
+		},
+		new Migration(6) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL(SQL_CREATE_THREE_HOURLY_TABLE);
+			}
+		},
+		new Migration(7) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL(SQL_CREATE_THREE_HOURLY_BUCKET_INDEX);
+			}
+		},
+		new Migration(8) {
+			@Override
+			void migrate(SQLiteDatabase db) {
+				db.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+			}
+		},
+	};
 
 	public WeatherDbHelper(Context context) {
-		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+		this(context, DATABASE_NAME);
+	}
+
+	// Opens another database file, as tests do to upgrade databases of older versions
+	WeatherDbHelper(Context context, String name) {
+		super(context, name, null, DATABASE_VERSION);
+		// With a write-ahead log, readers keep reading their snapshot while a sync writes instead of waiting for it
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			setWriteAheadLoggingEnabled(true);
+		}
 	}
 
 	@Override
-	public void onCreate(SQLiteDatabase sqLiteDatabase) {
-		//@formatter:off
-        final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherContract.WeatherEntry.TABLE_NAME + " (" +
-		    // Why AutoIncrement here, and not above?
-		    // Unique keys will be auto-generated in either case.  But for weather
-		    // forecasting, it's reasonable to assume the user will want information
-		    // for a certain date and all dates *following*, so the forecast data
-		    // should be sorted accordingly.
-		    WeatherContract.WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-		    // the ID of the location entry associated with this weather data
-		    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
-		    WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-		    WeatherContract.WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
-		    // Set up the location column as a foreign key to location table.
-		    " FOREIGN KEY (" + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
-		    WeatherContract.LocationEntry.TABLE_NAME + " (" + WeatherContract.LocationEntry._ID + "), " +
-		    // To assure the application have just one weather entry per day
-		    // per location, it's created a UNIQUE constraint with REPLACE strategy
-		    " UNIQUE (" + WeatherContract.WeatherEntry.COLUMN_DATE + ", " +
-		    WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
-        //@formatter:on
-
-		//@formatter:off
-		final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + WeatherContract.LocationEntry.TABLE_NAME + " (" +
-		    WeatherContract.LocationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-		    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
-		    WeatherContract.LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
-		    WeatherContract.LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-		    WeatherContract.LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL);";
-		//@formatter:on
+	public void onOpen(SQLiteDatabase db) {
+		super.onOpen(db);
+		if (!db.isReadOnly()) {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+			    Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+				enableWriteAheadLogging(db);
+			}
+			// The pragma returns the new limit, which execSQL() refuses
+			DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT, null);
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static void enableWriteAheadLogging(SQLiteDatabase db) {
+		db.enableWriteAheadLogging();
+	}
+
+	/**
+	 * Copies the write-ahead log back into the database, as far as the open read snapshots allow, without waiting for
+	 * them. Called once a sync is written, so the log doesn't grow with every sync, nor do the reads going through it.
+	 * SQLite still checkpoints on its own once the log holds 1000 pages.
+	 *
+	 * @return the number of log frames checkpointed, -1 if the database has no write-ahead log
+	 */
+	public static int checkpoint(SQLiteDatabase db) {
+		if (!"wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null))) {
+			return -1;
+		}
+		// PASSIVE, the default, never blocks readers nor the writer
+		Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint", null);
+		try {
+			return cursor.moveToFirst() && cursor.getColumnCount() >= 3 ? cursor.getInt(2) : 0;
+		}
+		finally {
+			cursor.close();
+		}
+	}
 
+	@Override
+	public void onCreate(SQLiteDatabase sqLiteDatabase) {
 		sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
 		sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+		sqLiteDatabase.execSQL(SQL_CREATE_THREE_HOURLY_TABLE);
+		sqLiteDatabase.execSQL(SQL_CREATE_SYNC_JOURNAL_TABLE);
+		sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+		sqLiteDatabase.execSQL(SQL_CREATE_THREE_HOURLY_BUCKET_INDEX);
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-		// This database is only a cache for online data, so its upgrade policy is
-		// to simply to discard the data and start over
-		// Note that this only fires if you change the version number for your database.
-		// It does NOT depend on the version number for your application.
-		// If you want to update the schema without wiping data, commenting out the next 2 lines
-		// should be your top priority before modifying this method.
+		// Runs in the transaction of the upgrade, so a failing step leaves nothing half migrated
+		if (oldVersion >= OLDEST_MIGRATED_VERSION) {
+			try {
+				migrate(sqLiteDatabase, oldVersion, newVersion);
+				return;
+			}
+			catch (SQLException e) {
+				Log.e(LOG_TAG, String.format("migration from version %d failed, recreating the database", oldVersion), e);
+			}
+		}
+		// This database is only a cache for online data, so when its schema can't be migrated
+		// it is discarded and refetched
+		recreate(sqLiteDatabase);
+	}
+
+	@Override
+	public void onDowngrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+		// An older app can't know the schema of a newer one
+		recreate(sqLiteDatabase);
+	}
+
+	/**
+	 * Runs the migration steps from {@code fromVersion} to {@code toVersion}, logging how long each one took.
+	 *
+	 * @throws SQLException if a step failed, or there is no step for a version in between
+	 */
+	static void migrate(SQLiteDatabase db, int fromVersion, int toVersion) {
+		for (int version = fromVersion + 1; version <= toVersion; version++) {
+			final int step = version - OLDEST_MIGRATED_VERSION - 1;
+			if (step < 0 || step >= MIGRATIONS.length || MIGRATIONS[step].mToVersion != version) {
+				throw new SQLException("No migration to version " + version);
+			}
+			final long start = SystemClock.elapsedRealtime();
+			MIGRATIONS[step].migrate(db);
+			Log.i(LOG_TAG, String.format("migrated to version %d in %d ms",
+			                             version, SystemClock.elapsedRealtime() - start));
+		}
+	}
+
+	private void recreate(SQLiteDatabase sqLiteDatabase) {
 		sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherContract.LocationEntry.TABLE_NAME);
 		sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherContract.WeatherEntry.TABLE_NAME);
+		sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherContract.ThreeHourlyEntry.TABLE_NAME);
+		sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherContract.SyncJournalEntry.TABLE_NAME);
 		onCreate(sqLiteDatabase);
 	}
+
+	/** A step of the schema history, from the version before {@code mToVersion} to it. */
+	abstract static class Migration {
+		final int mToVersion;
+
+		Migration(int toVersion) {
+			mToVersion = toVersion;
+		}
+
+		abstract void migrate(SQLiteDatabase db);
+	}
 }
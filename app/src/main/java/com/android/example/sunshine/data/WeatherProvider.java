@@ -17,16 +17,39 @@ package com.android.example.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.example.sunshine.sync.SyncCoordinator;
+import com.android.example.sunshine.utils.Utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class WeatherProvider extends ContentProvider {
 	@SuppressWarnings("unused")
 	private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
@@ -34,9 +57,45 @@ public class WeatherProvider extends ContentProvider {
 	public static final int WEATHER_WITH_LOCATION = 101;
 	public static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
 	public static final int LOCATION = 300;
+	public static final int THREE_HOURLY = 500;
+	public static final int THREE_HOURLY_WITH_LOCATION = 501;
+	public static final int SYNC_JOURNAL = 400;
+	public static final int SYNC_JOURNAL_PERCENTILES = 401;
+	public static final int RETENTION = 600;
+	public static final int QUERY_CACHE = 700;
+	/** Number of the most recent journal entries kept; about a week of hourly syncs of a few locations. */
+	static final int MAX_SYNC_JOURNAL_ENTRIES = 5000;
 	// The URI Matcher used by this content provider.
 	private static final UriMatcher sUriMatcher = buildUriMatcher();
 	private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+	private static final SQLiteQueryBuilder sThreeHourlyByLocationSettingQueryBuilder;
+	// Columns bound by the compiled statements of the weather bulk insert, in this order; the key comes first
+	private static final String[] sWeatherInsertColumns = {
+	  WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+	  WeatherContract.WeatherEntry.COLUMN_DATE,
+	  WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+	  WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+	  WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+	  WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+	  WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+	  WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+	  WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+	  WeatherContract.WeatherEntry.COLUMN_DEGREES
+	};
+	// Number of columns of sWeatherInsertColumns which make the key of a weather row
+	private static final int WEATHER_KEY_COLUMNS = 2;
+	// Columns bound by the compiled insert of the three-hourly bulk insert, in this order
+	private static final String[] sThreeHourlyInsertColumns = {
+	  WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_WEATHER_ID,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_SHORT_DESC,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_TEMP,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_HUMIDITY,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_PRESSURE,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_WIND_SPEED,
+	  WeatherContract.ThreeHourlyEntry.COLUMN_DEGREES
+	};
 	//@formatter:off
 	//location.location_setting = ?
 	private static final String sLocationSettingSelection = WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
@@ -44,6 +103,10 @@ public class WeatherProvider extends ContentProvider {
 	private static final String sLocationSettingWithStartDateSelection = WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 	//location.location_setting = ? AND date = ?
 	private static final String sLocationSettingAndDaySelection = WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+	//location.location_setting = ? AND bucket >= ? AND bucket < ?
+	private static final String sLocationSettingWithBucketWindowSelection = WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " + WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " >= ? AND " + WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " < ?";
+	//weather.location_id = ? AND date = ?
+	private static final String sLocationIdAndDaySelection = WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
 	//@formatter:on
 
 	static {
@@ -57,9 +120,25 @@ public class WeatherProvider extends ContentProvider {
 		                                                "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
 		                                                " = " + WeatherContract.LocationEntry.TABLE_NAME +
 		                                                "." + WeatherContract.LocationEntry._ID);
+
+		//three_hourly INNER JOIN location ON three_hourly.location_id = location._id
+		sThreeHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+		sThreeHourlyByLocationSettingQueryBuilder.setTables(WeatherContract.ThreeHourlyEntry.TABLE_NAME + " INNER JOIN " +
+		                                                    WeatherContract.LocationEntry.TABLE_NAME +
+		                                                    " ON " + WeatherContract.ThreeHourlyEntry.TABLE_NAME +
+		                                                    "." + WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY +
+		                                                    " = " + WeatherContract.LocationEntry.TABLE_NAME +
+		                                                    "." + WeatherContract.LocationEntry._ID);
 	}
 
 	private WeatherDbHelper mOpenHelper;
+	private final RetentionEngine mRetentionEngine = new RetentionEngine();
+	private volatile List<RetentionEngine.Result> mLastRetention = Collections.emptyList();
+	// Changes made by the batch being applied on the thread, notified once the batch is over
+	private final ThreadLocal<BatchChanges> mBatchChanges = new ThreadLocal<>();
+	private final QueryCache mQueryCache = new QueryCache(0);
+	// Locations changed by the batch being applied on the thread, whose cached results are invalidated once it's over
+	private final ThreadLocal<BatchInvalidation> mBatchInvalidation = new ThreadLocal<>();
 
 	static UriMatcher buildUriMatcher() {
 		UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -73,6 +152,18 @@ public class WeatherProvider extends ContentProvider {
 
 		matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
 
+		matcher.addURI(authority, WeatherContract.PATH_THREE_HOURLY, THREE_HOURLY);
+		matcher.addURI(authority, WeatherContract.PATH_THREE_HOURLY + "/*", THREE_HOURLY_WITH_LOCATION);
+
+		matcher.addURI(authority, WeatherContract.PATH_SYNC_JOURNAL, SYNC_JOURNAL);
+		matcher.addURI(authority,
+		               WeatherContract.PATH_SYNC_JOURNAL + "/" + WeatherContract.PATH_PERCENTILES,
+		               SYNC_JOURNAL_PERCENTILES);
+
+		matcher.addURI(authority, WeatherContract.PATH_RETENTION, RETENTION);
+
+		matcher.addURI(authority, WeatherContract.PATH_QUERY_CACHE, QUERY_CACHE);
+
 		return matcher;
 	}
 
@@ -87,8 +178,31 @@ public class WeatherProvider extends ContentProvider {
 		// Here's the switch statement that, given a URI, will determine what kind of request it is,
 		// and query the database accordingly.
 		Log.d(LOG_TAG, String.format("query: uri: %s", uri));
+		final int match = sUriMatcher.match(uri);
+		final String cacheKey = getCacheKey(match, uri, projection, selection, selectionArgs, sortOrder);
+		final long cacheGeneration = mQueryCache.getGeneration();
+		Cursor retCursor = cacheKey != null ? mQueryCache.get(cacheKey) : null;
+		if (retCursor != null) {
+			// Served without the database, but the forecast may still be stale
+			if (match != THREE_HOURLY_WITH_LOCATION) {
+				revalidateIfStale(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+			}
+		}
+		else {
+			retCursor = queryDatabase(match, uri, projection, selection, selectionArgs, sortOrder);
+			if (cacheKey != null) {
+				retCursor = mQueryCache.put(cacheKey, getLocationSettingFromUri(match, uri), retCursor, cacheGeneration);
+			}
+		}
+		if (getContext() != null) {
+			retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+		}
+		return retCursor;
+	}
+
+	private Cursor queryDatabase(int match, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
 		Cursor retCursor;
-		switch (sUriMatcher.match(uri)) {
+		switch (match) {
 			// "weather"
 			case WEATHER: {
 				retCursor = mOpenHelper.getReadableDatabase()
@@ -103,12 +217,14 @@ public class WeatherProvider extends ContentProvider {
 			}
 			// "weather/*"
 			case WEATHER_WITH_LOCATION: {
-				retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+				retCursor = getWeatherByLocationSetting(uri, withStaleness(projection), sortOrder);
+				revalidateIfStale(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
 				break;
 			}
 			// "weather/*/*"
 			case WEATHER_WITH_LOCATION_AND_DATE: {
-				retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+				retCursor = getWeatherByLocationSettingAndDate(uri, withStaleness(projection), sortOrder);
+				revalidateIfStale(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
 				break;
 			}
 			// "location"
@@ -123,16 +239,135 @@ public class WeatherProvider extends ContentProvider {
 				                              sortOrder);
 				break;
 			}
+			// "three_hourly"
+			case THREE_HOURLY: {
+				retCursor = mOpenHelper.getReadableDatabase()
+				                       .query(WeatherContract.ThreeHourlyEntry.TABLE_NAME,
+				                              projection,
+				                              selection,
+				                              selectionArgs,
+				                              null,
+				                              null,
+				                              sortOrder);
+				break;
+			}
+			// "three_hourly/*"
+			case THREE_HOURLY_WITH_LOCATION: {
+				retCursor = getThreeHourlyByLocationSetting(uri, projection, sortOrder);
+				break;
+			}
+			// "sync_journal"
+			case SYNC_JOURNAL: {
+				retCursor = mOpenHelper.getReadableDatabase()
+				                       .query(WeatherContract.SyncJournalEntry.TABLE_NAME,
+				                              projection,
+				                              selection,
+				                              selectionArgs,
+				                              null,
+				                              null,
+				                              sortOrder);
+				break;
+			}
+			// "sync_journal/percentiles"
+			case SYNC_JOURNAL_PERCENTILES: {
+				retCursor = getSyncJournalPercentiles(selection, selectionArgs);
+				break;
+			}
+			// "retention"
+			case RETENTION: {
+				retCursor = getLastRetention();
+				break;
+			}
+			// "query_cache"
+			case QUERY_CACHE: {
+				retCursor = getQueryCacheStatistics();
+				break;
+			}
 
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
-		if (getContext() != null) {
-			retCursor.setNotificationUri(getContext().getContentResolver(), uri);
-		}
 		return retCursor;
 	}
 
+	/**
+	 * Returns the key of the query in the result cache, or null if its result isn't cached: the cache is disabled, the
+	 * query isn't for the forecast of a location, or it asks for the staleness, which changes with time.
+	 */
+	private String getCacheKey(int match, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		if (match != WEATHER_WITH_LOCATION && match != WEATHER_WITH_LOCATION_AND_DATE &&
+		    match != THREE_HOURLY_WITH_LOCATION) {
+			return null;
+		}
+		final long cacheSize = Utility.getPreferredQueryCacheSize(getContext());
+		mQueryCache.setMaxSize(cacheSize);
+		if (cacheSize == 0 ||
+		    (projection != null && Arrays.asList(projection).contains(WeatherContract.WeatherEntry.COLUMN_STALENESS))) {
+			return null;
+		}
+		return uri + "\n" + Arrays.toString(projection) + "\n" + selection + "\n" + Arrays.toString(selectionArgs) + "\n" +
+		       sortOrder;
+	}
+
+	private static String getLocationSettingFromUri(int match, Uri uri) {
+		return match == THREE_HOURLY_WITH_LOCATION ? WeatherContract.ThreeHourlyEntry.getLocationSettingFromUri(uri)
+		                                           : WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+	}
+
+	/** Replaces the staleness column of the projection by its expression, computed against the current time. */
+	private static String[] withStaleness(String[] projection) {
+		if (projection == null) {
+			return null;
+		}
+		String[] columns = projection.clone();
+		for (int i = 0; i < columns.length; i++) {
+			if (WeatherContract.WeatherEntry.COLUMN_STALENESS.equals(columns[i])) {
+				columns[i] = "(" + System.currentTimeMillis() + " - " + WeatherContract.LocationEntry.TABLE_NAME + "." +
+				             WeatherContract.LocationEntry.COLUMN_LAST_SYNCED + ") AS " +
+				             WeatherContract.WeatherEntry.COLUMN_STALENESS;
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Stale-while-revalidate: the stored forecast is returned as it is, and if the server hasn't confirmed it within
+	 * the freshness budget a background revalidation of the location is scheduled. Concurrent queries share a single
+	 * revalidation.
+	 */
+	private void revalidateIfStale(String locationSetting) {
+		final long freshnessBudget = Utility.getPreferredFreshnessBudget(getContext());
+		if (freshnessBudget <= 0) {
+			return;
+		}
+		final boolean stale;
+		Cursor cursor = mOpenHelper.getReadableDatabase()
+		                           .query(WeatherContract.LocationEntry.TABLE_NAME,
+		                                  new String[]{WeatherContract.LocationEntry.COLUMN_LAST_SYNCED},
+		                                  sLocationSettingSelection,
+		                                  new String[]{locationSetting},
+		                                  null,
+		                                  null,
+		                                  null);
+		try {
+			// An unknown location has nothing to serve yet; its first sync is up to the caller
+			stale = cursor.moveToFirst() &&
+			        (cursor.isNull(0) || System.currentTimeMillis() - cursor.getLong(0) > freshnessBudget);
+		}
+		finally {
+			cursor.close();
+		}
+		if (stale) {
+			requestRevalidation(locationSetting);
+		}
+	}
+
+	/** Schedules the background revalidation of a stale location; replaced in tests. */
+	void requestRevalidation(String locationSetting) {
+		Log.d(LOG_TAG, String.format("forecast for %s is stale, revalidating", locationSetting));
+		SyncCoordinator.getInstance().requestRevalidation(getContext(), locationSetting);
+	}
+
 	private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
 		String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
 		long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -177,6 +412,99 @@ public class WeatherProvider extends ContentProvider {
 		                                                   sortOrder);
 	}
 
+	private Cursor getThreeHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+		return sThreeHourlyByLocationSettingQueryBuilder.query(
+		  mOpenHelper.getReadableDatabase(),
+		  projection,
+		  sLocationSettingWithBucketWindowSelection,
+		  new String[]{WeatherContract.ThreeHourlyEntry.getLocationSettingFromUri(uri),
+		               Long.toString(WeatherContract.ThreeHourlyEntry.getStartFromUri(uri)),
+		               Long.toString(WeatherContract.ThreeHourlyEntry.getEndFromUri(uri))},
+		  null,
+		  null,
+		  sortOrder != null ? sortOrder : WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET + " ASC");
+	}
+
+	/**
+	 * Computes the nearest-rank p50 and p95 durations of every phase of the journal entries matching the selection.
+	 * SQLite has no percentile function, so the sorted durations are walked here; the journal is small enough.
+	 */
+	private Cursor getSyncJournalPercentiles(String selection, String[] selectionArgs) {
+		Map<String, List<Long>> durations = new LinkedHashMap<>();
+		Cursor cursor = mOpenHelper.getReadableDatabase()
+		                           .query(WeatherContract.SyncJournalEntry.TABLE_NAME,
+		                                  new String[]{WeatherContract.SyncJournalEntry.COLUMN_PHASE,
+		                                               WeatherContract.SyncJournalEntry.COLUMN_DURATION},
+		                                  selection,
+		                                  selectionArgs,
+		                                  null,
+		                                  null,
+		                                  WeatherContract.SyncJournalEntry.COLUMN_PHASE + " ASC, " +
+		                                  WeatherContract.SyncJournalEntry.COLUMN_DURATION + " ASC");
+		try {
+			while (cursor.moveToNext()) {
+				List<Long> phaseDurations = durations.get(cursor.getString(0));
+				if (phaseDurations == null) {
+					phaseDurations = new ArrayList<>();
+					durations.put(cursor.getString(0), phaseDurations);
+				}
+				phaseDurations.add(cursor.getLong(1));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+
+		MatrixCursor percentiles = new MatrixCursor(new String[]{WeatherContract.SyncJournalEntry.COLUMN_PHASE,
+		                                                         WeatherContract.SyncJournalEntry.COLUMN_COUNT,
+		                                                         WeatherContract.SyncJournalEntry.COLUMN_P50,
+		                                                         WeatherContract.SyncJournalEntry.COLUMN_P95});
+		for (Map.Entry<String, List<Long>> entry : durations.entrySet()) {
+			List<Long> sorted = entry.getValue();
+			percentiles.addRow(new Object[]{entry.getKey(),
+			                                sorted.size(),
+			                                getPercentile(sorted, 50),
+			                                getPercentile(sorted, 95)});
+		}
+		return percentiles;
+	}
+
+	private Cursor getLastRetention() {
+		MatrixCursor retention = new MatrixCursor(new String[]{WeatherContract.RetentionEntry.COLUMN_TABLE,
+		                                                       WeatherContract.RetentionEntry.COLUMN_ROWS,
+		                                                       WeatherContract.RetentionEntry.COLUMN_BYTES,
+		                                                       WeatherContract.RetentionEntry.COLUMN_DURATION});
+		for (RetentionEngine.Result result : mLastRetention) {
+			retention.addRow(new Object[]{result.getPolicy().getTable(),
+			                              result.getRows(),
+			                              result.getBytes(),
+			                              result.getDurationNanos() / 1000});
+		}
+		return retention;
+	}
+
+	private Cursor getQueryCacheStatistics() {
+		MatrixCursor statistics = new MatrixCursor(new String[]{WeatherContract.QueryCacheEntry.COLUMN_HITS,
+		                                                        WeatherContract.QueryCacheEntry.COLUMN_MISSES,
+		                                                        WeatherContract.QueryCacheEntry.COLUMN_HIT_RATIO,
+		                                                        WeatherContract.QueryCacheEntry.COLUMN_RESULTS,
+		                                                        WeatherContract.QueryCacheEntry.COLUMN_BYTES,
+		                                                        WeatherContract.QueryCacheEntry.COLUMN_MAX_BYTES});
+		statistics.addRow(new Object[]{mQueryCache.getHitCount(),
+		                               mQueryCache.getMissCount(),
+		                               mQueryCache.getHitRatio(),
+		                               mQueryCache.getResultCount(),
+		                               mQueryCache.getSize(),
+		                               mQueryCache.getMaxSize()});
+		return statistics;
+	}
+
+	/** @return the nearest-rank percentile of the sorted, non-empty values. */
+	static long getPercentile(List<Long> sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+		return sorted.get(Math.max(rank, 1) - 1);
+	}
+
 	@Override
 	public String getType(@NonNull Uri uri) {
 		// Use the Uri Matcher to determine what kind of URI this is.
@@ -191,6 +519,18 @@ public class WeatherProvider extends ContentProvider {
 				return WeatherContract.WeatherEntry.CONTENT_TYPE;
 			case LOCATION:
 				return WeatherContract.LocationEntry.CONTENT_TYPE;
+			case THREE_HOURLY:
+				return WeatherContract.ThreeHourlyEntry.CONTENT_TYPE;
+			case THREE_HOURLY_WITH_LOCATION:
+				return WeatherContract.ThreeHourlyEntry.CONTENT_TYPE;
+			case SYNC_JOURNAL:
+				return WeatherContract.SyncJournalEntry.CONTENT_TYPE;
+			case SYNC_JOURNAL_PERCENTILES:
+				return WeatherContract.SyncJournalEntry.CONTENT_TYPE;
+			case RETENTION:
+				return WeatherContract.RetentionEntry.CONTENT_TYPE;
+			case QUERY_CACHE:
+				return WeatherContract.QueryCacheEntry.CONTENT_TYPE;
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
@@ -205,6 +545,22 @@ public class WeatherProvider extends ContentProvider {
 		switch (match) {
 			case WEATHER: {
 				normalizeDate(values);
+				final Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+				final Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+				if (locationId != null && date != null) {
+					// Rewriting a day with the values it already holds writes and notifies nothing, and returns the
+					// CONTENT_URI without an id, so a batch of the sync can tell which days changed
+					if (!writeWeatherIfChanged(db, values)) {
+						return WeatherContract.WeatherEntry.CONTENT_URI;
+					}
+					returnUri = WeatherContract.WeatherEntry.buildWeatherUri(
+					  DatabaseUtils.longForQuery(db,
+					                             "SELECT " + WeatherContract.WeatherEntry._ID +
+					                             " FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+					                             " WHERE " + sLocationIdAndDaySelection,
+					                             new String[]{locationId.toString(), date.toString()}));
+					break;
+				}
 				long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
 				if (_id > 0) {
 					returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
@@ -215,25 +571,292 @@ public class WeatherProvider extends ContentProvider {
 				break;
 			}
 			case LOCATION: {
-				long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+				long _id = insertLocation(db, values);
 				if (_id > 0) {
 					returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
 				}
+				else if (_id == 0) {
+					// The location was already stored, nothing changed
+					return WeatherContract.LocationEntry.buildLocationUri(
+					  getLocationId(db, values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)));
+				}
+				else {
+					throw new SQLException("Failed to insert row into " + uri);
+				}
+				break;
+			}
+			case THREE_HOURLY: {
+				normalizeBucket(values);
+				long _id = db.insert(WeatherContract.ThreeHourlyEntry.TABLE_NAME, null, values);
+				if (_id > 0) {
+					returnUri = ContentUris.withAppendedId(uri, _id);
+				}
+				else {
+					throw new SQLException("Failed to insert row into " + uri);
+				}
+				break;
+			}
+			case SYNC_JOURNAL: {
+				long _id = db.insert(WeatherContract.SyncJournalEntry.TABLE_NAME, null, values);
+				if (_id > 0) {
+					returnUri = ContentUris.withAppendedId(uri, _id);
+				}
 				else {
 					throw new SQLException("Failed to insert row into " + uri);
 				}
+				trimSyncJournal(db);
 				break;
 			}
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
-		if (getContext() != null) {
-			getContext().getContentResolver().notifyChange(uri, null);
+		if (match == WEATHER || match == THREE_HOURLY) {
+			invalidateCache(getLocationSettings(db, values));
+			notifyLocationChange(uri, values);
+		}
+		else {
+			if (match == LOCATION) {
+				invalidateCache(Collections.singleton(
+				  values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)));
+			}
+			notifyChange(uri);
 		}
 		return returnUri;
 	}
 
-	private void normalizeDate(ContentValues values) {
+	/**
+	 * Inserts a location unless its location setting is already stored, in a single statement.
+	 *
+	 * @return the id of the new row, 0 if the location setting is already stored, -1 on error
+	 */
+	private long insertLocation(SQLiteDatabase db, ContentValues values) {
+		if (!values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+			return db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+		}
+		db.beginTransaction();
+		try {
+			long _id = db.insertWithOnConflict(WeatherContract.LocationEntry.TABLE_NAME,
+			                                   null,
+			                                   values,
+			                                   SQLiteDatabase.CONFLICT_IGNORE);
+			// Before Jelly Bean an ignored insert may return the row id of an earlier insert, changes() tells for sure
+			if (_id != -1 && DatabaseUtils.longForQuery(db, "SELECT changes()", null) == 0) {
+				_id = 0;
+			}
+			db.setTransactionSuccessful();
+			return _id;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	private static long getLocationId(SQLiteDatabase db, String locationSetting) {
+		return DatabaseUtils.longForQuery(db,
+		                                  "SELECT " + WeatherContract.LocationEntry._ID +
+		                                  " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+		                                  " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+		                                  new String[]{locationSetting});
+	}
+
+	/**
+	 * Applies the operations in a single transaction: either all of them are applied or none is. Observers are notified
+	 * when the transaction is over, instead of once per operation, and only of what the batch changed: the weather and
+	 * three-hourly uris of the locations whose rows it wrote, and the other uris it wrote to. Days stored with the values
+	 * they already held and recording the sync time of a location are not changes, so a sync which brings nothing new
+	 * notifies nothing.
+	 */
+	@NonNull
+	@Override
+	public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		final BatchChanges changes = new BatchChanges();
+		final BatchInvalidation invalidation = new BatchInvalidation();
+		final ContentProviderResult[] results;
+		mBatchChanges.set(changes);
+		mBatchInvalidation.set(invalidation);
+		db.beginTransaction();
+		try {
+			results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+			mBatchChanges.remove();
+			mBatchInvalidation.remove();
+			mQueryCache.invalidate(invalidation.mAll ? null : invalidation.mLocationSettings);
+			if (invalidation.mSyncTimes) {
+				mQueryCache.invalidate(null, WeatherContract.LocationEntry.COLUMN_LAST_SYNCED);
+			}
+		}
+		if (!changes.isEmpty()) {
+			checkpoint(db);
+			notifyBatchChanges(db, changes);
+		}
+		return results;
+	}
+
+	/** Notifies the uris the batch changed, and the uris of the locations whose rows it wrote, in their tables. */
+	private void notifyBatchChanges(SQLiteDatabase db, BatchChanges changes) {
+		if (getContext() == null) {
+			return;
+		}
+		final ContentResolver contentResolver = getContext().getContentResolver();
+		for (Uri uri : changes.mUris) {
+			contentResolver.notifyChange(uri, null);
+		}
+		for (Map.Entry<Uri, Set<Long>> entry : changes.mLocationIds.entrySet()) {
+			Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+			                         new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+			                         WeatherContract.LocationEntry._ID + " IN (" +
+			                         TextUtils.join(",", entry.getValue()) + ")",
+			                         null,
+			                         null,
+			                         null,
+			                         null);
+			try {
+				while (cursor.moveToNext()) {
+					// e.g. weather/<location setting>, which also reaches the observers of its days
+					contentResolver.notifyChange(entry.getKey().buildUpon().appendPath(cursor.getString(0)).build(), null);
+				}
+			}
+			finally {
+				cursor.close();
+			}
+		}
+	}
+
+	/** Checkpoints the write-ahead log after a large write, unless it's part of a batch, which does it at its end. */
+	private void checkpoint(SQLiteDatabase db) {
+		if (mBatchChanges.get() == null && !db.inTransaction()) {
+			final int frames = WeatherDbHelper.checkpoint(db);
+			Log.v(LOG_TAG, String.format("%d write-ahead log frames checkpointed", frames));
+		}
+	}
+
+	/**
+	 * Returns the settings of the locations the rows of the table matching the selection belong to, or null, meaning
+	 * every location, when no result is cached and there's nothing worth looking up.
+	 */
+	private Set<String> getLocationSettings(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+		if (mQueryCache.isEmpty()) {
+			return null;
+		}
+		if (selection == null) {
+			selection = "1";
+		}
+		if (!table.equals(WeatherContract.LocationEntry.TABLE_NAME)) {
+			// The weather and the three-hourly tables name their location column alike
+			selection = WeatherContract.LocationEntry._ID + " IN (SELECT " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+			            " FROM " + table + " WHERE " + selection + ")";
+		}
+		Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+		                         new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+		                         selection,
+		                         selectionArgs,
+		                         null,
+		                         null,
+		                         null);
+		Set<String> locationSettings = new HashSet<>();
+		try {
+			while (cursor.moveToNext()) {
+				locationSettings.add(cursor.getString(0));
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return locationSettings;
+	}
+
+	/** Returns the settings of the locations of the weather or three-hourly rows, like the method above. */
+	private Set<String> getLocationSettings(SQLiteDatabase db, ContentValues... values) {
+		if (mQueryCache.isEmpty()) {
+			return null;
+		}
+		Set<Long> locationIds = new HashSet<>();
+		for (ContentValues value : values) {
+			Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+			if (locationId == null) {
+				return null;
+			}
+			locationIds.add(locationId);
+		}
+		return getLocationSettings(db,
+		                           WeatherContract.LocationEntry.TABLE_NAME,
+		                           WeatherContract.LocationEntry._ID + " IN (" + TextUtils.join(",", locationIds) + ")",
+		                           null);
+	}
+
+	/**
+	 * Drops the cached results of the locations, of every location if null, or defers it to the end of the batch being
+	 * applied on this thread. Called once the writes are committed, so no result read before them stays cached.
+	 */
+	private void invalidateCache(Collection<String> locationSettings) {
+		final BatchInvalidation batchInvalidation = mBatchInvalidation.get();
+		if (batchInvalidation == null) {
+			if (locationSettings == null || !locationSettings.isEmpty()) {
+				mQueryCache.invalidate(locationSettings);
+			}
+		}
+		else if (locationSettings == null) {
+			batchInvalidation.mAll = true;
+		}
+		else {
+			batchInvalidation.mLocationSettings.addAll(locationSettings);
+		}
+	}
+
+	/**
+	 * Drops the cached results which hold the sync time of their location, or defers it to the end of the batch being
+	 * applied on this thread. Only results of queries without a projection hold it, so this seldom drops any.
+	 */
+	private void invalidateCachedSyncTimes() {
+		final BatchInvalidation batchInvalidation = mBatchInvalidation.get();
+		if (batchInvalidation == null) {
+			mQueryCache.invalidate(null, WeatherContract.LocationEntry.COLUMN_LAST_SYNCED);
+		}
+		else {
+			batchInvalidation.mSyncTimes = true;
+		}
+	}
+
+	/** @return the cache of the forecast query results; its statistics are also served by the query cache uri. */
+	QueryCache getQueryCache() {
+		return mQueryCache;
+	}
+
+	/** Notifies the observers of the uri, or defers it to the end of the batch being applied on this thread. */
+	private void notifyChange(Uri uri) {
+		final BatchChanges batchChanges = mBatchChanges.get();
+		if (batchChanges != null) {
+			batchChanges.mUris.add(uri);
+		}
+		else if (getContext() != null) {
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Notifies the observers of a weather or three-hourly row written to the uri. Within a batch only the uri of the
+	 * location of the row is notified at its end, so the forecasts of the other locations aren't reloaded.
+	 */
+	private void notifyLocationChange(Uri uri, ContentValues values) {
+		final BatchChanges batchChanges = mBatchChanges.get();
+		final Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+		if (batchChanges == null || locationId == null) {
+			notifyChange(uri);
+			return;
+		}
+		Set<Long> locationIds = batchChanges.mLocationIds.get(uri);
+		if (locationIds == null) {
+			locationIds = new HashSet<>();
+			batchChanges.mLocationIds.put(uri, locationIds);
+		}
+		locationIds.add(locationId);
+	}
+
+	private static void normalizeDate(ContentValues values) {
 		// normalize the date value
 		if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
 			long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
@@ -242,6 +865,14 @@ public class WeatherProvider extends ContentProvider {
 		}
 	}
 
+	private void normalizeBucket(ContentValues values) {
+		if (values.containsKey(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET)) {
+			long bucket = values.getAsLong(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET);
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET,
+			           WeatherContract.ThreeHourlyEntry.normalizeBucket(bucket));
+		}
+	}
+
 	@Override
 	public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
 		int returnCount = 0;
@@ -249,33 +880,305 @@ public class WeatherProvider extends ContentProvider {
 		final int match = sUriMatcher.match(uri);
 		switch (match) {
 			case WEATHER:
+				db.beginTransaction();
+				try {
+					returnCount = writeWeather(db, values);
+					db.setTransactionSuccessful();
+				}
+				finally {
+					db.endTransaction();
+				}
+				// A sync which brought nothing new must not make the UI reload
+				if (returnCount > 0) {
+					checkpoint(db);
+					invalidateCache(getLocationSettings(db, values));
+					notifyChange(uri);
+				}
+				break;
+			case THREE_HOURLY:
+				db.beginTransaction();
+				try {
+					returnCount = insertThreeHourly(db, values);
+					db.setTransactionSuccessful();
+				}
+				finally {
+					db.endTransaction();
+				}
+				if (returnCount > 0) {
+					checkpoint(db);
+					invalidateCache(getLocationSettings(db, values));
+					notifyChange(uri);
+				}
+				break;
+			case SYNC_JOURNAL:
 				db.beginTransaction();
 				try {
 					for (ContentValues value : values) {
-						normalizeDate(value);
-						long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-						if (_id != -1) {
+						if (db.insert(WeatherContract.SyncJournalEntry.TABLE_NAME, null, value) != -1) {
 							returnCount++;
 						}
 					}
+					trimSyncJournal(db);
 					db.setTransactionSuccessful();
 				}
 				finally {
 					db.endTransaction();
 				}
-				if (getContext() != null) {
-					getContext().getContentResolver().notifyChange(uri, null);
-				}
+				notifyChange(uri);
+				break;
 			default:
 				returnCount = super.bulkInsert(uri, values);
 		}
 		return returnCount;
 	}
 
+	/**
+	 * Writes weather rows like {@link #writeWeatherIfChanged(SQLiteDatabase, ContentValues)}, through statements
+	 * compiled once for all of them: an insert which ignores the days already stored, then, for those, an update which
+	 * only matches a stored row holding other values. Rows which don't carry exactly the weather columns are written
+	 * one by one. The caller holds the transaction.
+	 * <p/>
+	 * Serves {@link #bulkInsert(Uri, ContentValues[])}; the sync stores its rows through
+	 * {@link #applyBatch(ArrayList)}, one insert per row, so that it can store them with their location atomically.
+	 *
+	 * @return the number of rows inserted or updated
+	 */
+	static int writeWeather(SQLiteDatabase db, ContentValues[] values) {
+		final StringBuilder insertSql = new StringBuilder("INSERT OR IGNORE INTO ");
+		insertSql.append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+		for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+			insertSql.append(i > 0 ? ", " : "").append(sWeatherInsertColumns[i]);
+		}
+		insertSql.append(") VALUES (");
+		for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+			insertSql.append(i > 0 ? ", ?" : "?");
+		}
+		insertSql.append(")");
+
+		// UPDATE weather SET max = ?, min = ? ... WHERE location_id = ? AND date = ? AND NOT (max IS ? AND min IS ? ...)
+		final StringBuilder updateSql = new StringBuilder("UPDATE ");
+		final StringBuilder unchanged = new StringBuilder();
+		updateSql.append(WeatherContract.WeatherEntry.TABLE_NAME).append(" SET ");
+		for (int i = WEATHER_KEY_COLUMNS; i < sWeatherInsertColumns.length; i++) {
+			updateSql.append(i > WEATHER_KEY_COLUMNS ? ", " : "").append(sWeatherInsertColumns[i]).append(" = ?");
+			unchanged.append(i > WEATHER_KEY_COLUMNS ? " AND " : "").append(sWeatherInsertColumns[i]).append(" IS ?");
+		}
+		updateSql.append(" WHERE ").append(sLocationIdAndDaySelection).append(" AND NOT (").append(unchanged).append(")");
+
+		final int valueColumns = sWeatherInsertColumns.length - WEATHER_KEY_COLUMNS;
+		int writtenRows = 0;
+		final SQLiteStatement insert = db.compileStatement(insertSql.toString());
+		final SQLiteStatement update = db.compileStatement(updateSql.toString());
+		// executeUpdateDelete() needs API 11, and executeInsert() can't be trusted to tell ignored inserts before API 16
+		final SQLiteStatement changes = db.compileStatement("SELECT changes()");
+		try {
+			for (ContentValues value : values) {
+				normalizeDate(value);
+				if (!hasWeatherInsertColumns(value)) {
+					if (writeWeatherIfChanged(db, value)) {
+						writtenRows++;
+					}
+					continue;
+				}
+				insert.clearBindings();
+				for (int i = 0; i < sWeatherInsertColumns.length; i++) {
+					bind(insert, i + 1, value.get(sWeatherInsertColumns[i]));
+				}
+				// Before Jelly Bean an ignored insert may return the row id of an earlier insert, changes() tells for sure
+				insert.executeInsert();
+				if (changes.simpleQueryForLong() > 0) {
+					writtenRows++;
+					continue;
+				}
+				// The day is stored already
+				update.clearBindings();
+				for (int i = WEATHER_KEY_COLUMNS; i < sWeatherInsertColumns.length; i++) {
+					final Object columnValue = value.get(sWeatherInsertColumns[i]);
+					bind(update, i - WEATHER_KEY_COLUMNS + 1, columnValue);
+					bind(update, i + valueColumns + 1, columnValue);
+				}
+				for (int i = 0; i < WEATHER_KEY_COLUMNS; i++) {
+					bind(update, valueColumns + i + 1, value.get(sWeatherInsertColumns[i]));
+				}
+				update.execute();
+				if (changes.simpleQueryForLong() > 0) {
+					writtenRows++;
+				}
+			}
+		}
+		finally {
+			insert.close();
+			update.close();
+			changes.close();
+		}
+		return writtenRows;
+	}
+
+	private static boolean hasWeatherInsertColumns(ContentValues values) {
+		if (values.size() != sWeatherInsertColumns.length) {
+			return false;
+		}
+		for (String column : sWeatherInsertColumns) {
+			if (!values.containsKey(column)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Binds a value the way {@link SQLiteDatabase#insert(String, String, ContentValues)} binds it. */
+	private static void bind(SQLiteStatement statement, int index, Object value) {
+		if (value == null) {
+			statement.bindNull(index);
+		}
+		else if (value instanceof String) {
+			statement.bindString(index, (String) value);
+		}
+		else if (value instanceof Float || value instanceof Double) {
+			statement.bindDouble(index, ((Number) value).doubleValue());
+		}
+		else if (value instanceof Number) {
+			statement.bindLong(index, ((Number) value).longValue());
+		}
+		else if (value instanceof Boolean) {
+			statement.bindLong(index, (Boolean) value ? 1 : 0);
+		}
+		else if (value instanceof byte[]) {
+			statement.bindBlob(index, (byte[]) value);
+		}
+		else {
+			statement.bindString(index, value.toString());
+		}
+	}
+
+	/**
+	 * Writes a weather row, unless the row stored for the same location and date already holds the same values. A
+	 * changed row is updated in place instead of being deleted and inserted again by the REPLACE conflict clause.
+	 *
+	 * @return whether the row was inserted or updated
+	 */
+	static boolean writeWeatherIfChanged(SQLiteDatabase db, ContentValues values) {
+		final Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+		final Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+		if (locationId == null || date == null) {
+			return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values) != -1;
+		}
+		// changes() is only meaningful on the connection which wrote, which the transaction pins
+		db.beginTransaction();
+		try {
+			final boolean written = writeWeatherIfChanged(db, values, locationId, date);
+			db.setTransactionSuccessful();
+			return written;
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	private static boolean writeWeatherIfChanged(SQLiteDatabase db, ContentValues values, Long locationId, Long date) {
+
+		// location_id = ? AND date = ? AND NOT (max IS ? AND min IS ? ...) only matches a stored row which differs
+		StringBuilder unchanged = new StringBuilder();
+		List<String> selectionArgs = new ArrayList<>();
+		selectionArgs.add(locationId.toString());
+		selectionArgs.add(date.toString());
+		for (Map.Entry<String, Object> entry : values.valueSet()) {
+			final String column = entry.getKey();
+			final Object value = entry.getValue();
+			if (column.equals(WeatherContract.WeatherEntry.COLUMN_LOC_KEY) ||
+			    column.equals(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+				continue;
+			}
+			if (unchanged.length() > 0) {
+				unchanged.append(" AND ");
+			}
+			if (value == null) {
+				unchanged.append(column).append(" IS NULL");
+			}
+			else {
+				// arguments are bound as text, which the column affinity converts back to the exact stored number
+				unchanged.append(column).append(" IS ?");
+				selectionArgs.add(value instanceof Float ? Double.toString((Float) value) : value.toString());
+			}
+		}
+		if (unchanged.length() > 0 &&
+		    db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+		              values,
+		              sLocationIdAndDaySelection + " AND NOT (" + unchanged + ")",
+		              selectionArgs.toArray(new String[selectionArgs.size()])) > 0) {
+			return true;
+		}
+		// Either the stored row is identical, which is ignored, or there's no row for that day yet
+		final long _id = db.insertWithOnConflict(WeatherContract.WeatherEntry.TABLE_NAME,
+		                                         null,
+		                                         values,
+		                                         SQLiteDatabase.CONFLICT_IGNORE);
+		// Before Jelly Bean an ignored insert may return the row id of an earlier insert, changes() tells for sure
+		return _id != -1 && DatabaseUtils.longForQuery(db, "SELECT changes()", null) > 0;
+	}
+
+	/**
+	 * Inserts three-hourly rows through a single compiled statement, which saves compiling an INSERT per row. A row
+	 * already stored for the same location and bucket is replaced.
+	 *
+	 * @return the number of rows written
+	 */
+	private static int insertThreeHourly(SQLiteDatabase db, ContentValues[] values) {
+		final StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ");
+		sql.append(WeatherContract.ThreeHourlyEntry.TABLE_NAME).append(" (");
+		for (int i = 0; i < sThreeHourlyInsertColumns.length; i++) {
+			sql.append(i > 0 ? ", " : "").append(sThreeHourlyInsertColumns[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < sThreeHourlyInsertColumns.length; i++) {
+			sql.append(i > 0 ? ", ?" : "?");
+		}
+		sql.append(")");
+
+		int insertedRows = 0;
+		SQLiteStatement statement = db.compileStatement(sql.toString());
+		final SQLiteStatement changes = db.compileStatement("SELECT changes()");
+		try {
+			for (ContentValues value : values) {
+				statement.clearBindings();
+				for (int i = 0; i < sThreeHourlyInsertColumns.length; i++) {
+					final String column = sThreeHourlyInsertColumns[i];
+					final Object columnValue = value.get(column);
+					if (columnValue != null && column.equals(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET)) {
+						statement.bindLong(i + 1, WeatherContract.ThreeHourlyEntry.normalizeBucket(value.getAsLong(column)));
+					}
+					else {
+						// a missing NOT NULL column makes the insert throw, as db.insert() would have failed too
+						bind(statement, i + 1, columnValue);
+					}
+				}
+				statement.executeInsert();
+				if (changes.simpleQueryForLong() > 0) {
+					insertedRows++;
+				}
+			}
+		}
+		finally {
+			statement.close();
+			changes.close();
+		}
+		return insertedRows;
+	}
+
+	/** Deletes all but the {@link #MAX_SYNC_JOURNAL_ENTRIES} most recent journal entries. */
+	private static void trimSyncJournal(SQLiteDatabase db) {
+		db.delete(WeatherContract.SyncJournalEntry.TABLE_NAME,
+		          WeatherContract.SyncJournalEntry._ID + " <= (SELECT MAX(" + WeatherContract.SyncJournalEntry._ID +
+		          ") FROM " + WeatherContract.SyncJournalEntry.TABLE_NAME + ") - ?",
+		          new String[]{Integer.toString(MAX_SYNC_JOURNAL_ENTRIES)});
+	}
+
 	@Override
 	public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
 		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		final int deletedRows;
+		// Looked up before the rows are gone
+		Set<String> changedLocations = Collections.emptySet();
 
 		if (selection == null) {
 			selection = "1";
@@ -283,25 +1186,60 @@ public class WeatherProvider extends ContentProvider {
 
 		switch (sUriMatcher.match(uri)) {
 			case WEATHER: {
+				changedLocations = getLocationSettings(db, WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
 				deletedRows = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
 				                        selection,
 				                        selectionArgs);
 				break;
 			}
 			case LOCATION: {
+				changedLocations = getLocationSettings(db, WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
 				deletedRows = db.delete(WeatherContract.LocationEntry.TABLE_NAME,
 				                        selection,
 				                        selectionArgs);
+				if (deletedRows > 0) {
+					LocationIdCache.getInstance().invalidate();
+				}
+				break;
+			}
+			case THREE_HOURLY: {
+				changedLocations = getLocationSettings(db, WeatherContract.ThreeHourlyEntry.TABLE_NAME, selection,
+				                                       selectionArgs);
+				deletedRows = db.delete(WeatherContract.ThreeHourlyEntry.TABLE_NAME,
+				                        selection,
+				                        selectionArgs);
+				break;
+			}
+			case SYNC_JOURNAL: {
+				deletedRows = db.delete(WeatherContract.SyncJournalEntry.TABLE_NAME,
+				                        selection,
+				                        selectionArgs);
 				break;
 			}
+			case RETENTION: {
+				// Deletes in chunks, each in its own transaction, so readers get the database between them
+				List<RetentionEngine.Result> results = mRetentionEngine.run(db, System.currentTimeMillis());
+				mLastRetention = results;
+				int reclaimedRows = 0;
+				for (RetentionEngine.Result result : results) {
+					reclaimedRows += result.getRows();
+					if (result.getRows() > 0) {
+						notifyChange(result.getPolicy().getUri());
+					}
+				}
+				if (reclaimedRows > 0) {
+					checkpoint(db);
+					invalidateCache(null);
+				}
+				return reclaimedRows;
+			}
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
 
 		if (deletedRows > 0) {
-			if (getContext() != null) {
-				getContext().getContentResolver().notifyChange(uri, null);
-			}
+			invalidateCache(changedLocations);
+			notifyChange(uri);
 		}
 		return deletedRows;
 	}
@@ -310,9 +1248,17 @@ public class WeatherProvider extends ContentProvider {
 	public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
 		final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		final int updatedRows;
+		// Looked up before the rows change; rows moved to other locations change every location
+		Set<String> changedLocations = null;
+		// Recording when locations were synced changes none of their content
+		boolean syncTimeOnly = false;
 
 		switch (sUriMatcher.match(uri)) {
 			case WEATHER: {
+				if (!values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)) {
+					changedLocations = getLocationSettings(db, WeatherContract.WeatherEntry.TABLE_NAME, selection,
+					                                       selectionArgs);
+				}
 				updatedRows = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
 				                        values,
 				                        selection,
@@ -320,24 +1266,69 @@ public class WeatherProvider extends ContentProvider {
 				break;
 			}
 			case LOCATION: {
+				syncTimeOnly = values.size() == 1 && values.containsKey(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED);
+				if (!syncTimeOnly && !values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+					changedLocations = getLocationSettings(db, WeatherContract.LocationEntry.TABLE_NAME, selection,
+					                                       selectionArgs);
+				}
 				updatedRows = db.update(WeatherContract.LocationEntry.TABLE_NAME,
 				                        values,
 				                        selection,
 				                        selectionArgs);
+				// Cached ids only go stale when a row changes its id or location setting, not e.g. its sync time
+				if (updatedRows > 0 &&
+				    (values.containsKey(WeatherContract.LocationEntry._ID) ||
+				     values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING))) {
+					LocationIdCache.getInstance().invalidate();
+				}
+				break;
+			}
+			case THREE_HOURLY: {
+				normalizeBucket(values);
+				if (!values.containsKey(WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY)) {
+					changedLocations = getLocationSettings(db, WeatherContract.ThreeHourlyEntry.TABLE_NAME, selection,
+					                                       selectionArgs);
+				}
+				updatedRows = db.update(WeatherContract.ThreeHourlyEntry.TABLE_NAME,
+				                        values,
+				                        selection,
+				                        selectionArgs);
 				break;
 			}
 			default:
 				throw new UnsupportedOperationException("Unknown uri: " + uri);
 		}
 
-		if (updatedRows > 0) {
-			if (getContext() != null) {
-				getContext().getContentResolver().notifyChange(uri, null);
-			}
+		if (updatedRows > 0 && syncTimeOnly) {
+			invalidateCachedSyncTimes();
+		}
+		else if (updatedRows > 0) {
+			invalidateCache(changedLocations);
+			notifyChange(uri);
 		}
 		return updatedRows;
 	}
 
+	/**
+	 * Locations whose cached results a batch changed: the ones listed, or all of them, and whether it recorded sync
+	 * times.
+	 */
+	private static final class BatchInvalidation {
+		final Set<String> mLocationSettings = new HashSet<>();
+		boolean mAll;
+		boolean mSyncTimes;
+	}
+
+	/** What a batch changed: the uris it wrote to, and the locations whose rows it wrote per table uri. */
+	private static final class BatchChanges {
+		final Set<Uri> mUris = new HashSet<>();
+		final Map<Uri, Set<Long>> mLocationIds = new HashMap<>();
+
+		boolean isEmpty() {
+			return mUris.isEmpty() && mLocationIds.isEmpty();
+		}
+	}
+
 	/**
 	 * You do not need to call this method. This is a method specifically to assist the testing framework in running
 	 * smoothly. You can read more at: <a href="http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()">http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()</a>
@@ -26,11 +26,12 @@ import android.widget.TextView;
 
 import com.android.example.sunshine.R;
 import com.android.example.sunshine.data.WeatherContract;
-import com.android.example.sunshine.sync.SunshineSyncAdapter;
+import com.android.example.sunshine.sync.SyncCoordinator;
+import com.android.example.sunshine.sync.SyncScheduler;
 import com.android.example.sunshine.utils.RecyclerViewCursorAdapter;
 import com.android.example.sunshine.utils.Utility;
 
-public class ForecastsFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, SwipeRefreshLayout.OnRefreshListener {
+public class ForecastsFragment extends Fragment implements LoaderManager.LoaderCallbacks<Cursor>, SwipeRefreshLayout.OnRefreshListener, SyncCoordinator.Listener {
 	@SuppressWarnings("unused")
 	private static final String LOG_TAG = ForecastsFragment.class.getSimpleName();
 
@@ -129,11 +130,11 @@ public class ForecastsFragment extends Fragment implements LoaderManager.LoaderC
 	@Override
 	public void onResume() {
 		super.onResume();
+		SyncScheduler.recordActiveUse(getContext());
 		String location = Utility.getPreferredLocation(getContext());
 		boolean metricUnits = Utility.isMetric(getContext());
 		int forecastSize = Utility.getPreferredForecastSize(getContext());
 		if (location != null && !location.equals(mLocation)) {
-			mSwipeRefreshLayout.setRefreshing(true);
 			refreshForecast();
 			mLocation = location;
 		}
@@ -145,12 +146,18 @@ public class ForecastsFragment extends Fragment implements LoaderManager.LoaderC
 		}
 		if (forecastSize != mForecastSize) {
 			mForecastSize = forecastSize;
-			mSwipeRefreshLayout.setRefreshing(true);
 			refreshForecast();
 			getLoaderManager().restartLoader(WEATHER_LOADER_ID, null, this);
 		}
 	}
 
+	@Override
+	public void onDestroyView() {
+		SyncCoordinator.getInstance().removeListener(this);
+		mSwipeRefreshLayout = null;
+		super.onDestroyView();
+	}
+
 	@Override
 	public void onDetach() {
 		super.onDetach();
@@ -172,7 +179,6 @@ public class ForecastsFragment extends Fragment implements LoaderManager.LoaderC
 				break;
 
 			case R.id.action_refresh:
-				mSwipeRefreshLayout.setRefreshing(true);
 				refreshForecast();
 				eventConsumed = true;
 				break;
@@ -202,9 +208,20 @@ public class ForecastsFragment extends Fragment implements LoaderManager.LoaderC
 		}
 	}
 
+	/**
+	 * Syncs the preferred location, or joins its sync if one is already in flight. The spinner keeps spinning until
+	 * the sync is actually over.
+	 */
 	private void refreshForecast() {
-		SunshineSyncAdapter.syncImmediately(getContext());
-		mSwipeRefreshLayout.setRefreshing(false);
+		mSwipeRefreshLayout.setRefreshing(true);
+		SyncCoordinator.getInstance().requestSync(getContext(), Utility.getPreferredLocation(getContext()), this);
+	}
+
+	@Override
+	public void onSyncFinished(String location, boolean success) {
+		if (mSwipeRefreshLayout != null && !SyncCoordinator.getInstance().isSyncInFlight(mLocation)) {
+			mSwipeRefreshLayout.setRefreshing(false);
+		}
 	}
 
 	@Override
@@ -0,0 +1,118 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.android.example.sunshine.BuildConfig;
+
+/**
+ * Token bucket capping the rate of requests sent with an OpenWeatherMap API key, so bursts of refreshes and syncs
+ * don't get the key throttled upstream. The bucket holds up to {@code CAPACITY} tokens and gains one every
+ * {@code REFILL_INTERVAL}; every request takes one.
+ * <p/>
+ * Manual refreshes come first: they may take the last {@code MANUAL_RESERVE} tokens, and wait up to
+ * {@code MAX_MANUAL_WAIT} for one when the bucket is empty. Other requests leave the reserve alone and are shed at
+ * once. The bucket is kept in a private {@link SharedPreferences} file, so a process restart does not refill it.
+ */
+public class ApiRateLimiter {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = ApiRateLimiter.class.getSimpleName();
+	static final String PREFERENCES_NAME = "api_rate_limiter";
+	static final int CAPACITY = 20;
+	static final long REFILL_INTERVAL = 3 * 1000;
+	static final int MANUAL_RESERVE = 5;
+	static final long MAX_MANUAL_WAIT = 10 * 1000;
+
+	private static final String SUFFIX_TOKENS = "/tokens";
+	private static final String SUFFIX_UPDATED_AT = "/updated_at";
+	private static final String SUFFIX_REJECTED_COUNT = "/rejected_count";
+	// Every limiter of the process shares the bucket of its key, which is only read and written under this lock
+	private static final Object sLock = new Object();
+
+	private final SharedPreferences mPreferences;
+	private final String mKey;
+	private final int mCapacity;
+	private final long mRefillInterval;
+	private final int mManualReserve;
+	private final long mMaxManualWait;
+
+	public ApiRateLimiter(Context context) {
+		this(context, BuildConfig.OPEN_WEATHER_MAP_API_KEY, CAPACITY, REFILL_INTERVAL, MANUAL_RESERVE, MAX_MANUAL_WAIT);
+	}
+
+	ApiRateLimiter(Context context, String apiKey, int capacity, long refillInterval, int manualReserve, long maxManualWait) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		// The key itself is not written down
+		mKey = Integer.toHexString(apiKey.hashCode());
+		mCapacity = capacity;
+		mRefillInterval = refillInterval;
+		mManualReserve = manualReserve;
+		mMaxManualWait = maxManualWait;
+	}
+
+	/**
+	 * Takes a token for a request about to be sent, waiting for one if the request is manual and the bucket is empty.
+	 *
+	 * @param manual whether the request was asked for by the user
+	 *
+	 * @throws RateLimitException if the request must not be sent
+	 */
+	public void acquire(boolean manual) throws RateLimitException {
+		final long deadline = now() + (manual ? mMaxManualWait : 0);
+		while (true) {
+			final long wait;
+			synchronized (sLock) {
+				final double tokens = getTokens();
+				final int floor = manual ? 0 : mManualReserve;
+				if (tokens >= floor + 1) {
+					store(tokens - 1);
+					return;
+				}
+				wait = (long) Math.ceil((floor + 1 - tokens) * mRefillInterval);
+				if (now() + wait > deadline) {
+					mPreferences.edit().putInt(mKey + SUFFIX_REJECTED_COUNT, getRejectedCount() + 1).apply();
+					Log.d(LOG_TAG, String.format("%s request rejected, next token in %d ms",
+					                             manual ? "manual" : "background",
+					                             wait));
+					throw new RateLimitException(now() + wait);
+				}
+			}
+			try {
+				Thread.sleep(wait);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RateLimitException(now() + wait);
+			}
+		}
+	}
+
+	/** @return the tokens left in the bucket, refilled up to now. */
+	public double getTokens() {
+		synchronized (sLock) {
+			final long now = now();
+			final double tokens = mPreferences.getFloat(mKey + SUFFIX_TOKENS, mCapacity);
+			// A clock set backwards doesn't drain the bucket, nor does one set forward fill it more than to capacity
+			final long elapsed = Math.max(0, now - mPreferences.getLong(mKey + SUFFIX_UPDATED_AT, now));
+			return Math.min(mCapacity, tokens + (double) elapsed / mRefillInterval);
+		}
+	}
+
+	/** @return the number of requests rejected since the bucket was created. */
+	public int getRejectedCount() {
+		return mPreferences.getInt(mKey + SUFFIX_REJECTED_COUNT, 0);
+	}
+
+	private void store(double tokens) {
+		mPreferences.edit()
+		            .putFloat(mKey + SUFFIX_TOKENS, (float) tokens)
+		            .putLong(mKey + SUFFIX_UPDATED_AT, now())
+		            .apply();
+	}
+
+	/** @return the current time in milliseconds; replaced in tests. */
+	long now() {
+		return System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,71 @@
+package com.android.example.sunshine.sync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+
+/**
+ * Serves forecasts stored as OpenWeatherMap responses in a local directory, one {@code <location>.json} file per
+ * location. Useful offline, in development builds and as a last resort alternate. Conditional headers are ignored,
+ * the file is always returned as a 200 response.
+ */
+public class FileWeatherSource implements WeatherSource {
+	private final String mName;
+	private final File mDirectory;
+
+	public FileWeatherSource(String name, File directory) {
+		mName = name;
+		mDirectory = directory;
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String getForecastUrl(String locationQuery) {
+		return getFile(locationQuery).toURI().toString();
+	}
+
+	@Override
+	public HttpEngine.Response fetch(String locationQuery, Map<String, String> headers) throws IOException {
+		// A missing file throws a FileNotFoundException, an IOException like any unreachable source
+		return new FileResponse(new FileInputStream(getFile(locationQuery)));
+	}
+
+	private File getFile(String locationQuery) {
+		return new File(mDirectory, locationQuery + ".json");
+	}
+
+	private static class FileResponse implements HttpEngine.Response {
+		private final InputStream mBody;
+
+		FileResponse(InputStream body) {
+			mBody = body;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return HttpURLConnection.HTTP_OK;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return null;
+		}
+
+		@Override
+		public InputStream getBody() {
+			return mBody;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mBody.close();
+		}
+	}
+}
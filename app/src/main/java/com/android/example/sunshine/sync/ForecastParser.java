@@ -0,0 +1,83 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentValues;
+import android.os.Build;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Turns an OpenWeatherMap daily forecast response into weather rows. Implementations report what they find to a
+ * {@link Handler} so the caller decides how the rows are stored.
+ */
+public abstract class ForecastParser {
+	public static final String TYPE_STREAMING = "streaming";
+	public static final String TYPE_TREE = "tree";
+
+	// These are the names of the JSON objects that need to be extracted.
+
+	// Location information
+	static final String OWM_CITY = "city";
+	static final String OWM_CITY_NAME = "name";
+	static final String OWM_COORD = "coord";
+
+	// Location coordinate
+	static final String OWM_LATITUDE = "lat";
+	static final String OWM_LONGITUDE = "lon";
+
+	// Weather information.  Each day's forecast info is an element of the "list" array.
+	static final String OWM_LIST = "list";
+
+	static final String OWM_PRESSURE = "pressure";
+	static final String OWM_HUMIDITY = "humidity";
+	static final String OWM_WINDSPEED = "speed";
+	static final String OWM_WIND_DIRECTION = "deg";
+
+	// All temperatures are children of the "temp" object.
+	static final String OWM_TEMPERATURE = "temp";
+	static final String OWM_MAX = "max";
+	static final String OWM_MIN = "min";
+
+	static final String OWM_WEATHER = "weather";
+	static final String OWM_DESCRIPTION = "main";
+	static final String OWM_WEATHER_ID = "id";
+
+	/**
+	 * Returns a parser of the requested type. The streaming parser relies on {@link android.util.JsonReader}, so the
+	 * tree parser is used on platforms which don't have it, whatever was requested.
+	 *
+	 * @param type one of {@link #TYPE_STREAMING} or {@link #TYPE_TREE}
+	 */
+	public static ForecastParser newInstance(String type) {
+		final ForecastParser parser;
+		if (TYPE_STREAMING.equals(type) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			parser = new StreamingForecastParser();
+		}
+		else {
+			parser = new TreeForecastParser();
+		}
+		return parser;
+	}
+
+	/**
+	 * Parses the whole response available from the reader. The reader is not closed.
+	 *
+	 * @throws JSONException if the response is not a forecast, e.g. an error reply without city or list.
+	 */
+	public abstract void parse(Reader reader, Handler handler) throws IOException, JSONException;
+
+	/** Receives the values found in the response, in the order they are parsed. */
+	public interface Handler {
+		void onCity(String cityName, double latitude, double longitude);
+
+		/**
+		 * Called once per element of the forecast list.
+		 *
+		 * @param dayIndex  position of the day in the forecast, 0 being today
+		 * @param dayValues weather columns of the day, without location key and date
+		 */
+		void onDay(int dayIndex, ContentValues dayValues);
+	}
+}
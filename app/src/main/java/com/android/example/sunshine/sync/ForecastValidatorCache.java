@@ -0,0 +1,165 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers the HTTP validators (ETag, Last-Modified and Cache-Control max-age) of the last forecast downloaded for
+ * each location, so the next sync can ask the server whether anything changed instead of downloading it again.
+ * <p/>
+ * Entries are kept in a private {@link SharedPreferences} file, so they survive process restarts.
+ */
+public class ForecastValidatorCache {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = ForecastValidatorCache.class.getSimpleName();
+	private static final String PREFERENCES_NAME = "forecast_validators";
+
+	private static final String KEY_HIT_COUNT = "hit_count";
+	private static final String KEY_MISS_COUNT = "miss_count";
+	private static final String SUFFIX_URL = "/url";
+	private static final String SUFFIX_ETAG = "/etag";
+	private static final String SUFFIX_LAST_MODIFIED = "/last_modified";
+	private static final String SUFFIX_EXPIRES = "/expires";
+
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	private static final String DIRECTIVE_MAX_AGE = "max-age=";
+	private static final String DIRECTIVE_NO_CACHE = "no-cache";
+	private static final String DIRECTIVE_NO_STORE = "no-store";
+	// Locations may be synced concurrently, counters are updated under this lock
+	private static final Object sCounterLock = new Object();
+
+	private final SharedPreferences mPreferences;
+
+	public ForecastValidatorCache(Context context) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Checks whether the forecast stored for the location may still be used without asking the server, according to
+	 * the max-age it was served with. A fresh entry counts as a cache hit.
+	 *
+	 * @param locationSetting the location the forecast was downloaded for
+	 * @param url             the request which is about to be sent; entries stored for another request never match
+	 */
+	public boolean isFresh(String locationSetting, String url) {
+		boolean fresh = matches(locationSetting, url) &&
+		                System.currentTimeMillis() < mPreferences.getLong(locationSetting + SUFFIX_EXPIRES, 0);
+		if (fresh) {
+			incrementCounter(KEY_HIT_COUNT);
+		}
+		return fresh;
+	}
+
+	/** Adds If-None-Match and If-Modified-Since headers to the request, when validators are known for it. */
+	public void addConditionalHeaders(String locationSetting, String url, Map<String, String> headers) {
+		if (matches(locationSetting, url)) {
+			String eTag = mPreferences.getString(locationSetting + SUFFIX_ETAG, null);
+			String lastModified = mPreferences.getString(locationSetting + SUFFIX_LAST_MODIFIED, null);
+			if (eTag != null) {
+				headers.put(HEADER_IF_NONE_MATCH, eTag);
+			}
+			if (lastModified != null) {
+				headers.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+			}
+		}
+	}
+
+	/**
+	 * Stores the validators of a full response. Call it only once the response has been ingested, otherwise the next
+	 * sync would skip data which never made it to the database. Counts as a cache miss.
+	 */
+	public void storeValidators(String locationSetting, Validators validators) {
+		incrementCounter(KEY_MISS_COUNT);
+		mPreferences.edit()
+		            .putString(locationSetting + SUFFIX_URL, validators.mUrl)
+		            .putString(locationSetting + SUFFIX_ETAG, validators.mETag)
+		            .putString(locationSetting + SUFFIX_LAST_MODIFIED, validators.mLastModified)
+		            .putLong(locationSetting + SUFFIX_EXPIRES, validators.mExpires)
+		            .apply();
+	}
+
+	/**
+	 * Handles a 304 Not Modified reply: the stored validators stay valid and their freshness is renewed. Counts as a
+	 * cache hit.
+	 */
+	public void refreshValidators(String locationSetting, HttpEngine.Response response) {
+		incrementCounter(KEY_HIT_COUNT);
+		mPreferences.edit()
+		            .putLong(locationSetting + SUFFIX_EXPIRES, getExpiryTime(response))
+		            .apply();
+	}
+
+	/** @return the number of syncs which did not need to download the forecast again. */
+	public long getHitCount() {
+		return mPreferences.getLong(KEY_HIT_COUNT, 0);
+	}
+
+	/** @return the number of syncs which downloaded and parsed a full forecast. */
+	public long getMissCount() {
+		return mPreferences.getLong(KEY_MISS_COUNT, 0);
+	}
+
+	private boolean matches(String locationSetting, String url) {
+		return url.equals(mPreferences.getString(locationSetting + SUFFIX_URL, null));
+	}
+
+	private void incrementCounter(String key) {
+		synchronized (sCounterLock) {
+			mPreferences.edit().putLong(key, mPreferences.getLong(key, 0) + 1).apply();
+		}
+		Log.d(LOG_TAG, String.format("validator cache hits: %d, misses: %d", getHitCount(), getMissCount()));
+	}
+
+	/**
+	 * Validators of a full response, read when the response arrives and kept until its rows are stored, see
+	 * {@link #storeValidators(String, Validators)}.
+	 */
+	public static final class Validators {
+		private final String mUrl;
+		private final String mETag;
+		private final String mLastModified;
+		private final long mExpires;
+
+		public Validators(String url, HttpEngine.Response response) {
+			mUrl = url;
+			mETag = response.getHeader(HEADER_ETAG);
+			mLastModified = response.getHeader(HEADER_LAST_MODIFIED);
+			mExpires = getExpiryTime(response);
+		}
+	}
+
+	private static long getExpiryTime(HttpEngine.Response response) {
+		long expires = 0;
+		String cacheControl = response.getHeader(HEADER_CACHE_CONTROL);
+		if (cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase(Locale.US);
+			int maxAgeIndex = cacheControl.indexOf(DIRECTIVE_MAX_AGE);
+			if (maxAgeIndex != -1 &&
+			    !cacheControl.contains(DIRECTIVE_NO_CACHE) &&
+			    !cacheControl.contains(DIRECTIVE_NO_STORE)) {
+				int start = maxAgeIndex + DIRECTIVE_MAX_AGE.length();
+				int end = start;
+				while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+					end++;
+				}
+				if (end > start) {
+					try {
+						expires = System.currentTimeMillis() + Long.parseLong(cacheControl.substring(start, end)) * 1000;
+					}
+					catch (NumberFormatException e) {
+						Log.w(LOG_TAG, "Invalid max-age: " + cacheControl);
+					}
+				}
+			}
+		}
+		return expires;
+	}
+}
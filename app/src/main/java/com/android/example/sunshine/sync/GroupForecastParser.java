@@ -0,0 +1,246 @@
+package com.android.example.sunshine.sync;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Parses a group response, {@code {"cnt": 2, "list": [{"city": {"id": 3081368, ...}, "list": [...]}, ...]}}, whose
+ * list holds the forecast of every city requested.
+ * <p/>
+ * The response is split into the forecasts of its cities as it is read from the network, and the forecasts are parsed
+ * concurrently on a worker pool. At most a bounded number of forecasts wait for a worker, so memory doesn't grow with
+ * the size of the response.
+ */
+class GroupForecastParser {
+	private static final String OWM_CITY_ID = "id";
+
+	private final ExecutorService mWorkers;
+	private final int mMaxPendingCities;
+
+	/**
+	 * @param workers          pool the forecasts of the cities are parsed on
+	 * @param maxPendingCities number of forecasts read from the response but not parsed yet beyond which reading waits
+	 */
+	GroupForecastParser(ExecutorService workers, int maxPendingCities) {
+		mWorkers = workers;
+		mMaxPendingCities = maxPendingCities;
+	}
+
+	/**
+	 * Parses the whole response available from the reader, and returns once every city has been handled. The reader
+	 * is not closed. A city whose forecast is invalid is reported to the handler, the others are parsed anyway.
+	 *
+	 * @return the number of cities found in the response
+	 *
+	 * @throws JSONException if the response is not a group response, e.g. an error reply or a truncated response
+	 */
+	int parse(Reader reader, final Handler handler) throws IOException, JSONException, InterruptedException {
+		final ListSplitter splitter = new ListSplitter(reader);
+		final Semaphore pending = new Semaphore(mMaxPendingCities);
+		int submitted = 0;
+		try {
+			String element;
+			while ((element = splitter.next()) != null) {
+				pending.acquire();
+				final String cityForecast = element;
+				mWorkers.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							parseCity(cityForecast, handler);
+						}
+						finally {
+							pending.release();
+						}
+					}
+				});
+				submitted++;
+			}
+		}
+		finally {
+			// Whatever happens, no worker may still call the handler once parse returns
+			pending.acquireUninterruptibly(mMaxPendingCities);
+			pending.release(mMaxPendingCities);
+		}
+		return submitted;
+	}
+
+	private static void parseCity(String cityForecast, Handler handler) {
+		String cityId = null;
+		try {
+			JSONObject forecastJson = new JSONObject(cityForecast);
+			cityId = forecastJson.getJSONObject(ForecastParser.OWM_CITY).getString(OWM_CITY_ID);
+			ForecastParser.Handler cityHandler = handler.onCity(cityId);
+			if (cityHandler != null) {
+				new TreeForecastParser().parse(forecastJson, cityHandler);
+				handler.onCityParsed(cityId);
+			}
+		}
+		catch (JSONException e) {
+			// Without its id, a city can't be told apart from the others: the group reports it as missing
+			if (cityId != null) {
+				handler.onCityFailed(cityId, e);
+			}
+		}
+		catch (RuntimeException e) {
+			// Thrown on a pool thread, it would take the process down: the city fails like an invalid one instead
+			if (cityId != null) {
+				JSONException jsonException = new JSONException(e.toString());
+				jsonException.initCause(e);
+				handler.onCityFailed(cityId, jsonException);
+			}
+		}
+	}
+
+	/**
+	 * Receives the cities of the response; called on the worker threads, concurrently. A city listed twice in the
+	 * response is reported twice.
+	 */
+	interface Handler {
+		/** @return the handler the forecast of the city is parsed to, null to skip the city */
+		ForecastParser.Handler onCity(String cityId);
+
+		/** Called once the forecast of the city has been parsed to its handler. */
+		void onCityParsed(String cityId);
+
+		void onCityFailed(String cityId, JSONException error);
+	}
+
+	/**
+	 * Reads the elements of the top level {@code list} array of a JSON object one at a time, without parsing them.
+	 */
+	static class ListSplitter {
+		private static final String LIST_KEY = "list";
+		private final Reader mReader;
+		private final char[] mBuffer = new char[8192];
+		private int mPosition;
+		private int mLimit;
+		private boolean mInList;
+		private boolean mListEnded;
+
+		ListSplitter(Reader reader) {
+			mReader = reader;
+		}
+
+		/** @return the text of the next element of the list, null once the list is over */
+		String next() throws IOException, JSONException {
+			if (mListEnded) {
+				return null;
+			}
+			if (!mInList) {
+				seekList();
+				mInList = true;
+			}
+			int c = nextToken();
+			if (c == ',') {
+				c = nextToken();
+			}
+			if (c == ']') {
+				mListEnded = true;
+				return null;
+			}
+			if (c != '{') {
+				throw new JSONException("Expected an object in the list, found " + describe(c));
+			}
+			StringBuilder element = new StringBuilder(4096).append('{');
+			int depth = 1;
+			while (depth > 0) {
+				c = read();
+				if (c == -1) {
+					throw new JSONException("Truncated response");
+				}
+				element.append((char) c);
+				if (c == '"') {
+					readString(element);
+				}
+				else if (c == '{' || c == '[') {
+					depth++;
+				}
+				else if (c == '}' || c == ']') {
+					depth--;
+				}
+			}
+			return element.toString();
+		}
+
+		/** Skips everything up to the opening bracket of the top level list. */
+		private void seekList() throws IOException, JSONException {
+			if (nextToken() != '{') {
+				throw new JSONException("Expected a group response");
+			}
+			int depth = 1;
+			String lastKey = null;
+			int c;
+			while ((c = read()) != -1) {
+				if (c == '"') {
+					StringBuilder string = new StringBuilder();
+					readString(string);
+					if (depth == 1) {
+						lastKey = string.substring(0, string.length() - 1);
+					}
+				}
+				else if (c == '[' && depth == 1 && LIST_KEY.equals(lastKey)) {
+					return;
+				}
+				else if (c == '{' || c == '[') {
+					depth++;
+				}
+				else if (c == '}' || c == ']') {
+					depth--;
+				}
+				else if (c == ',' && depth == 1) {
+					lastKey = null;
+				}
+			}
+			throw new JSONException("No list in the group response");
+		}
+
+		/** Appends the rest of a string whose opening quote has been read, up to and including its closing quote. */
+		private void readString(StringBuilder out) throws IOException, JSONException {
+			int c;
+			while ((c = read()) != -1) {
+				out.append((char) c);
+				if (c == '\\') {
+					c = read();
+					if (c == -1) {
+						break;
+					}
+					out.append((char) c);
+				}
+				else if (c == '"') {
+					return;
+				}
+			}
+			throw new JSONException("Unterminated string");
+		}
+
+		private int nextToken() throws IOException {
+			int c;
+			do {
+				c = read();
+			} while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+			return c;
+		}
+
+		private int read() throws IOException {
+			if (mPosition == mLimit) {
+				mLimit = mReader.read(mBuffer, 0, mBuffer.length);
+				mPosition = 0;
+				if (mLimit <= 0) {
+					mLimit = 0;
+					return -1;
+				}
+			}
+			return mBuffer[mPosition++];
+		}
+
+		private static String describe(int c) {
+			return c == -1 ? "the end of the response" : "'" + (char) c + "'";
+		}
+	}
+}
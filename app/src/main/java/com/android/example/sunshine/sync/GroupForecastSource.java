@@ -0,0 +1,73 @@
+package com.android.example.sunshine.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.android.example.sunshine.BuildConfig;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads the daily forecasts of several cities in a single request, from an OpenWeatherMap compatible group
+ * endpoint. Cities are identified by their OpenWeatherMap city id, and the response holds the forecast of every city,
+ * shaped like a single city response, in its {@code list} array; see {@link GroupForecastParser}.
+ * <p/>
+ * Only locations explicitly set to a city id, e.g. {@code id:3081368}, are grouped. A location of digits only is a
+ * postal code, e.g. {@code 94043}, which OpenWeatherMap would take for another city.
+ */
+public class GroupForecastSource {
+	public static final String GROUP_BASE_URL = "http://api.openweathermap.org/data/2.5/forecast/daily/group?";
+	// Marks a location setting as an OpenWeatherMap city id
+	public static final String CITY_ID_PREFIX = "id:";
+	private final static String ID_PARAM = "id";
+	private final static String UNITS_PARAM = "units";
+	private final static String DAYS_PARAM = "cnt";
+	private final static String PARAM_API_KEY = "appid";
+
+	private final String mBaseUrl;
+
+	public GroupForecastSource(String baseUrl) {
+		mBaseUrl = baseUrl;
+	}
+
+	/** @return whether the location setting is a city id, which the group endpoint can be asked for */
+	public static boolean isCityId(String locationSetting) {
+		if (locationSetting == null || !locationSetting.startsWith(CITY_ID_PREFIX)) {
+			return false;
+		}
+		final String cityId = getCityId(locationSetting);
+		return !TextUtils.isEmpty(cityId) && TextUtils.isDigitsOnly(cityId);
+	}
+
+	/** @return the city id of a location setting for which {@link #isCityId(String)} holds */
+	public static String getCityId(String locationSetting) {
+		return locationSetting.substring(CITY_ID_PREFIX.length());
+	}
+
+	/** @param locationSettings location settings for which {@link #isCityId(String)} holds */
+	public String getGroupUrl(List<String> locationSettings) {
+		List<String> cityIds = new ArrayList<>(locationSettings.size());
+		for (String locationSetting : locationSettings) {
+			cityIds.add(getCityId(locationSetting));
+		}
+		return Uri.parse(mBaseUrl)
+		          .buildUpon()
+		          .appendQueryParameter(ID_PARAM, TextUtils.join(",", cityIds))
+		          .appendQueryParameter(UNITS_PARAM, "metric")
+		          .appendQueryParameter(DAYS_PARAM, Integer.toString(UrlWeatherSource.DAILY_COUNT))
+		          .appendQueryParameter(PARAM_API_KEY, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+		          .build()
+		          .toString();
+	}
+
+	public HttpEngine.Response fetch(List<String> locationSettings) throws IOException {
+		Map<String, String> headers = new HashMap<>();
+		ResponseBody.requestCompression(headers);
+		return SunshineSyncAdapter.getHttpEngine().get(new URL(getGroupUrl(locationSettings)), headers);
+	}
+}
@@ -0,0 +1,228 @@
+package com.android.example.sunshine.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedges the requests of a primary source with an alternate one, so a single slow endpoint doesn't set the tail
+ * latency of the sync. A request goes to the primary first; if the primary hasn't answered within the hedge delay,
+ * or has failed, the same request goes to the alternate, and the first valid response (200 or 304) wins. The losing
+ * response is closed as soon as it arrives.
+ * <p/>
+ * The hedge delay is the p95 latency of the recent valid primary responses, so only about one request in twenty is
+ * sent twice. Until enough latencies are known, a default delay is used.
+ */
+public class HedgedWeatherSource implements WeatherSource {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = HedgedWeatherSource.class.getSimpleName();
+	static final long DEFAULT_HEDGE_DELAY = 2 * 1000;
+	static final long MIN_HEDGE_DELAY = 50;
+	static final int MIN_SAMPLES = 20;
+	private static final int HEDGE_PERCENTILE = 95;
+	private static final int MAX_SAMPLES = 100;
+
+	private final WeatherSource mPrimary;
+	private final WeatherSource mAlternate;
+	private final long mDefaultHedgeDelay;
+	private final LatencyTracker mPrimaryLatencies = new LatencyTracker(MAX_SAMPLES);
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mHedgedCount = new AtomicLong();
+	private final AtomicLong mAlternateWinCount = new AtomicLong();
+
+	public HedgedWeatherSource(WeatherSource primary, WeatherSource alternate) {
+		this(primary, alternate, DEFAULT_HEDGE_DELAY);
+	}
+
+	HedgedWeatherSource(WeatherSource primary, WeatherSource alternate, long defaultHedgeDelay) {
+		mPrimary = primary;
+		mAlternate = alternate;
+		mDefaultHedgeDelay = defaultHedgeDelay;
+	}
+
+	@Override
+	public String getName() {
+		return mPrimary.getName() + "+" + mAlternate.getName();
+	}
+
+	@Override
+	public String getForecastUrl(String locationQuery) {
+		return mPrimary.getForecastUrl(locationQuery);
+	}
+
+	/** @return how long the primary has to answer before the request is hedged, in milliseconds. */
+	public long getHedgeDelay() {
+		if (mPrimaryLatencies.getSampleCount() < MIN_SAMPLES) {
+			return mDefaultHedgeDelay;
+		}
+		return Math.max(MIN_HEDGE_DELAY, mPrimaryLatencies.getPercentile(HEDGE_PERCENTILE));
+	}
+
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/** @return the number of requests which were also sent to the alternate. */
+	public long getHedgedCount() {
+		return mHedgedCount.get();
+	}
+
+	/** @return the number of requests answered by the alternate. */
+	public long getAlternateWinCount() {
+		return mAlternateWinCount.get();
+	}
+
+	@Override
+	public HttpEngine.Response fetch(String locationQuery, Map<String, String> headers) throws IOException {
+		mRequestCount.incrementAndGet();
+		final Race race = new Race();
+		final long hedgeDelay = getHedgeDelay();
+		race.start(mPrimary, locationQuery, headers);
+		int pending = 1;
+		boolean hedged = false;
+		Attempt primaryFailure = null;
+		Attempt alternateFailure = null;
+		try {
+			while (pending > 0) {
+				Attempt attempt = hedged ? race.mCompleted.take() : race.mCompleted.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+				if (attempt == null) {
+					Log.d(LOG_TAG, String.format("%s didn't answer within %d ms, asking %s",
+					                             mPrimary.getName(), hedgeDelay, mAlternate.getName()));
+					hedge(race, locationQuery, headers);
+					hedged = true;
+					pending++;
+					continue;
+				}
+				pending--;
+				if (attempt.isValid()) {
+					race.finish();
+					if (attempt.mSource == mAlternate) {
+						mAlternateWinCount.incrementAndGet();
+					}
+					closeQuietly(primaryFailure);
+					closeQuietly(alternateFailure);
+					return attempt.mResponse;
+				}
+				if (attempt.mSource == mPrimary) {
+					primaryFailure = attempt;
+				}
+				else {
+					alternateFailure = attempt;
+				}
+				if (!hedged) {
+					// No need to wait for the deadline, the primary already failed
+					hedge(race, locationQuery, headers);
+					hedged = true;
+					pending++;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			race.finish();
+			closeQuietly(primaryFailure);
+			closeQuietly(alternateFailure);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Forecast request interrupted");
+		}
+
+		// Both failed: report the primary's outcome, as it would have been without hedging
+		closeQuietly(alternateFailure);
+		if (primaryFailure.mResponse != null) {
+			return primaryFailure.mResponse;
+		}
+		throw primaryFailure.mError;
+	}
+
+	private void hedge(Race race, String locationQuery, Map<String, String> headers) {
+		mHedgedCount.incrementAndGet();
+		race.start(mAlternate, locationQuery, headers);
+	}
+
+	private static void closeQuietly(Attempt attempt) {
+		if (attempt != null && attempt.mResponse != null) {
+			try {
+				attempt.mResponse.close();
+			}
+			catch (IOException e) {
+				// the response is being discarded anyway
+			}
+		}
+	}
+
+	/** The requests sent for a single fetch. Attempts completing after the race is over are closed right away. */
+	private class Race {
+		final BlockingQueue<Attempt> mCompleted = new LinkedBlockingQueue<>();
+		private boolean mFinished;
+
+		void start(final WeatherSource source, final String locationQuery, final Map<String, String> headers) {
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final long start = System.nanoTime();
+					Attempt attempt;
+					try {
+						attempt = new Attempt(source, source.fetch(locationQuery, headers), null);
+					}
+					catch (IOException e) {
+						attempt = new Attempt(source, null, e);
+					}
+					catch (RuntimeException e) {
+						attempt = new Attempt(source, null, new IOException(e));
+					}
+					if (source == mPrimary && attempt.isValid()) {
+						mPrimaryLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+					}
+					synchronized (Race.this) {
+						if (!mFinished) {
+							mCompleted.add(attempt);
+							return;
+						}
+					}
+					closeQuietly(attempt);
+				}
+			});
+		}
+
+		/** Ends the race; attempts already completed and not taken are closed. */
+		void finish() {
+			List<Attempt> losers = new ArrayList<>();
+			synchronized (this) {
+				mFinished = true;
+				mCompleted.drainTo(losers);
+			}
+			for (Attempt loser : losers) {
+				closeQuietly(loser);
+			}
+		}
+	}
+
+	private static class Attempt {
+		final WeatherSource mSource;
+		final HttpEngine.Response mResponse;
+		final IOException mError;
+
+		Attempt(WeatherSource source, HttpEngine.Response response, IOException error) {
+			mSource = source;
+			mResponse = response;
+			mError = error;
+		}
+
+		boolean isValid() {
+			return mResponse != null &&
+			       (mResponse.getStatusCode() == HttpURLConnection.HTTP_OK ||
+			        mResponse.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.android.example.sunshine.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Performs the HTTP requests of the sync. The default implementation is {@link UrlConnectionHttpEngine}, tests may install
+ * their own with {@link SunshineSyncAdapter#setHttpEngine(HttpEngine)}.
+ */
+public interface HttpEngine {
+	/**
+	 * Sends a GET request. The returned response must be closed, which also gives its connection back to the engine.
+	 *
+	 * @param headers request headers, may be empty
+	 */
+	Response get(URL url, Map<String, String> headers) throws IOException;
+
+	/**
+	 * @return the number of requests sent so far. {@link UrlConnectionHttpEngine} can't tell which of them reused a
+	 * pooled connection, the platform doesn't expose it; the tests count reuses on the server side instead, as the
+	 * requests minus the connections accepted.
+	 */
+	long getRequestCount();
+
+	interface Response extends Closeable {
+		int getStatusCode();
+
+		/** @return the value of the response header, header names are case insensitive; null if there's no such header. */
+		String getHeader(String name);
+
+		/** @return the body of the response. Closing it closes the response. */
+		InputStream getBody();
+	}
+}
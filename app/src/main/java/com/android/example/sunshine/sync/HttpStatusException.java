@@ -0,0 +1,50 @@
+package com.android.example.sunshine.sync;
+
+import java.io.IOException;
+
+/** Thrown when the forecast server answers with an unexpected HTTP status. */
+public class HttpStatusException extends IOException {
+	private final int mStatusCode;
+	private final long mRetryAfter;
+
+	/**
+	 * @param retryAfter delay requested by the server through Retry-After, in seconds; -1 if there's none
+	 */
+	public HttpStatusException(String message, int statusCode, long retryAfter) {
+		super(message);
+		mStatusCode = statusCode;
+		mRetryAfter = retryAfter;
+	}
+
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	/** @return the delay requested by the server before the next request, in seconds; -1 if there's none. */
+	public long getRetryAfter() {
+		return mRetryAfter;
+	}
+
+	/** @return whether asking again later may succeed: server errors, throttling and request timeouts. */
+	public boolean isTransient() {
+		return mStatusCode >= 500 || mStatusCode == 429 || mStatusCode == 408;
+	}
+
+	/** @return whether the server rejected the API key. */
+	public boolean isAuthError() {
+		return mStatusCode == 401 || mStatusCode == 403;
+	}
+
+	/** Parses a Retry-After header given in seconds; HTTP dates are not supported and give -1. */
+	static long parseRetryAfter(String retryAfter) {
+		if (retryAfter != null) {
+			try {
+				return Math.max(0, Long.parseLong(retryAfter.trim()));
+			}
+			catch (NumberFormatException e) {
+				// an HTTP date, the backoff delay is used instead
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,35 @@
+package com.android.example.sunshine.sync;
+
+import java.util.Arrays;
+
+/** Keeps the most recent latencies of a source, to derive percentiles from them. Thread-safe. */
+class LatencyTracker {
+	private final long[] mSamples;
+	private int mCount;
+	private int mNext;
+
+	LatencyTracker(int capacity) {
+		mSamples = new long[capacity];
+	}
+
+	synchronized void record(long latencyMillis) {
+		mSamples[mNext] = latencyMillis;
+		mNext = (mNext + 1) % mSamples.length;
+		mCount = Math.min(mCount + 1, mSamples.length);
+	}
+
+	synchronized int getSampleCount() {
+		return mCount;
+	}
+
+	/** @return the nearest-rank percentile of the recorded latencies, in milliseconds; -1 if there are none. */
+	synchronized long getPercentile(int percentile) {
+		if (mCount == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(mSamples, mCount);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+}
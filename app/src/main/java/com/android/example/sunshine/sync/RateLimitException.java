@@ -0,0 +1,21 @@
+package com.android.example.sunshine.sync;
+
+import java.io.IOException;
+
+/** Thrown when a request is not sent because the API key's rate limit would be exceeded. */
+public class RateLimitException extends IOException {
+	private final long mRetryAt;
+
+	/**
+	 * @param retryAt time at which the request could be sent, in milliseconds since the epoch
+	 */
+	public RateLimitException(long retryAt) {
+		super("API key rate limit reached");
+		mRetryAt = retryAt;
+	}
+
+	/** @return the time at which the request could be sent, in milliseconds since the epoch. */
+	public long getRetryAt() {
+		return mRetryAt;
+	}
+}
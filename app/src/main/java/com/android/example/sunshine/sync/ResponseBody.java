@@ -0,0 +1,127 @@
+package com.android.example.sunshine.sync;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Body of a forecast response, exposed as UTF-8 text. A gzip encoded body is inflated while it is read, so the
+ * decompressed response is never buffered as a whole.
+ */
+class ResponseBody implements Closeable {
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	private static final String ENCODING_GZIP = "gzip";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final CountingInputStream mWireStream;
+	private final CountingInputStream mDecodedStream;
+	private final Reader mReader;
+	private final boolean mCompressed;
+
+	private ResponseBody(InputStream inputStream, boolean compressed) throws IOException {
+		mCompressed = compressed;
+		mWireStream = new CountingInputStream(inputStream);
+		mDecodedStream = compressed ? new CountingInputStream(new GZIPInputStream(mWireStream)) : mWireStream;
+		mReader = new BufferedReader(new InputStreamReader(mDecodedStream, UTF_8));
+	}
+
+	/**
+	 * Asks the server for a gzip encoded response. The body is inflated by {@link #open(HttpEngine.Response)}, which
+	 * can then account for the bytes actually transferred.
+	 */
+	static void requestCompression(Map<String, String> headers) {
+		headers.put(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+	}
+
+	/** Opens the body of the response, inflating it when the server used gzip. */
+	static ResponseBody open(HttpEngine.Response response) throws IOException {
+		return new ResponseBody(response.getBody(), ENCODING_GZIP.equalsIgnoreCase(response.getHeader(HEADER_CONTENT_ENCODING)));
+	}
+
+	Reader getReader() {
+		return mReader;
+	}
+
+	boolean isCompressed() {
+		return mCompressed;
+	}
+
+	/** @return the number of bytes read from the network so far. */
+	long getTransferredBytes() {
+		return mWireStream.getCount();
+	}
+
+	/** @return the time spent waiting for the network while reading the body so far, in nanoseconds. */
+	long getTransferNanos() {
+		return mWireStream.getReadNanos();
+	}
+
+	/** @return the number of bytes of the decompressed body read so far. */
+	long getDecodedBytes() {
+		return mDecodedStream.getCount();
+	}
+
+	/** @return how many bytes compression saved so far, 0 for a plain response. */
+	long getSavedBytes() {
+		return getDecodedBytes() - getTransferredBytes();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mReader.close();
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount;
+		private long mReadNanos;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		long getReadNanos() {
+			return mReadNanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final long start = System.nanoTime();
+			int result = super.read();
+			mReadNanos += System.nanoTime() - start;
+			if (result != -1) {
+				mCount++;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			final long start = System.nanoTime();
+			int result = super.read(buffer, offset, count);
+			mReadNanos += System.nanoTime() - start;
+			if (result != -1) {
+				mCount += result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long byteCount) throws IOException {
+			long result = super.skip(byteCount);
+			mCount += result;
+			return result;
+		}
+	}
+}
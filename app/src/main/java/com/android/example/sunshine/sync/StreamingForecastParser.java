@@ -0,0 +1,204 @@
+package com.android.example.sunshine.sync;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.android.example.sunshine.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pulls the forecast token by token from the reader and hands every day to the {@link Handler} as soon as its object is
+ * closed, so neither the response body nor a JSON tree is ever held in memory.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+class StreamingForecastParser extends ForecastParser {
+	private static final String[] DAY_COLUMNS = new String[]{
+	  WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+	  WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+	  WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+	  WeatherContract.WeatherEntry.COLUMN_DEGREES,
+	  WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+	  WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+	  WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+	  WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+	};
+
+	@Override
+	public void parse(Reader reader, Handler handler) throws IOException, JSONException {
+		try {
+			readForecast(new JsonReader(reader), handler);
+		}
+		catch (IllegalStateException | NumberFormatException e) {
+			// JsonReader reports a value of an unexpected type with these, JSONObject with a JSONException
+			JSONException jsonException = new JSONException(e.getMessage());
+			jsonException.initCause(e);
+			throw jsonException;
+		}
+	}
+
+	private void readForecast(JsonReader jsonReader, Handler handler) throws IOException, JSONException {
+		boolean cityFound = false;
+		boolean listFound = false;
+
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			String name = jsonReader.nextName();
+			if (OWM_CITY.equals(name)) {
+				readCity(jsonReader, handler);
+				cityFound = true;
+			}
+			else if (OWM_LIST.equals(name)) {
+				readList(jsonReader, handler);
+				listFound = true;
+			}
+			else {
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+
+		if (!listFound) {
+			throw new JSONException("No value for " + OWM_LIST);
+		}
+		if (!cityFound) {
+			throw new JSONException("No value for " + OWM_CITY);
+		}
+	}
+
+	private void readCity(JsonReader jsonReader, Handler handler) throws IOException, JSONException {
+		String cityName = null;
+		Double latitude = null;
+		Double longitude = null;
+
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			String name = jsonReader.nextName();
+			if (OWM_CITY_NAME.equals(name)) {
+				cityName = jsonReader.nextString();
+			}
+			else if (OWM_COORD.equals(name)) {
+				jsonReader.beginObject();
+				while (jsonReader.hasNext()) {
+					String coordName = jsonReader.nextName();
+					if (OWM_LATITUDE.equals(coordName)) {
+						latitude = jsonReader.nextDouble();
+					}
+					else if (OWM_LONGITUDE.equals(coordName)) {
+						longitude = jsonReader.nextDouble();
+					}
+					else {
+						jsonReader.skipValue();
+					}
+				}
+				jsonReader.endObject();
+			}
+			else {
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+
+		if (cityName == null || latitude == null || longitude == null) {
+			throw new JSONException("Incomplete " + OWM_CITY + " object");
+		}
+		handler.onCity(cityName, latitude, longitude);
+	}
+
+	private void readList(JsonReader jsonReader, Handler handler) throws IOException, JSONException {
+		int dayIndex = 0;
+		jsonReader.beginArray();
+		while (jsonReader.hasNext()) {
+			handler.onDay(dayIndex, readDay(jsonReader));
+			dayIndex++;
+		}
+		jsonReader.endArray();
+	}
+
+	private ContentValues readDay(JsonReader jsonReader) throws IOException, JSONException {
+		ContentValues weatherValues = new ContentValues();
+
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			String name = jsonReader.nextName();
+			if (OWM_PRESSURE.equals(name)) {
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, jsonReader.nextDouble());
+			}
+			else if (OWM_HUMIDITY.equals(name)) {
+				// JSONObject.getInt() truncates fractional values, do the same here
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, (int) jsonReader.nextDouble());
+			}
+			else if (OWM_WINDSPEED.equals(name)) {
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, jsonReader.nextDouble());
+			}
+			else if (OWM_WIND_DIRECTION.equals(name)) {
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, jsonReader.nextDouble());
+			}
+			else if (OWM_TEMPERATURE.equals(name)) {
+				readTemperature(jsonReader, weatherValues);
+			}
+			else if (OWM_WEATHER.equals(name)) {
+				readWeather(jsonReader, weatherValues);
+			}
+			else {
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+
+		for (String column : DAY_COLUMNS) {
+			if (!weatherValues.containsKey(column)) {
+				throw new JSONException("Incomplete day forecast, missing " + column);
+			}
+		}
+		return weatherValues;
+	}
+
+	private void readTemperature(JsonReader jsonReader, ContentValues weatherValues) throws IOException {
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			String name = jsonReader.nextName();
+			if (OWM_MAX.equals(name)) {
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, jsonReader.nextDouble());
+			}
+			else if (OWM_MIN.equals(name)) {
+				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, jsonReader.nextDouble());
+			}
+			else {
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+	}
+
+	private void readWeather(JsonReader jsonReader, ContentValues weatherValues) throws IOException {
+		// Description is in a child array called "weather", only its first element is used.
+		jsonReader.beginArray();
+		if (jsonReader.hasNext() && jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				String name = jsonReader.nextName();
+				if (OWM_DESCRIPTION.equals(name)) {
+					weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, jsonReader.nextString());
+				}
+				else if (OWM_WEATHER_ID.equals(name)) {
+					weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, (int) jsonReader.nextDouble());
+				}
+				else {
+					jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+		}
+		while (jsonReader.hasNext()) {
+			jsonReader.skipValue();
+		}
+		jsonReader.endArray();
+	}
+}
@@ -8,56 +8,72 @@ import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.format.Time;
 import android.util.Log;
 
-import com.android.example.sunshine.BuildConfig;
 import com.android.example.sunshine.R;
 import com.android.example.sunshine.activities.MainActivity;
 import com.android.example.sunshine.data.WeatherContract;
 import com.android.example.sunshine.utils.Utility;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Calendar;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interval at which to sync with the weather, in milliseconds.
 	@SuppressWarnings("Unused")
 	private static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
-	// 60 seconds (1 minute)  180 = 3 hours
-	public static final int SYNC_INTERVAL = 3 * 60 * 60;
-	public static final int SYNC_FLEXTIME = SYNC_INTERVAL / 3;
 	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
 	private static final int WEATHER_NOTIFICATION_ID = 630;
-	private final static String FORECAST_BASE_URL = "http://api.openweathermap.org/data/2.5/forecast/daily?";
-	private final static String QUERY_PARAM = "q";
-	private final static String FORMAT_PARAM = "mode";
-	private final static String UNITS_PARAM = "units";
-	private final static String DAYS_PARAM = "cnt";
-	private final static String PARAM_API_KEY = "appid";
+	// Transient failures retried within a single sync, shared by all its locations
+	private static final int MAX_RETRIES_PER_SYNC = 2;
+	// Delay before the first retry within a sync, doubled for the next one, in milliseconds
+	private static final long RETRY_DELAY = 2 * 1000;
+	// Sync extra restricting a sync to a single location
+	private static final String SYNC_EXTRAS_LOCATION = "location";
+	// Shared by every sync run of the process, so idle connections are reused from one sync to the next
+	private static HttpEngine sHttpEngine;
+	private static WeatherSource sWeatherSource;
+	private static final WeatherSource sThreeHourlySource = new UrlWeatherSource("three_hourly",
+	                                                                             UrlWeatherSource.THREE_HOURLY_BASE_URL,
+	                                                                             UrlWeatherSource.THREE_HOURLY_BASE_URL,
+	                                                                             UrlWeatherSource.THREE_HOURLY_COUNT);
+	private static final GroupForecastSource sGroupSource = new GroupForecastSource(GroupForecastSource.GROUP_BASE_URL);
+	// Cities of a group response read but not parsed yet, beyond which reading the response waits for the parsers
+	private static final int MAX_PENDING_GROUP_CITIES = 16;
+	// Mirror the weather source was built for, so it's rebuilt when the preference changes
+	private static String sWeatherSourceMirror;
 	private static final String[] NOTIFY_WEATHER_PROJECTION = new String[]{
 	  WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
 	  WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
@@ -70,8 +86,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 	private static final int INDEX_MIN_TEMP = 2;
 	private static final int INDEX_SHORT_DESC = 3;
 
+	// Today's row of every location stored by the running sync, so the notification needs no database round trip
+	private final Map<String, ContentValues> mIngestedToday = new ConcurrentHashMap<>();
+	// 3-hour forecasts the running sync failed to download, whose locations still got their daily forecast
+	private final AtomicInteger mThreeHourlyFailures = new AtomicInteger();
+	private final ApiRateLimiter mRateLimiter;
+
 	public SunshineSyncAdapter(Context context, boolean autoInitialize) {
 		super(context, autoInitialize);
+		mRateLimiter = new ApiRateLimiter(context);
 	}
 
 	/**
@@ -86,6 +109,57 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 		ContentResolver.requestSync(getSyncAccount(context), context.getString(R.string.content_authority), bundle);
 	}
 
+	/**
+	 * Helper method to have the sync adapter revalidate the stored forecast of a single location soon. Unlike
+	 * {@link #syncImmediately(Context)}, the sync honors the backoff and skips a download still fresh in the cache.
+	 */
+	public static void revalidate(Context context, String location) {
+		Bundle bundle = new Bundle();
+		bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+		bundle.putString(SYNC_EXTRAS_LOCATION, location);
+		ContentResolver.requestSync(getSyncAccount(context), context.getString(R.string.content_authority), bundle);
+	}
+
+	/** @return the HTTP engine used to download forecasts, created on first use. */
+	public static synchronized HttpEngine getHttpEngine() {
+		if (sHttpEngine == null) {
+			sHttpEngine = new UrlConnectionHttpEngine.Builder().build();
+		}
+		return sHttpEngine;
+	}
+
+	/** Replaces the HTTP engine used by the next syncs, e.g. with one pointing at a local test server. */
+	public static synchronized void setHttpEngine(HttpEngine httpEngine) {
+		sHttpEngine = httpEngine;
+	}
+
+	/**
+	 * @return the source forecasts are downloaded from: OpenWeatherMap, hedged with the mirror set in the preferences
+	 * if there's one.
+	 */
+	public static synchronized WeatherSource getWeatherSource(Context context) {
+		final String mirror = Utility.getPreferredForecastMirror(context);
+		if (sWeatherSource == null || (sWeatherSourceMirror != null && !sWeatherSourceMirror.equals(mirror))) {
+			WeatherSource primary = new UrlWeatherSource("primary", UrlWeatherSource.FORECAST_BASE_URL);
+			if (mirror.length() > 0) {
+				sWeatherSource = new HedgedWeatherSource(primary,
+				                                         new UrlWeatherSource("mirror", mirror, UrlWeatherSource.FORECAST_BASE_URL));
+			}
+			else {
+				sWeatherSource = primary;
+			}
+			sWeatherSourceMirror = mirror;
+		}
+		return sWeatherSource;
+	}
+
+	/** Replaces the source of the next syncs, e.g. with a {@link FileWeatherSource} or one pointing at a test server. */
+	public static synchronized void setWeatherSource(WeatherSource weatherSource) {
+		sWeatherSource = weatherSource;
+		// kept until set again, whatever the preferences say
+		sWeatherSourceMirror = null;
+	}
+
 	/**
 	 * Helper method to get the fake account to be used with SyncAdapter, or make a new one if the fake account doesn't
 	 * exist yet.  If we make a new account, we call the onAccountCreated method so we can initialize things.
@@ -95,6 +169,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 	 * @return a fake account.
 	 */
 	public static Account getSyncAccount(Context context) {
+		final long lookupStart = System.nanoTime();
 		// Get an instance of the Android account manager
 		AccountManager accountManager = (AccountManager) context.getSystemService(Context.ACCOUNT_SERVICE);
 
@@ -119,8 +194,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
              * here.
              */
 
+			SyncJournal.recordAccountLookup(System.nanoTime() - lookupStart);
 			onAccountCreated(newAccount, context);
+			return newAccount;
 		}
+		SyncJournal.recordAccountLookup(System.nanoTime() - lookupStart);
 		return newAccount;
 	}
 
@@ -147,7 +225,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 	    /*
 	     * Since we've created an account
          */
-		SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+		SyncScheduler scheduler = new SyncScheduler(context);
+		SunshineSyncAdapter.configurePeriodicSync(context, scheduler.getSyncInterval(), scheduler.getSyncFlexTime());
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -166,152 +245,784 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 
 	@Override
 	public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+		// Whatever happens, the refreshes waiting for this sync must hear about its end
+		final SyncCoordinator coordinator = SyncCoordinator.getInstance();
+		final long syncToken = coordinator.onSyncStarted();
+		final List<String> attemptedLocations = new ArrayList<>();
+		Map<String, Integer> changedRows = Collections.emptyMap();
+		try {
+			changedRows = performSync(extras, provider, syncResult, attemptedLocations);
+		}
+		finally {
+			coordinator.onSyncFinished(syncToken, attemptedLocations, changedRows.keySet());
+		}
+	}
 
-		// If there's no zip code, there's nothing to look up.  Verify size of params.
-		String locationQuery = Utility.getPreferredLocation(getContext());
+	/**
+	 * Syncs the forecasts and reports the outcome in the sync result. Everything downloaded is stored at the end, in a
+	 * single batch applied through the provider client.
+	 *
+	 * @param attemptedLocations filled with the locations the sync tries to download, none if it backs off or is
+	 *                           deferred
+	 *
+	 * @return the number of new or changed rows of every location synced and stored without error
+	 */
+	private Map<String, Integer> performSync(Bundle extras, ContentProviderClient provider, SyncResult syncResult, List<String> attemptedLocations) {
+		// Manual refreshes always ask the server, even if the stored forecast is still fresh
+		final boolean manualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+		final SyncBackoff backoff = new SyncBackoff(getContext());
+		if (!manualSync && backoff.isBackingOff()) {
+			// Recent syncs failed, leave the server alone; a manual refresh still goes through
+			Log.d(LOG_TAG, String.format("backing off after %d failures", backoff.getFailureCount()));
+			syncResult.delayUntil = backoff.getBackoffUntil() / 1000;
+			return Collections.emptyMap();
+		}
 
-		// These two need to be declared outside the try/catch
-		// so that they can be closed in the finally block.
-		HttpURLConnection urlConnection = null;
-		BufferedReader reader = null;
+		final String onlyLocation = extras.getString(SYNC_EXTRAS_LOCATION);
+		final SyncPolicy policy = new SyncPolicy(getContext());
+		if (SyncPolicy.isDeferral(policy.decide(manualSync, onlyLocation))) {
+			// Not worth the network or the battery right now, the location is synced along with the next sync
+			return Collections.emptyMap();
+		}
+
+		final ForecastValidatorCache validatorCache = new ForecastValidatorCache(getContext());
+		final String preferredLocation = Utility.getPreferredLocation(getContext());
+		final List<String> locations = onlyLocation != null ?
+		                               new ArrayList<>(Collections.singletonList(onlyLocation)) :
+		                               getLocationsToSync(preferredLocation);
+		// Locations of the deferred syncs come along, so they cost no radio wake-up of their own
+		for (String location : policy.takePendingLocations()) {
+			if (!locations.contains(location)) {
+				locations.add(location);
+			}
+		}
+		attemptedLocations.addAll(locations);
+		// When enabled, locations explicitly set to a city id, e.g. id:3081368, are downloaded through the group
+		// endpoint, postal codes never are; the preferred location keeps its own request, which honors the cached
+		// validators and brings the 3-hour forecast too
+		final int groupSize = onlyLocation == null ? Utility.getPreferredSyncGroupSize(getContext()) : 0;
+		final List<String> ownRequestLocations = new ArrayList<>();
+		final List<String> groupedLocations = new ArrayList<>();
+		for (String location : locations) {
+			if (groupSize > 0 && !location.equals(preferredLocation) && GroupForecastSource.isCityId(location)) {
+				groupedLocations.add(location);
+			}
+			else {
+				ownRequestLocations.add(location);
+			}
+		}
+		final AtomicInteger retryBudget = new AtomicInteger(MAX_RETRIES_PER_SYNC);
+		final SyncJournal journal = new SyncJournal();
+		final SyncBatch batch = new SyncBatch();
+		mIngestedToday.clear();
+		mThreeHourlyFailures.set(0);
+
+		// Number of rows downloaded for every location synced without error
+		Map<String, Integer> downloadedRows = new HashMap<>();
+		final Map<String, Throwable> failures = new HashMap<>();
+		if (ownRequestLocations.size() == 1) {
+			final String location = ownRequestLocations.get(0);
+			try {
+				downloadedRows.put(location, syncLocationWithRetries(location, manualSync, validatorCache, retryBudget, journal, batch));
+			}
+			catch (IOException | JSONException | SQLException e) {
+				failures.put(location, e);
+			}
+		}
+		else if (!ownRequestLocations.isEmpty()) {
+			downloadedRows = syncLocations(ownRequestLocations, manualSync, validatorCache, retryBudget, journal, batch, failures);
+		}
+
+		// Number of new or changed rows of every location synced and stored without error
+		final Map<String, Integer> changedRows = new HashMap<>();
+		final long storeStart = System.nanoTime();
+		try {
+			final Map<String, Integer> storedRows = batch.apply(provider, journal);
+			batch.storeValidators(validatorCache);
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_BULK_INSERT, System.nanoTime() - storeStart, 0,
+			               batch.getWrittenRows());
+			for (String location : downloadedRows.keySet()) {
+				Integer rows = storedRows.get(location);
+				changedRows.put(location, rows != null ? rows : 0);
+			}
+		}
+		catch (RemoteException | OperationApplicationException | SQLException e) {
+			// Nothing was stored, nor were the validators, so the next sync downloads everything again
+			Log.e(LOG_TAG, "Error storing the sync", e);
+			syncResult.databaseError = true;
+		}
+		if (!groupedLocations.isEmpty()) {
+			changedRows.putAll(syncGroups(groupedLocations, groupSize, manualSync, provider, journal, failures));
+		}
+		applyRetention(provider, syncResult, journal);
 
-		// Will contain the raw JSON response as a string.
-		String forecastJsonStr = null;
+		for (int rows : changedRows.values()) {
+			syncResult.stats.numInserts += rows;
+		}
+		syncResult.stats.numEntries += changedRows.size();
+		// Not worth a retry of the whole sync, the daily forecasts made it
+		syncResult.stats.numSkippedEntries += mThreeHourlyFailures.get();
+		// Delay requested by the server through Retry-After, in milliseconds
+		long retryAfter = 0;
+		// Locations whose request the rate limiter shed, and when it would let them through
+		int rateLimitedLocations = 0;
+		long rateLimitedUntil = 0;
+		for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+			if (failure.getValue() instanceof RateLimitException) {
+				rateLimitedLocations++;
+				rateLimitedUntil = Math.max(rateLimitedUntil, ((RateLimitException) failure.getValue()).getRetryAt());
+			}
+			else {
+				retryAfter = Math.max(retryAfter, recordFailure(syncResult, failure.getKey(), failure.getValue()));
+			}
+		}
+		if (syncResult.stats.numIoExceptions > 0) {
+			// The framework backs off too on soft errors, but not before our own, jittered, delay
+			syncResult.delayUntil = backoff.onFailure(retryAfter) / 1000;
+		}
+		else if (!changedRows.isEmpty()) {
+			backoff.onSuccess();
+		}
+		if (rateLimitedLocations > 0) {
+			// Not a failing server, so no backoff: a soft error the framework retries once the bucket has tokens again
+			Log.d(LOG_TAG, String.format("%d locations shed by the rate limiter, %.1f tokens left",
+			                             rateLimitedLocations,
+			                             mRateLimiter.getTokens()));
+			syncResult.stats.numIoExceptions += rateLimitedLocations;
+			syncResult.delayUntil = Math.max(syncResult.delayUntil, rateLimitedUntil / 1000);
+		}
 
-		String format = "json";
-		String units = "metric";
-		int numDays = 14;
+		// Once a day, whether or not the forecast changed: notifyWeather checks when the user was last notified. Only
+		// the content notifications are skipped for unchanged rows
+		if (changedRows.containsKey(preferredLocation)) {
+			final long notificationStart = System.nanoTime();
+			notifyWeather(preferredLocation, mIngestedToday.get(preferredLocation));
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_NOTIFICATION, System.nanoTime() - notificationStart, 0, 0);
+		}
 
+		int changedLocations = 0;
+		for (int rows : changedRows.values()) {
+			if (rows > 0) {
+				changedLocations++;
+			}
+		}
+		SyncScheduler scheduler = new SyncScheduler(getContext());
+		int syncInterval = scheduler.getSyncInterval();
+		if (scheduler.onSyncFinished(changedRows.size(), changedLocations) != syncInterval) {
+			configurePeriodicSync(getContext(), scheduler.getSyncInterval(), scheduler.getSyncFlexTime());
+		}
+
+		journal.flush(getContext().getContentResolver());
+		Log.d(LOG_TAG, "sync finished: " + syncResult.toDebugString());
+		return changedRows;
+	}
+
+	/**
+	 * Deletes the rows which fell out of the retention window of their table, and records how many rows and bytes
+	 * were reclaimed.
+	 */
+	private static void applyRetention(ContentProviderClient provider, SyncResult syncResult, SyncJournal journal) {
+		final long start = System.nanoTime();
 		try {
-			// Construct the URL for the OpenWeatherMap query
-			// Possible parameters are avaiable at OWM's forecast API page, at
-			// http://openweathermap.org/API#forecast
-
-			Uri builtUri = Uri.parse(FORECAST_BASE_URL)
-			                  .buildUpon()
-			                  .appendQueryParameter(QUERY_PARAM, locationQuery)
-			                  .appendQueryParameter(FORMAT_PARAM, format)
-			                  .appendQueryParameter(UNITS_PARAM, units)
-			                  .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-			                  .appendQueryParameter(PARAM_API_KEY, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-			                  .build();
-
-			URL url = new URL(builtUri.toString());
-
-			Log.d(LOG_TAG, String.format("openWeather url requested: %s", url));
-
-			// Create the request to OpenWeatherMap, and open the connection
-			urlConnection = (HttpURLConnection) url.openConnection();
-			urlConnection.setRequestMethod("GET");
-			urlConnection.connect();
-
-			// Read the input stream into a String
-			InputStream inputStream = urlConnection.getInputStream();
-			StringBuilder buffer = new StringBuilder();
-			if (inputStream != null) {
-				reader = new BufferedReader(new InputStreamReader(inputStream));
-
-				String line;
-				while ((line = reader.readLine()) != null) {
-					// Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-					// But it does make debugging a *lot* easier if you print out the completed
-					// buffer for debugging.
-					buffer.append(line).append("\n");
+			final int reclaimedRows = provider.delete(WeatherContract.RetentionEntry.CONTENT_URI, null, null);
+			final long duration = System.nanoTime() - start;
+			long reclaimedBytes = 0;
+			Cursor cursor = provider.query(WeatherContract.RetentionEntry.CONTENT_URI, null, null, null, null);
+			if (cursor != null) {
+				try {
+					while (cursor.moveToNext()) {
+						final int rows = cursor.getInt(cursor.getColumnIndex(WeatherContract.RetentionEntry.COLUMN_ROWS));
+						final long bytes = cursor.getLong(cursor.getColumnIndex(WeatherContract.RetentionEntry.COLUMN_BYTES));
+						Log.d(LOG_TAG, String.format("retention of %s: %d rows, %d bytes reclaimed",
+						                             cursor.getString(cursor.getColumnIndex(WeatherContract.RetentionEntry.COLUMN_TABLE)),
+						                             rows,
+						                             bytes));
+						reclaimedBytes += bytes;
+					}
 				}
-
-				if (buffer.length() > 0) {
-					forecastJsonStr = buffer.toString();
+				finally {
+					cursor.close();
 				}
 			}
+			syncResult.stats.numDeletes += reclaimedRows;
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_OLD_ROW_DELETE, duration, reclaimedBytes, reclaimedRows);
 		}
-		catch (IOException e) {
-			Log.e(LOG_TAG, "Error ", e);
+		catch (RemoteException | SQLException e) {
+			Log.e(LOG_TAG, "Error deleting old forecasts", e);
+			syncResult.databaseError = true;
 		}
-		finally {
-			if (urlConnection != null) {
-				urlConnection.disconnect();
+	}
+
+	/**
+	 * Counts a failed location into the sync result, according to what went wrong. Network errors and transient
+	 * server errors are soft errors the framework retries later; a rejected API key, an invalid payload or a database
+	 * failure are hard errors it doesn't retry.
+	 *
+	 * @return the delay the server asked for before the next request, in milliseconds; 0 if it didn't
+	 */
+	private static long recordFailure(SyncResult syncResult, String location, Throwable error) {
+		Log.e(LOG_TAG, String.format("Error syncing %s", location), error);
+		long retryAfter = 0;
+		if (error instanceof HttpStatusException) {
+			HttpStatusException statusError = (HttpStatusException) error;
+			if (statusError.isAuthError()) {
+				syncResult.stats.numAuthExceptions++;
+			}
+			else if (statusError.isTransient()) {
+				syncResult.stats.numIoExceptions++;
+				retryAfter = Math.max(0, statusError.getRetryAfter() * 1000);
 			}
-			if (reader != null) {
+			else {
+				// e.g. an unknown city; asking again won't help
+				syncResult.stats.numSkippedEntries++;
+			}
+		}
+		else if (error instanceof IOException) {
+			syncResult.stats.numIoExceptions++;
+		}
+		else if (error instanceof JSONException) {
+			syncResult.stats.numParseExceptions++;
+		}
+		else if (error instanceof SQLException ||
+		         error instanceof RemoteException ||
+		         error instanceof OperationApplicationException) {
+			syncResult.databaseError = true;
+		}
+		else {
+			syncResult.stats.numSkippedEntries++;
+		}
+		return retryAfter;
+	}
+
+	/**
+	 * Syncs a location, retrying transient failures while the sync's retry budget lasts. The budget is shared by all
+	 * the locations of a sync, so a server which is down costs a couple of retries, not a couple per location.
+	 */
+	private int syncLocationWithRetries(String locationQuery, boolean manualSync, ForecastValidatorCache validatorCache, AtomicInteger retryBudget, SyncJournal journal, SyncBatch batch) throws IOException, JSONException {
+		int attempt = 0;
+		while (true) {
+			try {
+				return syncLocation(locationQuery, manualSync, validatorCache, journal, batch);
+			}
+			catch (IOException e) {
+				// A request shed by the rate limiter would only be shed again
+				boolean transientError = !(e instanceof RateLimitException) &&
+				                         (!(e instanceof HttpStatusException) || ((HttpStatusException) e).isTransient());
+				if (!transientError || retryBudget.getAndDecrement() <= 0) {
+					throw e;
+				}
+				long delay = RETRY_DELAY << attempt++;
+				delay = delay / 2 + (long) (Math.random() * (delay / 2));
+				Log.w(LOG_TAG, String.format("retrying %s in %d ms: %s", locationQuery, delay, e.getMessage()));
 				try {
-					reader.close();
+					Thread.sleep(delay);
 				}
-				catch (final IOException e) {
-					Log.e(LOG_TAG, "Error closing stream", e);
+				catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
 				}
 			}
 		}
+	}
 
+	/**
+	 * Downloads the daily forecasts of locations set to OpenWeatherMap city ids, {@code groupSize} cities per request
+	 * of the group endpoint. The cities of a response are parsed on a worker pool as the response arrives, and stored
+	 * in a batch of their own once it is over, so memory is bounded by the group size, whatever the number of
+	 * locations.
+	 * <p/>
+	 * The error of every failed location is put into {@code failures}.
+	 *
+	 * @return the number of new or changed rows of every location synced and stored without error
+	 */
+	private Map<String, Integer> syncGroups(List<String> cityIds, int groupSize, boolean manualSync, ContentProviderClient provider, SyncJournal journal, Map<String, Throwable> failures) {
+		final Map<String, Integer> changedRows = new HashMap<>();
+		final ExecutorService workers = Executors.newFixedThreadPool(Utility.getPreferredSyncConcurrency(getContext()));
+		final long start = System.nanoTime();
 		try {
-			if (forecastJsonStr != null) {
-				getWeatherDataFromJson(forecastJsonStr, locationQuery);
-				notifyWeather();
+			for (int i = 0; i < cityIds.size(); i += groupSize) {
+				final List<String> group = cityIds.subList(i, Math.min(i + groupSize, cityIds.size()));
+				try {
+					changedRows.putAll(syncGroup(group, manualSync, workers, provider, journal, failures));
+				}
+				catch (RateLimitException e) {
+					// The next groups would be shed too
+					for (String cityId : cityIds.subList(i, cityIds.size())) {
+						failures.put(cityId, e);
+					}
+					break;
+				}
+				catch (IOException | JSONException | SQLException | RemoteException | OperationApplicationException e) {
+					for (String cityId : group) {
+						failures.put(cityId, e);
+					}
+				}
+				catch (InterruptedException e) {
+					// The sync has been canceled
+					Thread.currentThread().interrupt();
+					break;
+				}
 			}
-			Calendar date = Calendar.getInstance();
-			date.add(Calendar.DATE, -1);
-			getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-			                                         WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-			                                         new String[]{Long.toString(date.getTimeInMillis())});
 		}
-		catch (JSONException e) {
-			Log.e(LOG_TAG, e.getMessage(), e);
-			e.printStackTrace();
+		finally {
+			workers.shutdownNow();
 		}
+		final long elapsed = System.nanoTime() - start;
+		Log.d(LOG_TAG, String.format("group sync: %d of %d locations in %d ms, %d locations/s",
+		                             changedRows.size(),
+		                             cityIds.size(),
+		                             elapsed / 1000000,
+		                             changedRows.size() * 1000000000L / Math.max(elapsed, 1)));
+		return changedRows;
 	}
 
 	/**
-	 * Take the String representing the complete forecast in JSON Format and pull out the data we need to construct the
-	 * Strings needed for the wireframes.
-	 * <p/>
-	 * Fortunately parsing is easy:  constructor takes the JSON string and converts it into an Object hierarchy for us.
+	 * Downloads, parses and stores a single group of cities.
+	 *
+	 * @return the number of new or changed rows of every city of the group stored without error
 	 */
-	private String[] getWeatherDataFromJson(String forecastJsonStr, String locationSetting) throws JSONException {
-		// Now we have a String representing the complete forecast in JSON Format.
-		// Fortunately parsing is easy:  constructor takes the JSON string and converts it
-		// into an Object hierarchy for us.
+	private Map<String, Integer> syncGroup(List<String> group, boolean manualSync, ExecutorService workers, ContentProviderClient provider, SyncJournal journal, Map<String, Throwable> failures) throws IOException, JSONException, InterruptedException, RemoteException, OperationApplicationException {
+		HttpEngine.Response response = null;
+		ResponseBody responseBody = null;
+		final SyncBatch batch = new SyncBatch();
+		final Map<String, SyncBatch.LocationWrites> parsing = new ConcurrentHashMap<>();
+		final Map<String, Throwable> cityFailures = new ConcurrentHashMap<>();
+		// Cities handed to a worker; a city listed again in the response is only counted
+		final Set<String> claimed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		try {
+			mRateLimiter.acquire(manualSync);
+			final long connectStart = System.nanoTime();
+			response = sGroupSource.fetch(group);
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_CONNECT, System.nanoTime() - connectStart, 0, 0);
+			if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+				throw new HttpStatusException(String.format("Unexpected response %d for a group of %d cities",
+				                                            response.getStatusCode(),
+				                                            group.size()),
+				                              response.getStatusCode(),
+				                              HttpStatusException.parseRetryAfter(response.getHeader("Retry-After")));
+			}
+			responseBody = ResponseBody.open(response);
+
+			// The response names its cities by their id, the writes go to their location setting
+			final Map<String, String> requested = new HashMap<>();
+			for (String locationSetting : group) {
+				requested.put(GroupForecastSource.getCityId(locationSetting), locationSetting);
+			}
+			final long parseStart = System.nanoTime();
+			new GroupForecastParser(workers, MAX_PENDING_GROUP_CITIES).parse(responseBody.getReader(), new GroupForecastParser.Handler() {
+				@Override
+				public ForecastParser.Handler onCity(String cityId) {
+					final String locationSetting = requested.get(cityId);
+					if (locationSetting == null) {
+						return null;
+					}
+					if (!claimed.add(cityId)) {
+						duplicates.incrementAndGet();
+						return null;
+					}
+					SyncBatch.LocationWrites writes = new SyncBatch.LocationWrites(locationSetting);
+					parsing.put(cityId, writes);
+					return new ForecastIngester(writes);
+				}
 
-		// These are the names of the JSON objects that need to be extracted.
+				@Override
+				public void onCityParsed(String cityId) {
+					SyncBatch.LocationWrites writes = parsing.remove(cityId);
+					if (writes == null) {
+						duplicates.incrementAndGet();
+						return;
+					}
+					writes.markSynced();
+					batch.add(writes);
+				}
+
+				@Override
+				public void onCityFailed(String cityId, JSONException error) {
+					final String locationSetting = requested.get(cityId);
+					if (locationSetting != null) {
+						parsing.remove(cityId);
+						cityFailures.put(locationSetting, error);
+					}
+				}
+			});
+			final long parseNanos = System.nanoTime() - parseStart;
+			if (duplicates.get() > 0) {
+				Log.w(LOG_TAG, String.format("%d cities listed more than once in the group response", duplicates.get()));
+			}
+			final long transferNanos = responseBody.getTransferNanos();
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_DOWNLOAD, transferNanos,
+			               responseBody.getTransferredBytes(), 0);
+			journal.record(null, WeatherContract.SyncJournalEntry.PHASE_PARSE, parseNanos - transferNanos, 0, 0);
+		}
+		finally {
+			try {
+				if (responseBody != null) {
+					responseBody.close();
+				}
+				if (response != null) {
+					response.close();
+				}
+			}
+			catch (final IOException e) {
+				Log.e(LOG_TAG, "Error closing stream", e);
+			}
+		}
 
-		// Location information
-		final String OWM_CITY = "city";
-		final String OWM_CITY_NAME = "name";
-		final String OWM_COORD = "coord";
+		final long storeStart = System.nanoTime();
+		final Map<String, Integer> changedRows = batch.apply(provider, journal);
+		journal.record(null, WeatherContract.SyncJournalEntry.PHASE_BULK_INSERT, System.nanoTime() - storeStart, 0,
+		               batch.getWrittenRows());
+		failures.putAll(cityFailures);
+		for (String locationSetting : group) {
+			if (!changedRows.containsKey(locationSetting) && !cityFailures.containsKey(locationSetting)) {
+				failures.put(locationSetting,
+				             new JSONException("No forecast for " + locationSetting + " in the group response"));
+			}
+		}
+		return changedRows;
+	}
 
-		// Location coordinate
-		final String OWM_LATITUDE = "lat";
-		final String OWM_LONGITUDE = "lon";
+	/**
+	 * Returns the locations the sync should download, according to the sync locations preference. The preferred
+	 * location always comes first, whatever the mode.
+	 */
+	private List<String> getLocationsToSync(String preferredLocation) {
+		final Context context = getContext();
+		final String mode = Utility.getPreferredSyncLocations(context);
+		final Set<String> locations = new LinkedHashSet<>();
+		locations.add(preferredLocation);
+
+		String selection = null;
+		if (mode.equals(context.getString(R.string.pref_value_sync_locations_flagged))) {
+			selection = WeatherContract.LocationEntry.COLUMN_SYNC_ENABLED + " != 0";
+		}
+		if (!mode.equals(context.getString(R.string.pref_value_sync_locations_preferred))) {
+			Cursor cursor = context.getContentResolver()
+			                       .query(WeatherContract.LocationEntry.CONTENT_URI,
+			                              new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+			                              selection,
+			                              null,
+			                              null);
+			if (cursor != null) {
+				while (cursor.moveToNext()) {
+					locations.add(cursor.getString(0));
+				}
+				cursor.close();
+			}
+		}
+		return new ArrayList<>(locations);
+	}
 
-		// Weather information.  Each day's forecast info is an element of the "list" array.
-		final String OWM_LIST = "list";
+	/**
+	 * Downloads the forecasts of several locations concurrently. Every location is fetched, parsed and stored by its
+	 * own worker, so one location is being stored while others are still downloading, and a failing location does not
+	 * stop the others.
+	 *
+	 * The error of every failed location is put into {@code failures}.
+	 *
+	 * @return the number of rows downloaded for every location synced without error
+	 */
+	private Map<String, Integer> syncLocations(List<String> locations, final boolean manualSync, final ForecastValidatorCache validatorCache, final AtomicInteger retryBudget, final SyncJournal journal, final SyncBatch batch, Map<String, Throwable> failures) {
+		final int poolSize = Math.min(Utility.getPreferredSyncConcurrency(getContext()), locations.size());
+		final ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+		final List<Future<Integer>> results = new ArrayList<>(locations.size());
+		for (final String location : locations) {
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return syncLocationWithRetries(location, manualSync, validatorCache, retryBudget, journal, batch);
+				}
+			}));
+		}
+		executor.shutdown();
 
-		final String OWM_PRESSURE = "pressure";
-		final String OWM_HUMIDITY = "humidity";
-		final String OWM_WINDSPEED = "speed";
-		final String OWM_WIND_DIRECTION = "deg";
+		Map<String, Integer> downloadedRows = new HashMap<>();
+		try {
+			for (int i = 0; i < locations.size(); i++) {
+				try {
+					downloadedRows.put(locations.get(i), results.get(i).get());
+				}
+				catch (ExecutionException e) {
+					failures.put(locations.get(i), e.getCause());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// The sync has been canceled, don't leave the workers behind
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		Log.d(LOG_TAG, String.format("synced %d locations with %d workers, %d failed", locations.size(), poolSize, failures.size()));
+		return downloadedRows;
+	}
 
-		// All temperatures are children of the "temp" object.
-		final String OWM_TEMPERATURE = "temp";
-		final String OWM_MAX = "max";
-		final String OWM_MIN = "min";
+	/**
+	 * Downloads the forecast of a single location and adds it to the batch of the sync, recording the duration of every
+	 * phase in the journal. Nothing is added unless the whole location is downloaded without error.
+	 *
+	 * @return the number of rows downloaded, 0 when the forecast didn't change since the last sync
+	 */
+	private int syncLocation(String locationQuery, boolean manualSync, ForecastValidatorCache validatorCache, SyncJournal journal, SyncBatch batch) throws IOException, JSONException {
+		// These two need to be declared outside the try/catch
+		// so that they can be closed in the finally block.
+		HttpEngine.Response response = null;
+		ResponseBody responseBody = null;
 
-		final String OWM_WEATHER = "weather";
-		final String OWM_DESCRIPTION = "main";
-		final String OWM_WEATHER_ID = "id";
+		final SyncBatch.LocationWrites writes = new SyncBatch.LocationWrites(locationQuery);
+		try {
+			final WeatherSource weatherSource = getWeatherSource(getContext());
+			final String url = weatherSource.getForecastUrl(locationQuery);
+
+			if (!manualSync && validatorCache.isFresh(locationQuery, url)) {
+				Log.d(LOG_TAG, String.format("forecast for %s is still fresh, skipping download", locationQuery));
+				// The stored forecast is confirmed current, so it must stop counting as stale, or every query past the
+				// freshness budget would request another revalidation which skips the download again
+				writes.markSynced();
+			}
+			else {
+				Log.d(LOG_TAG, String.format("forecast requested from %s: %s", weatherSource.getName(), url));
+
+				// Send the request, over a pooled connection when one is available
+				final HttpEngine httpEngine = getHttpEngine();
+				Map<String, String> headers = new HashMap<>();
+				validatorCache.addConditionalHeaders(locationQuery, url, headers);
+				ResponseBody.requestCompression(headers);
+				mRateLimiter.acquire(manualSync);
+				final long connectStart = System.nanoTime();
+				response = weatherSource.fetch(locationQuery, headers);
+				journal.record(locationQuery, WeatherContract.SyncJournalEntry.PHASE_CONNECT, System.nanoTime() - connectStart, 0, 0);
+				Log.d(LOG_TAG, String.format("http requests: %d", httpEngine.getRequestCount()));
+
+				if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					// Nothing changed upstream since the last sync, so there's nothing to parse, store or notify
+					Log.d(LOG_TAG, String.format("forecast for %s not modified", locationQuery));
+					validatorCache.refreshValidators(locationQuery, response);
+					writes.markSynced();
+				}
+				else if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+					throw new HttpStatusException(String.format("Unexpected response %d for %s",
+					                                            response.getStatusCode(),
+					                                            locationQuery),
+					                              response.getStatusCode(),
+					                              HttpStatusException.parseRetryAfter(response.getHeader("Retry-After")));
+				}
+				else {
+					// Parse the response straight from the network stream, rows are collected as they are found
+					responseBody = ResponseBody.open(response);
+
+					ForecastIngester ingester = new ForecastIngester(writes);
+					ForecastParser parser = ForecastParser.newInstance(Utility.getPreferredForecastParser(getContext()));
+					final long parseStart = System.nanoTime();
+					parser.parse(responseBody.getReader(), ingester);
+					// Parsing reads straight from the network, so waiting for it is taken out
+					final long parseNanos = System.nanoTime() - parseStart;
+					final long transferNanos = responseBody.getTransferNanos();
+					journal.record(locationQuery, WeatherContract.SyncJournalEntry.PHASE_DOWNLOAD, transferNanos,
+					               responseBody.getTransferredBytes(), 0);
+					journal.record(locationQuery, WeatherContract.SyncJournalEntry.PHASE_PARSE,
+					               parseNanos - transferNanos, 0, 0);
+
+					Log.d(LOG_TAG, String.format("forecast for %s: %d bytes transferred, %d bytes saved by compression",
+					                             locationQuery,
+					                             responseBody.getTransferredBytes(),
+					                             responseBody.getSavedBytes()));
+
+					if (ingester.getTodayValues() != null) {
+						mIngestedToday.put(locationQuery, ingester.getTodayValues());
+					}
+					// Stored along with the rows, see SyncBatch.storeValidators
+					writes.addValidators(locationQuery, new ForecastValidatorCache.Validators(url, response));
+					writes.markSynced();
+				}
+			}
+		}
+		finally {
+			// Closing the response hands its connection back to the engine instead of disconnecting it
+			try {
+				if (responseBody != null) {
+					responseBody.close();
+				}
+				if (response != null) {
+					response.close();
+				}
+			}
+			catch (final IOException e) {
+				Log.e(LOG_TAG, "Error closing stream", e);
+			}
+		}
+		try {
+			syncThreeHourlyForecast(locationQuery, manualSync, validatorCache, writes);
+		}
+		catch (RateLimitException e) {
+			// The daily forecast is stored anyway, the 3-hour one waits for the next sync
+			Log.d(LOG_TAG, String.format("3-hour forecast of %s shed by the rate limiter", locationQuery));
+		}
+		catch (IOException | JSONException e) {
+			// Likewise, a failing 3-hour feed doesn't cost the location its daily forecast
+			Log.w(LOG_TAG, String.format("3-hour forecast of %s failed", locationQuery), e);
+			writes.clearThreeHourly();
+			mThreeHourlyFailures.incrementAndGet();
+		}
+		batch.add(writes);
+		return writes.size();
+	}
 
+	/**
+	 * Downloads the 3-hour forecast of a single location and adds it to the writes of the location.
+	 *
+	 * @return the number of rows downloaded
+	 */
+	private int syncThreeHourlyForecast(String locationQuery, boolean manualSync, ForecastValidatorCache validatorCache, SyncBatch.LocationWrites writes) throws IOException, JSONException {
+		final String url = sThreeHourlySource.getForecastUrl(locationQuery);
+		// Kept apart from the validators of the daily forecast of the location, which would overwrite them
+		final String validatorKey = getThreeHourlyValidatorKey(locationQuery);
+		if (!manualSync && validatorCache.isFresh(validatorKey, url)) {
+			return 0;
+		}
+		HttpEngine.Response response = null;
+		ResponseBody responseBody = null;
 		try {
-			JSONObject forecastJson = new JSONObject(forecastJsonStr);
-			JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+			Map<String, String> headers = new HashMap<>();
+			validatorCache.addConditionalHeaders(validatorKey, url, headers);
+			ResponseBody.requestCompression(headers);
+			mRateLimiter.acquire(manualSync);
+			response = sThreeHourlySource.fetch(locationQuery, headers);
+			if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				validatorCache.refreshValidators(validatorKey, response);
+				return 0;
+			}
+			else if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+				throw new HttpStatusException(String.format("Unexpected response %d for the 3-hour forecast of %s",
+				                                            response.getStatusCode(),
+				                                            locationQuery),
+				                              response.getStatusCode(),
+				                              HttpStatusException.parseRetryAfter(response.getHeader("Retry-After")));
+			}
+			responseBody = ResponseBody.open(response);
+			ThreeHourlyIngester ingester = new ThreeHourlyIngester(writes);
+			new ThreeHourlyForecastParser().parse(responseBody.getReader(), ingester);
+			writes.addValidators(validatorKey, new ForecastValidatorCache.Validators(url, response));
+			return ingester.getBucketCount();
+		}
+		finally {
+			try {
+				if (responseBody != null) {
+					responseBody.close();
+				}
+				if (response != null) {
+					response.close();
+				}
+			}
+			catch (final IOException e) {
+				Log.e(LOG_TAG, "Error closing stream", e);
+			}
+		}
+	}
+
+	private static String getThreeHourlyValidatorKey(String locationSetting) {
+		return sThreeHourlySource.getName() + "/" + locationSetting;
+	}
+
+	/**
+	 * Notifies the user of today's forecast of the preferred location, at most once a day.
+	 *
+	 * @param todayValues today's row of the preferred location as just parsed by the sync, null to read it from the
+	 *                    provider instead
+	 */
+	private void notifyWeather(String preferredLocation, ContentValues todayValues) {
+		Context context = getContext();
+		//checking the last update and notify if it' the first of the day
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		boolean notificationsEnabled = prefs.getBoolean(context.getString(R.string.pref_key_notifications_enabled),
+		                                                Boolean.parseBoolean(context.getString(R.string.pref_default_notifications_enabled)));
+		if (!notificationsEnabled) {
+			return;
+		}
+		String lastNotificationKey = context.getString(R.string.pref_key_last_notification);
+		long lastSync = prefs.getLong(lastNotificationKey, 0);
+		if (System.currentTimeMillis() - lastSync < DAY_IN_MILLIS) {
+			return;
+		}
 
-			JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-			String cityName = cityJson.getString(OWM_CITY_NAME);
+		// Last sync was more than 1 day ago, let's send a notification with the weather.
+		final int weatherId;
+		final double high;
+		final double low;
+		final String desc;
+		if (todayValues != null) {
+			weatherId = todayValues.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+			high = todayValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+			low = todayValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+			desc = todayValues.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC);
+		}
+		else {
+			// Nothing parsed for today by this sync, fall back to what's stored
+			Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(preferredLocation,
+			                                                                           System.currentTimeMillis());
+			Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
+			if (cursor == null) {
+				return;
+			}
+			try {
+				if (!cursor.moveToFirst()) {
+					return;
+				}
+				weatherId = cursor.getInt(INDEX_WEATHER_ID);
+				high = cursor.getDouble(INDEX_MAX_TEMP);
+				low = cursor.getDouble(INDEX_MIN_TEMP);
+				desc = cursor.getString(INDEX_SHORT_DESC);
+			}
+			finally {
+				cursor.close();
+			}
+		}
 
-			JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-			double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-			double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+		int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+		String title = context.getString(R.string.app_name);
+
+		// Define the text of the forecast.
+		final boolean metric = Utility.isMetric(context, prefs);
+		String contentText = context.getString(R.string.format_notification,
+		                                       desc,
+		                                       Utility.formatTemperature(context, high, metric),
+		                                       Utility.formatTemperature(context, low, metric));
+
+		//build your notification here.
+		Intent intent = new Intent(context, MainActivity.class);
+		TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+		stackBuilder.addParentStack(MainActivity.class);
+		stackBuilder.addNextIntent(intent);
+		PendingIntent pendingIntent = stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+
+		final Notification notification = new NotificationCompat.Builder(context)
+		  .setSmallIcon(iconId)
+		  .setContentTitle(title)
+		  .setContentText(contentText)
+		  .setContentIntent(pendingIntent)
+		  .build();
+
+		NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		notificationManager.notify(WEATHER_NOTIFICATION_ID, notification);
+
+		//refreshing last sync
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putLong(lastNotificationKey, System.currentTimeMillis());
+		editor.apply();
+	}
 
-			long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+	/**
+	 * Collects the rows emitted by a {@link ForecastParser} into the writes of the location, to be stored with the rest
+	 * of the sync.
+	 */
+	private static class ForecastIngester implements ForecastParser.Handler {
+		private final SyncBatch.LocationWrites mWrites;
+		private final Time mDayTime;
+		private final int mJulianStartDay;
+		private ContentValues mTodayValues;
 
-			// Insert the new weather information into the database
-			Vector<ContentValues> cVVector = new Vector<>(weatherArray.length());
+		ForecastIngester(SyncBatch.LocationWrites writes) {
+			mWrites = writes;
 
 			// OWM returns daily forecasts based upon the local time of the city that is being
 			// asked for, which means that we need to know the GMT offset to translate this data
@@ -325,182 +1036,57 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {// Interva
 			dayTime.setToNow();
 
 			// we start at the day returned by local time. Otherwise this is a mess.
-			int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+			mJulianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
 			// now we work exclusively in UTC
-			dayTime = new Time();
-
-			for (int i = 0; i < weatherArray.length(); i++) {
-				// These are the values that will be collected.
-				long dateTime;
-				double pressure;
-				int humidity;
-				double windSpeed;
-				double windDirection;
-
-				double high;
-				double low;
-
-				String description;
-				int weatherId;
-
-				// Get the JSON object representing the day
-				JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-				// Cheating to convert this to UTC time, which is what we want anyhow
-				dateTime = dayTime.setJulianDay(julianStartDay + i);
-
-				pressure = dayForecast.getDouble(OWM_PRESSURE);
-				humidity = dayForecast.getInt(OWM_HUMIDITY);
-				windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-				windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-				// Description is in a child array called "weather", which is 1 element long.
-				// That element also contains a weather code.
-				JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-				description = weatherObject.getString(OWM_DESCRIPTION);
-				weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-				// Temperatures are in a child object called "temp".  Try not to name variables
-				// "temp" when working with temperature.  It confuses everybody.
-				JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-				high = temperatureObject.getDouble(OWM_MAX);
-				low = temperatureObject.getDouble(OWM_MIN);
-
-				ContentValues weatherValues = new ContentValues();
-
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-				weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+			mDayTime = new Time();
+		}
 
-				cVVector.add(weatherValues);
-			}
+		@Override
+		public void onCity(String cityName, double latitude, double longitude) {
+			mWrites.setLocation(cityName, latitude, longitude);
+		}
 
-			if (cVVector.size() > 0) {
-				ContentValues[] cvArray = new ContentValues[cVVector.size()];
-				cVVector.toArray(cvArray);
-				getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+		@Override
+		public void onDay(int dayIndex, ContentValues dayValues) {
+			// Cheating to convert this to UTC time, which is what we want anyhow
+			dayValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, mDayTime.setJulianDay(mJulianStartDay + dayIndex));
+			mWrites.addWeather(dayValues);
+			if (dayIndex == 0) {
+				mTodayValues = dayValues;
 			}
 		}
-		catch (JSONException e) {
-			Log.e(LOG_TAG, e.getMessage(), e);
-			e.printStackTrace();
-		}
-		return null;
-	}
 
-	public void notifyWeather() {
-		Context context = getContext();
-		//checking the last update and notify if it' the first of the day
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-		boolean notificationsEnabled = prefs.getBoolean(context.getString(R.string.pref_key_notifications_enabled),
-		                                                Boolean.parseBoolean(context.getString(R.string.pref_default_notifications_enabled)));
-		if (notificationsEnabled) {
-			String lastNotificationKey = context.getString(R.string.pref_key_last_notification);
-			long lastSync = prefs.getLong(lastNotificationKey, 0);
-
-			if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
-				// Last sync was more than 1 day ago, let's send a notification with the weather.
-				String locationQuery = Utility.getPreferredLocation(context);
-
-				Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery,
-				                                                                           System.currentTimeMillis());
-
-				// we'll query our contentProvider, as always
-				Cursor cursor = context.getContentResolver()
-				                       .query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-				if (cursor != null) {
-					if (cursor.moveToFirst()) {
-						final int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-						final double high = cursor.getDouble(INDEX_MAX_TEMP);
-						final double low = cursor.getDouble(INDEX_MIN_TEMP);
-						final String desc = cursor.getString(INDEX_SHORT_DESC);
-
-						int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-						String title = context.getString(R.string.app_name);
-
-						// Define the text of the forecast.
-						String contentText = context.getString(R.string.format_notification,
-						                                       desc,
-						                                       Utility.formatTemperature(context, high),
-						                                       Utility.formatTemperature(context, low));
-
-						//build your notification here.
-						Intent intent = new Intent(context, MainActivity.class);
-						TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-						stackBuilder.addParentStack(MainActivity.class);
-						stackBuilder.addNextIntent(intent);
-						PendingIntent pendingIntent = stackBuilder.getPendingIntent(0,
-						                                                            PendingIntent.FLAG_UPDATE_CURRENT);
-
-						final Notification notification = new NotificationCompat.Builder(context)
-						  .setSmallIcon(iconId)
-						  .setContentTitle(title)
-						  .setContentText(contentText)
-						  .setContentIntent(pendingIntent)
-						  .build();
-
-						NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-						notificationManager.notify(WEATHER_NOTIFICATION_ID, notification);
-
-						//refreshing last sync
-						SharedPreferences.Editor editor = prefs.edit();
-						editor.putLong(lastNotificationKey, System.currentTimeMillis());
-						editor.apply();
-					}
-					cursor.close();
-				}
-			}
+		/** @return the row of the first day of the forecast, which is today, null if there's none. */
+		ContentValues getTodayValues() {
+			return mTodayValues;
 		}
 	}
 
 	/**
-	 * Helper method to handle insertion of a new location in the weather database.
-	 *
-	 * @param locationSetting The location string used to request updates from the server.
-	 * @param cityName        A human-readable city name, e.g "Mountain View"
-	 * @param lat             the latitude of the city
-	 * @param lon             the longitude of the city
-	 *
-	 * @return the row ID of the added location.
+	 * Collects the rows emitted by a {@link ThreeHourlyForecastParser} into the writes of the location.
 	 */
-	public long addLocation(String locationSetting, String cityName, double lat, double lon) {
-		// Students: First, check if the location with this city name exists in the db
-		// If it exists, return the current ID
-		// Otherwise, insert it using the content resolver and the base URI
-		final long locationId;
-
-		Cursor locationCursor = getContext().getContentResolver()
-		                                    .query(WeatherContract.LocationEntry.CONTENT_URI,
-		                                           new String[]{WeatherContract.LocationEntry._ID},
-		                                           WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-		                                           new String[]{locationSetting},
-		                                           null);
-
-		if (locationCursor != null && locationCursor.moveToFirst()) {
-			final int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-			locationId = locationCursor.getLong(locationIdIndex);
-			locationCursor.close();
+	private static class ThreeHourlyIngester implements ThreeHourlyForecastParser.Handler {
+		private final SyncBatch.LocationWrites mWrites;
+		private int mBucketCount;
+
+		ThreeHourlyIngester(SyncBatch.LocationWrites writes) {
+			mWrites = writes;
 		}
-		else {
-			ContentValues values = new ContentValues();
-			values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-			values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-			values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-			values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
 
-			locationId = ContentUris.parseId(getContext().getContentResolver()
-			                                             .insert(WeatherContract.LocationEntry.CONTENT_URI, values));
+		@Override
+		public void onCity(String cityName, double latitude, double longitude) {
+			mWrites.setLocation(cityName, latitude, longitude);
 		}
 
-		return locationId;
+		@Override
+		public void onBucket(ContentValues bucketValues) {
+			mWrites.addThreeHourly(bucketValues);
+			mBucketCount++;
+		}
+
+		int getBucketCount() {
+			return mBucketCount;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter between syncs which failed for transient reasons. The state is kept in a private
+ * {@link SharedPreferences} file, so a process restart does not reset it and hammer a struggling server again.
+ * <p/>
+ * After n consecutive failures the next sync is delayed by a random time between half and all of
+ * {@code BASE_DELAY * 2^(n-1)}, capped at {@code MAX_DELAY}; the randomness keeps devices from retrying in lockstep.
+ */
+public class SyncBackoff {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = SyncBackoff.class.getSimpleName();
+	static final String PREFERENCES_NAME = "sync_backoff";
+	static final long BASE_DELAY = 60 * 1000;
+	static final long MAX_DELAY = 6 * 60 * 60 * 1000;
+
+	private static final String KEY_FAILURE_COUNT = "failure_count";
+	private static final String KEY_BACKOFF_UNTIL = "backoff_until";
+
+	private final SharedPreferences mPreferences;
+	private final Random mRandom;
+
+	public SyncBackoff(Context context) {
+		this(context, new Random());
+	}
+
+	SyncBackoff(Context context, Random random) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		mRandom = random;
+	}
+
+	/** @return whether syncs should not reach the server yet. */
+	public boolean isBackingOff() {
+		return System.currentTimeMillis() < getBackoffUntil();
+	}
+
+	/** @return the time before which syncs should not reach the server, in milliseconds since the epoch. */
+	public long getBackoffUntil() {
+		return mPreferences.getLong(KEY_BACKOFF_UNTIL, 0);
+	}
+
+	public int getFailureCount() {
+		return mPreferences.getInt(KEY_FAILURE_COUNT, 0);
+	}
+
+	/**
+	 * Records a failed sync and computes when the next one may run.
+	 *
+	 * @param minimumDelay delay the server asked for, in milliseconds; 0 if it didn't
+	 *
+	 * @return the time before which syncs should not reach the server, in milliseconds since the epoch
+	 */
+	public synchronized long onFailure(long minimumDelay) {
+		final int failureCount = getFailureCount() + 1;
+		final long delay = Math.max(minimumDelay, jitter(getDelay(failureCount)));
+		final long backoffUntil = System.currentTimeMillis() + delay;
+		mPreferences.edit()
+		            .putInt(KEY_FAILURE_COUNT, failureCount)
+		            .putLong(KEY_BACKOFF_UNTIL, backoffUntil)
+		            .apply();
+		Log.d(LOG_TAG, String.format("%d consecutive failures, backing off for %d s", failureCount, delay / 1000));
+		return backoffUntil;
+	}
+
+	/** Records a successful sync, which ends the backoff. */
+	public synchronized void onSuccess() {
+		if (getFailureCount() > 0 || getBackoffUntil() > 0) {
+			mPreferences.edit()
+			            .remove(KEY_FAILURE_COUNT)
+			            .remove(KEY_BACKOFF_UNTIL)
+			            .apply();
+		}
+	}
+
+	/** @return a random delay between half and all of the given one. */
+	long jitter(long delay) {
+		return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+	}
+
+	/** @return the delay before jitter after the given number of consecutive failures, in milliseconds. */
+	static long getDelay(int failureCount) {
+		// 2^(n-1) overflows quickly, the cap is reached long before that
+		int exponent = Math.min(failureCount - 1, 30);
+		return Math.min(MAX_DELAY, BASE_DELAY << exponent);
+	}
+}
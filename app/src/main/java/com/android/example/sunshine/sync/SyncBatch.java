@@ -0,0 +1,187 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.android.example.sunshine.data.LocationIdCache;
+import com.android.example.sunshine.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write set of a sync run. Every location synced without error adds its rows, and the whole set is applied as a single
+ * provider batch once the downloads are over, so a sync is stored entirely or not at all, in one transaction, and
+ * observers are woken once.
+ * <p/>
+ * Locations are added from the sync workers, so adding is thread-safe.
+ */
+class SyncBatch {
+	private final List<LocationWrites> mLocations = new ArrayList<>();
+	private int mWrittenRows;
+
+	synchronized void add(LocationWrites writes) {
+		mLocations.add(writes);
+	}
+
+	/**
+	 * Applies the whole batch through the client. Locations whose id is not cached yet are upserted first, and their
+	 * rows refer to the upsert result. Resolving the locations, from the id cache or with an upsert, is journaled as
+	 * the location upsert phase, with the upserts as its rows; the upserts themselves run within the batch.
+	 *
+	 * @return the number of new or changed daily rows of every location of the batch
+	 */
+	synchronized Map<String, Integer> apply(ContentProviderClient client, SyncJournal journal) throws RemoteException, OperationApplicationException {
+		final LocationIdCache cache = LocationIdCache.getInstance();
+		final long generation = cache.getGeneration();
+		final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+		// Index of the location upsert and of the first and last daily row of every location, -1 when there's none
+		final int[] locationIndices = new int[mLocations.size()];
+		final int[] weatherStarts = new int[mLocations.size()];
+		final int[] weatherEnds = new int[mLocations.size()];
+		long locationNanos = 0;
+		int upserts = 0;
+		for (int i = 0; i < mLocations.size(); i++) {
+			final LocationWrites writes = mLocations.get(i);
+			final long locationStart = System.nanoTime();
+			final long locationId = cache.get(writes.mLocationSetting);
+			locationIndices[i] = -1;
+			if (locationId == -1 && writes.mLocationValues != null) {
+				locationIndices[i] = operations.size();
+				operations.add(ContentProviderOperation.newInsert(WeatherContract.LocationEntry.CONTENT_URI)
+				                                       .withValues(writes.mLocationValues)
+				                                       .build());
+				upserts++;
+			}
+			locationNanos += System.nanoTime() - locationStart;
+			// Rows can't be stored without their location, which is only known once the city has been parsed
+			final boolean located = locationId != -1 || locationIndices[i] != -1;
+			weatherStarts[i] = operations.size();
+			if (located) {
+				addInserts(operations, WeatherContract.WeatherEntry.CONTENT_URI,
+				           WeatherContract.WeatherEntry.COLUMN_LOC_KEY, writes.mWeatherValues, locationId, locationIndices[i]);
+				addInserts(operations, WeatherContract.ThreeHourlyEntry.CONTENT_URI,
+				           WeatherContract.ThreeHourlyEntry.COLUMN_LOC_KEY, writes.mThreeHourlyValues, locationId,
+				           locationIndices[i]);
+			}
+			weatherEnds[i] = weatherStarts[i] + (located ? writes.mWeatherValues.size() : 0);
+			if (writes.mSynced) {
+				operations.add(ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+				                                       .withValue(WeatherContract.LocationEntry.COLUMN_LAST_SYNCED,
+				                                                  System.currentTimeMillis())
+				                                       .withSelection(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+				                                                      new String[]{writes.mLocationSetting})
+				                                       .build());
+			}
+		}
+		final ContentProviderResult[] results = client.applyBatch(operations);
+		journal.record(null, WeatherContract.SyncJournalEntry.PHASE_LOCATION_UPSERT, locationNanos, 0, upserts);
+
+		final Map<String, Integer> changedRows = new HashMap<>();
+		for (int i = 0; i < mLocations.size(); i++) {
+			final String locationSetting = mLocations.get(i).mLocationSetting;
+			if (locationIndices[i] != -1) {
+				cache.put(locationSetting, ContentUris.parseId(results[locationIndices[i]].uri), generation);
+			}
+			int changed = 0;
+			for (int j = weatherStarts[i]; j < weatherEnds[i]; j++) {
+				// The provider answers a day rewritten with the same values with the bare CONTENT_URI
+				if (!WeatherContract.WeatherEntry.CONTENT_URI.equals(results[j].uri)) {
+					changed++;
+				}
+			}
+			changedRows.put(locationSetting, changed);
+		}
+		mWrittenRows = results.length;
+		return changedRows;
+	}
+
+	/**
+	 * Stores the validators of the responses the batch was made of. Call it only once the batch has been applied, so
+	 * a sync which didn't store its rows doesn't make the next one skip them.
+	 */
+	synchronized void storeValidators(ForecastValidatorCache validatorCache) {
+		for (LocationWrites writes : mLocations) {
+			for (Map.Entry<String, ForecastValidatorCache.Validators> validators : writes.mValidators.entrySet()) {
+				validatorCache.storeValidators(validators.getKey(), validators.getValue());
+			}
+		}
+	}
+
+	/** @return the number of rows inserted or updated by the last applied batch, unchanged days included. */
+	synchronized int getWrittenRows() {
+		return mWrittenRows;
+	}
+
+	private static void addInserts(List<ContentProviderOperation> operations, Uri uri, String locationKey, List<ContentValues> rows, long locationId, int locationIndex) {
+		for (ContentValues values : rows) {
+			ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(uri).withValues(values);
+			if (locationIndex != -1) {
+				builder.withValueBackReference(locationKey, locationIndex);
+			}
+			else {
+				builder.withValue(locationKey, locationId);
+			}
+			operations.add(builder.build());
+		}
+	}
+
+	/** Rows downloaded for a single location. */
+	static class LocationWrites {
+		private final String mLocationSetting;
+		private final List<ContentValues> mWeatherValues = new ArrayList<>();
+		private final List<ContentValues> mThreeHourlyValues = new ArrayList<>();
+		// Validators of the responses the rows come from, by validator key
+		private final Map<String, ForecastValidatorCache.Validators> mValidators = new HashMap<>();
+		private ContentValues mLocationValues;
+		private boolean mSynced;
+
+		LocationWrites(String locationSetting) {
+			mLocationSetting = locationSetting;
+		}
+
+		void setLocation(String cityName, double latitude, double longitude) {
+			mLocationValues = new ContentValues();
+			mLocationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+			mLocationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, mLocationSetting);
+			mLocationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, latitude);
+			mLocationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, longitude);
+		}
+
+		void addWeather(ContentValues values) {
+			mWeatherValues.add(values);
+		}
+
+		void addThreeHourly(ContentValues values) {
+			mThreeHourlyValues.add(values);
+		}
+
+		/** Drops the 3-hour rows added so far, e.g. of a response which failed half way. */
+		void clearThreeHourly() {
+			mThreeHourlyValues.clear();
+		}
+
+		/** Adds the validators of a response whose rows were added, to be stored along with them. */
+		void addValidators(String validatorKey, ForecastValidatorCache.Validators validators) {
+			mValidators.put(validatorKey, validators);
+		}
+
+		/** Resets the staleness of the location's forecast, which the server just confirmed. */
+		void markSynced() {
+			mSynced = true;
+		}
+
+		/** @return the number of rows to store */
+		int size() {
+			return mWeatherValues.size() + mThreeHourlyValues.size();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.android.example.sunshine.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-flight coordination of immediate syncs. A refresh requested for a location whose sync has been requested
+ * and not finished yet joins it instead of queueing another network round trip, and every caller is told on the main
+ * thread when its sync is over.
+ * <p/>
+ * A request is complete once a sync which started after it and covered its location finishes. Requests which no sync
+ * picks up, e.g. because sync is disabled, give up after {@link #SYNC_TIMEOUT}.
+ */
+public class SyncCoordinator {
+	static final long SYNC_TIMEOUT = 2 * 60 * 1000;
+
+	private static SyncCoordinator sInstance;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final Map<String, Flight> mFlights = new HashMap<>();
+	private long mSequence;
+
+	SyncCoordinator() {
+	}
+
+	public static synchronized SyncCoordinator getInstance() {
+		if (sInstance == null) {
+			sInstance = new SyncCoordinator();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Syncs the location immediately, unless a sync requested for it is still in flight, which is joined instead. A
+	 * background revalidation in flight is joined too, but a manual sync is requested on top of it, and the caller is
+	 * only notified once a sync which started after that request finishes.
+	 *
+	 * @param listener notified on the main thread when the sync finishes, may be null
+	 *
+	 * @return whether a new sync was requested
+	 */
+	public boolean requestSync(Context context, String location, Listener listener) {
+		return request(context, location, listener, true);
+	}
+
+	/**
+	 * Revalidates the stored forecast of the location in the background, unless a sync requested for it is still in
+	 * flight. Unlike {@link #requestSync(Context, String, Listener)}, the sync only covers that location and honors
+	 * the backoff and the freshness of cached responses.
+	 *
+	 * @return whether a new sync was requested
+	 */
+	public boolean requestRevalidation(Context context, String location) {
+		return request(context, location, null, false);
+	}
+
+	private boolean request(Context context, final String location, Listener listener, boolean manual) {
+		final Flight flight;
+		final long sequence;
+		synchronized (this) {
+			Flight current = mFlights.get(location);
+			if (current != null) {
+				if (listener != null && !current.mListeners.contains(listener)) {
+					current.mListeners.add(listener);
+				}
+				if (!manual || current.mManual) {
+					return false;
+				}
+				// A revalidation may skip the download or be deferred, the user asked for a refresh
+				flight = current;
+				flight.mSequence = ++mSequence;
+				flight.mManual = true;
+			}
+			else {
+				flight = new Flight(++mSequence, manual);
+				if (listener != null) {
+					flight.mListeners.add(listener);
+				}
+				mFlights.put(location, flight);
+			}
+			sequence = flight.mSequence;
+		}
+		mMainHandler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SyncCoordinator.this) {
+					if (mFlights.get(location) != flight || flight.mSequence != sequence) {
+						return;
+					}
+					mFlights.remove(location);
+				}
+				dispatch(location, flight, false);
+			}
+		}, SYNC_TIMEOUT);
+		startSync(context, location, manual);
+		return true;
+	}
+
+	/** Stops notifying the listener, e.g. once its views are gone. The sync itself goes on. */
+	public synchronized void removeListener(Listener listener) {
+		for (Flight flight : mFlights.values()) {
+			flight.mListeners.remove(listener);
+		}
+	}
+
+	public synchronized boolean isSyncInFlight(String location) {
+		return mFlights.containsKey(location);
+	}
+
+	/**
+	 * Called by the sync adapter when a sync starts.
+	 *
+	 * @return a token to hand back to {@link #onSyncFinished(long, Collection, Collection)}
+	 */
+	synchronized long onSyncStarted() {
+		return mSequence;
+	}
+
+	/**
+	 * Called by the sync adapter when a sync finishes. Completes every request for a location the sync attempted made
+	 * before that sync started. Requests for the other locations wait for a sync which covers them, e.g. a refresh
+	 * whose sync is still queued behind the revalidation of another location.
+	 *
+	 * @param attemptedLocations locations the sync tried to download
+	 * @param syncedLocations    locations synced without error; requests for other attempted locations complete as
+	 *                           failed
+	 */
+	void onSyncFinished(long token, Collection<String> attemptedLocations, Collection<String> syncedLocations) {
+		final Map<String, Flight> finished = new HashMap<>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, Flight>> iterator = mFlights.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Flight> entry = iterator.next();
+				if (entry.getValue().mSequence <= token && attemptedLocations.contains(entry.getKey())) {
+					finished.put(entry.getKey(), entry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+		for (Map.Entry<String, Flight> entry : finished.entrySet()) {
+			dispatch(entry.getKey(), entry.getValue(), syncedLocations.contains(entry.getKey()));
+		}
+	}
+
+	/** Requests the actual sync; replaced in tests. */
+	void startSync(Context context, String location, boolean manual) {
+		if (manual) {
+			SunshineSyncAdapter.syncImmediately(context);
+		}
+		else {
+			SunshineSyncAdapter.revalidate(context, location);
+		}
+	}
+
+	private void dispatch(final String location, final Flight flight, final boolean success) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				List<Listener> listeners;
+				synchronized (SyncCoordinator.this) {
+					listeners = new ArrayList<>(flight.mListeners);
+				}
+				for (Listener listener : listeners) {
+					listener.onSyncFinished(location, success);
+				}
+			}
+		});
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the main thread when the sync requested for the location is over.
+		 *
+		 * @param success whether the location was synced without error
+		 */
+		void onSyncFinished(String location, boolean success);
+	}
+
+	private static class Flight {
+		final List<Listener> mListeners = new ArrayList<>();
+		// Sequence of the last sync requested for the flight, which completes it
+		long mSequence;
+		boolean mManual;
+
+		Flight(long sequence, boolean manual) {
+			mSequence = sequence;
+			mManual = manual;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.android.example.sunshine.data.WeatherContract.SyncJournalEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects how long every phase of a sync run took, per location, and writes it to the sync journal once the run is
+ * over. Phases are recorded from the sync workers, so recording is thread-safe.
+ * <p/>
+ * The sync account is looked up before the sync framework starts a run, so that lookup is recorded into the journal
+ * of the next run.
+ */
+public class SyncJournal {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = SyncJournal.class.getSimpleName();
+
+	// Duration of the last account lookup not journaled yet, in nanoseconds; -1 if there's none
+	private static long sPendingAccountLookup = -1;
+
+	private final long mRunId;
+	private final List<ContentValues> mEntries = new ArrayList<>();
+
+	public SyncJournal() {
+		mRunId = System.currentTimeMillis();
+		long accountLookup = takePendingAccountLookup();
+		if (accountLookup >= 0) {
+			record(null, SyncJournalEntry.PHASE_ACCOUNT_LOOKUP, accountLookup, 0, 0);
+		}
+	}
+
+	/** Remembers how long looking the sync account up took, to be journaled by the next run. */
+	static synchronized void recordAccountLookup(long durationNanos) {
+		sPendingAccountLookup = durationNanos;
+	}
+
+	private static synchronized long takePendingAccountLookup() {
+		long accountLookup = sPendingAccountLookup;
+		sPendingAccountLookup = -1;
+		return accountLookup;
+	}
+
+	public long getRunId() {
+		return mRunId;
+	}
+
+	/**
+	 * Records a phase of the run.
+	 *
+	 * @param location      location the phase worked for, null for a phase of the whole run
+	 * @param durationNanos duration of the phase, as measured with {@link System#nanoTime()}
+	 * @param bytes         bytes transferred over the network during the phase
+	 * @param rows          database rows written during the phase
+	 */
+	public void record(String location, String phase, long durationNanos, long bytes, long rows) {
+		ContentValues values = new ContentValues();
+		values.put(SyncJournalEntry.COLUMN_RUN_ID, mRunId);
+		values.put(SyncJournalEntry.COLUMN_LOCATION_SETTING, location);
+		values.put(SyncJournalEntry.COLUMN_PHASE, phase);
+		values.put(SyncJournalEntry.COLUMN_DURATION, Math.max(0, durationNanos / 1000));
+		values.put(SyncJournalEntry.COLUMN_BYTES, bytes);
+		values.put(SyncJournalEntry.COLUMN_ROWS, rows);
+		synchronized (mEntries) {
+			mEntries.add(values);
+		}
+	}
+
+	/**
+	 * Writes the recorded phases to the journal. A failure is only logged, the journal must never fail a sync.
+	 *
+	 * @return the number of entries written
+	 */
+	public int flush(ContentResolver contentResolver) {
+		ContentValues[] entries;
+		synchronized (mEntries) {
+			entries = mEntries.toArray(new ContentValues[mEntries.size()]);
+			mEntries.clear();
+		}
+		if (entries.length == 0) {
+			return 0;
+		}
+		try {
+			return contentResolver.bulkInsert(SyncJournalEntry.CONTENT_URI, entries);
+		}
+		catch (SQLException e) {
+			Log.e(LOG_TAG, "Error writing the sync journal", e);
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.android.example.sunshine.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides whether a sync should reach the network now, according to the network and battery conditions. Manual
+ * refreshes always go through. Other syncs are deferred on metered or roaming networks and on a low battery, until
+ * one has been deferred for {@code MAX_DEFERRAL}, after which they run whatever the conditions.
+ * <p/>
+ * The locations of deferred syncs are kept pending and added to the next sync which runs, so they cost a single radio
+ * wake-up. Every decision is recorded, as a comma separated line, so the policy can be tuned offline.
+ */
+public class SyncPolicy {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = SyncPolicy.class.getSimpleName();
+	static final String PREFERENCES_NAME = "sync_policy";
+	static final long MAX_DEFERRAL = 12 * 60 * 60 * 1000;
+	static final int MAX_DECISIONS = 100;
+
+	private static final String KEY_DEFERRED_SINCE = "deferred_since";
+	private static final String KEY_PENDING_LOCATIONS = "pending_locations";
+	private static final String KEY_DECISIONS = "decisions";
+
+	static final String DECISION_EXPEDITED = "expedited";
+	static final String DECISION_RUN = "run";
+	static final String DECISION_OVERDUE = "overdue";
+	static final String DECISION_DEFER_OFFLINE = "defer_offline";
+	static final String DECISION_DEFER_ROAMING = "defer_roaming";
+	static final String DECISION_DEFER_METERED = "defer_metered";
+	static final String DECISION_DEFER_BATTERY = "defer_battery";
+
+	private final SharedPreferences mPreferences;
+	private final ConnectivitySource mConnectivity;
+
+	public SyncPolicy(Context context) {
+		this(context, new DeviceConnectivity(context));
+	}
+
+	SyncPolicy(Context context, ConnectivitySource connectivity) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		mConnectivity = connectivity;
+	}
+
+	/**
+	 * Decides whether a sync may run now. A deferred sync keeps its location pending; a sync which runs takes the
+	 * pending locations over, see {@link #takePendingLocations()}.
+	 *
+	 * @param manual   whether the sync was asked for by the user
+	 * @param location the only location the sync is for, null for a sync of every location
+	 *
+	 * @return one of the DECISION_ constants
+	 */
+	public synchronized String decide(boolean manual, String location) {
+		final long now = now();
+		final boolean connected = mConnectivity.isConnected();
+		final boolean roaming = connected && mConnectivity.isRoaming();
+		final boolean metered = connected && mConnectivity.isMetered();
+		final boolean batteryLow = mConnectivity.isBatteryLow();
+		final long deferredSince = mPreferences.getLong(KEY_DEFERRED_SINCE, 0);
+		final boolean overdue = deferredSince > 0 && now - deferredSince >= MAX_DEFERRAL;
+		final Set<String> pending = getPendingLocations();
+
+		final String decision;
+		if (manual) {
+			decision = DECISION_EXPEDITED;
+		}
+		else if (!connected) {
+			// The framework doesn't start syncs without a network, but the network may have gone since
+			decision = DECISION_DEFER_OFFLINE;
+		}
+		else if (!roaming && !metered && !batteryLow) {
+			decision = DECISION_RUN;
+		}
+		else if (overdue) {
+			decision = DECISION_OVERDUE;
+		}
+		else if (roaming) {
+			decision = DECISION_DEFER_ROAMING;
+		}
+		else if (metered) {
+			decision = DECISION_DEFER_METERED;
+		}
+		else {
+			decision = DECISION_DEFER_BATTERY;
+		}
+
+		final SharedPreferences.Editor editor = mPreferences.edit();
+		if (isDeferral(decision)) {
+			if (deferredSince == 0) {
+				editor.putLong(KEY_DEFERRED_SINCE, now);
+			}
+			if (location != null) {
+				pending.add(location);
+				editor.putString(KEY_PENDING_LOCATIONS, join(pending));
+			}
+		}
+		else {
+			editor.remove(KEY_DEFERRED_SINCE);
+		}
+
+		// timestamp,decision,manual,location,connected,roaming,metered,battery low,pending locations
+		String record = String.format(Locale.US, "%d,%s,%b,%s,%b,%b,%b,%b,%d",
+		                              now, decision, manual, location != null ? location.replace(',', ' ') : "",
+		                              connected, roaming, metered, batteryLow, pending.size());
+		List<String> decisions = getDecisions();
+		decisions.add(record);
+		if (decisions.size() > MAX_DECISIONS) {
+			decisions = decisions.subList(decisions.size() - MAX_DECISIONS, decisions.size());
+		}
+		editor.putString(KEY_DECISIONS, join(decisions)).apply();
+		Log.d(LOG_TAG, "sync policy decision: " + record);
+		return decision;
+	}
+
+	/** @return whether the decision keeps the sync from reaching the network. */
+	public static boolean isDeferral(String decision) {
+		return decision.startsWith("defer_");
+	}
+
+	/** @return the locations of the deferred syncs, in the order they were deferred in. */
+	public synchronized Set<String> getPendingLocations() {
+		String pending = mPreferences.getString(KEY_PENDING_LOCATIONS, "");
+		return pending.length() == 0 ? new LinkedHashSet<String>()
+		                             : new LinkedHashSet<>(Arrays.asList(pending.split("\n")));
+	}
+
+	/** Returns the locations of the deferred syncs and forgets them, for the sync about to run to cover them. */
+	public synchronized Set<String> takePendingLocations() {
+		Set<String> pending = getPendingLocations();
+		if (!pending.isEmpty()) {
+			mPreferences.edit().remove(KEY_PENDING_LOCATIONS).apply();
+		}
+		return pending;
+	}
+
+	/** @return the recorded decisions, oldest first, at most the last {@value #MAX_DECISIONS}. */
+	public List<String> getDecisions() {
+		String decisions = mPreferences.getString(KEY_DECISIONS, "");
+		return decisions.length() == 0 ? new ArrayList<String>()
+		                               : new ArrayList<>(Arrays.asList(decisions.split("\n")));
+	}
+
+	/** @return the current time in milliseconds; replaced in tests. */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static String join(Iterable<String> lines) {
+		StringBuilder builder = new StringBuilder();
+		for (String line : lines) {
+			if (builder.length() > 0) {
+				builder.append('\n');
+			}
+			builder.append(line);
+		}
+		return builder.toString();
+	}
+
+	/** Network and battery conditions the policy decides on; faked in tests. */
+	interface ConnectivitySource {
+		boolean isConnected();
+
+		boolean isMetered();
+
+		boolean isRoaming();
+
+		/** @return whether the battery is low and not charging, or the device saves power. */
+		boolean isBatteryLow();
+	}
+
+	static class DeviceConnectivity implements ConnectivitySource {
+		private static final int LOW_BATTERY_PERCENT = 15;
+
+		private final Context mContext;
+		private final ConnectivityManager mConnectivityManager;
+
+		DeviceConnectivity(Context context) {
+			mContext = context.getApplicationContext();
+			mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		}
+
+		@Override
+		public boolean isConnected() {
+			NetworkInfo network = mConnectivityManager.getActiveNetworkInfo();
+			return network != null && network.isConnected();
+		}
+
+		@Override
+		public boolean isMetered() {
+			return ConnectivityManagerCompat.isActiveNetworkMetered(mConnectivityManager);
+		}
+
+		@Override
+		public boolean isRoaming() {
+			NetworkInfo network = mConnectivityManager.getActiveNetworkInfo();
+			return network != null && network.isRoaming();
+		}
+
+		@Override
+		public boolean isBatteryLow() {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && isPowerSaveMode()) {
+				return true;
+			}
+			// Sticky broadcast, no receiver is registered
+			Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+			if (battery == null || battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+				return false;
+			}
+			int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			return level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+		}
+
+		@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+		private boolean isPowerSaveMode() {
+			PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+			return powerManager != null && powerManager.isPowerSaveMode();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.android.example.sunshine.sync;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Adapts the periodic sync interval to how the forecasts and the app are behaving. The interval is shortened while
+ * forecasts keep changing or the app is in use, and lengthened while forecasts are stable, upstream reports them not
+ * modified, or the device is idle.
+ * <p/>
+ * Every decision is recorded, as a comma separated line, so the policy can be tuned offline.
+ */
+public class SyncScheduler {
+	@SuppressWarnings("unused")
+	private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+	static final String PREFERENCES_NAME = "sync_schedule";
+
+	// Intervals are in seconds, like the ones of ContentResolver
+	static final int DEFAULT_SYNC_INTERVAL = 3 * 60 * 60;
+	static final int MIN_SYNC_INTERVAL = 60 * 60;
+	static final int MAX_SYNC_INTERVAL = 12 * 60 * 60;
+	private static final double SHORTEN_FACTOR = 0.5;
+	private static final double LENGTHEN_FACTOR = 1.5;
+	// Share of the synced locations which changed, smoothed over the recent syncs
+	private static final double VOLATILITY_WEIGHT = 0.5;
+	private static final double VOLATILE_THRESHOLD = 0.5;
+	private static final double STABLE_THRESHOLD = 0.25;
+	private static final long ACTIVE_USE_WINDOW = 2 * 60 * 60 * 1000;
+	private static final long IDLE_WINDOW = 24 * 60 * 60 * 1000;
+	static final int MAX_DECISIONS = 100;
+
+	private static final String KEY_SYNC_INTERVAL = "sync_interval";
+	private static final String KEY_VOLATILITY = "volatility";
+	private static final String KEY_LAST_ACTIVE_USE = "last_active_use";
+	private static final String KEY_DECISIONS = "decisions";
+
+	static final String REASON_VOLATILE = "volatile";
+	static final String REASON_ACTIVE_USE = "active_use";
+	static final String REASON_STABLE = "stable";
+	static final String REASON_IDLE = "idle";
+	static final String REASON_UNCHANGED = "unchanged";
+	static final String REASON_NO_DATA = "no_data";
+
+	private final Context mContext;
+	private final SharedPreferences mPreferences;
+
+	public SyncScheduler(Context context) {
+		mContext = context;
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+
+	/** Notes that the user is looking at the forecast, so syncs should come more often for a while. */
+	public static void recordActiveUse(Context context) {
+		context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+		       .edit()
+		       .putLong(KEY_LAST_ACTIVE_USE, System.currentTimeMillis())
+		       .apply();
+	}
+
+	/** @return the current periodic sync interval, in seconds. */
+	public int getSyncInterval() {
+		return mPreferences.getInt(KEY_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL);
+	}
+
+	/** @return the flex time going with the current interval, in seconds. */
+	public int getSyncFlexTime() {
+		return getSyncInterval() / 3;
+	}
+
+	/**
+	 * Adapts the interval to the outcome of a sync. The caller reschedules the periodic sync when it changed.
+	 *
+	 * @param syncedLocations  number of locations synced without error, whether or not something was downloaded
+	 * @param changedLocations number of those locations whose stored forecast changed
+	 *
+	 * @return the interval to use from now on, in seconds
+	 */
+	public synchronized int onSyncFinished(int syncedLocations, int changedLocations) {
+		final long now = System.currentTimeMillis();
+		final int interval = getSyncInterval();
+		final long lastActiveUse = mPreferences.getLong(KEY_LAST_ACTIVE_USE, 0);
+		final boolean activeUse = now - lastActiveUse < ACTIVE_USE_WINDOW;
+		final boolean idle = !activeUse && (now - lastActiveUse >= IDLE_WINDOW || isDeviceIdle());
+
+		double volatility = mPreferences.getFloat(KEY_VOLATILITY, 0);
+		int nextInterval = interval;
+		String reason;
+		if (syncedLocations == 0) {
+			// Nothing learnt about the forecasts, retrying is the backoff's business
+			reason = REASON_NO_DATA;
+		}
+		else {
+			volatility = (1 - VOLATILITY_WEIGHT) * volatility +
+			             VOLATILITY_WEIGHT * changedLocations / syncedLocations;
+			if (volatility >= VOLATILE_THRESHOLD) {
+				reason = REASON_VOLATILE;
+				nextInterval = (int) (interval * SHORTEN_FACTOR);
+			}
+			else if (activeUse) {
+				reason = REASON_ACTIVE_USE;
+				nextInterval = (int) (interval * SHORTEN_FACTOR);
+			}
+			else if (idle) {
+				reason = REASON_IDLE;
+				nextInterval = (int) (interval * LENGTHEN_FACTOR);
+			}
+			else if (volatility < STABLE_THRESHOLD) {
+				reason = REASON_STABLE;
+				nextInterval = (int) (interval * LENGTHEN_FACTOR);
+			}
+			else {
+				reason = REASON_UNCHANGED;
+			}
+		}
+		nextInterval = Math.max(MIN_SYNC_INTERVAL, Math.min(MAX_SYNC_INTERVAL, nextInterval));
+
+		// timestamp,previous interval,next interval,reason,synced,changed,volatility,active use,idle
+		String decision = String.format(Locale.US, "%d,%d,%d,%s,%d,%d,%.3f,%b,%b",
+		                                now, interval, nextInterval, reason,
+		                                syncedLocations, changedLocations, volatility, activeUse, idle);
+		List<String> decisions = getDecisions();
+		decisions.add(decision);
+		if (decisions.size() > MAX_DECISIONS) {
+			decisions = decisions.subList(decisions.size() - MAX_DECISIONS, decisions.size());
+		}
+		mPreferences.edit()
+		            .putInt(KEY_SYNC_INTERVAL, nextInterval)
+		            .putFloat(KEY_VOLATILITY, (float) volatility)
+		            .putString(KEY_DECISIONS, join(decisions))
+		            .apply();
+		Log.d(LOG_TAG, "sync interval decision: " + decision);
+		return nextInterval;
+	}
+
+	/** @return the recorded decisions, oldest first, at most the last {@value #MAX_DECISIONS}. */
+	public List<String> getDecisions() {
+		String decisions = mPreferences.getString(KEY_DECISIONS, "");
+		return decisions.length() == 0 ? new ArrayList<String>()
+		                               : new ArrayList<>(Arrays.asList(decisions.split("\n")));
+	}
+
+	private boolean isDeviceIdle() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && isDeviceIdleMode();
+	}
+
+	@TargetApi(Build.VERSION_CODES.M)
+	private boolean isDeviceIdleMode() {
+		PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+		return powerManager != null && powerManager.isDeviceIdleMode();
+	}
+
+	private static String join(List<String> lines) {
+		StringBuilder builder = new StringBuilder();
+		for (String line : lines) {
+			if (builder.length() > 0) {
+				builder.append('\n');
+			}
+			builder.append(line);
+		}
+		return builder.toString();
+	}
+}
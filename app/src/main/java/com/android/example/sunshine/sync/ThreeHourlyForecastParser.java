@@ -0,0 +1,76 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentValues;
+
+import com.android.example.sunshine.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Turns an OpenWeatherMap 3-hour forecast response into rows of the three-hourly table. The response is a few dozen
+ * small entries, so it is read as a whole and walked as a {@link JSONObject} hierarchy, which works on every platform.
+ */
+class ThreeHourlyForecastParser {
+	// Time of the forecast, in seconds since the epoch
+	private static final String OWM_TIME = "dt";
+	// Temperature, pressure and humidity are children of the "main" object
+	private static final String OWM_MAIN = "main";
+	private static final String OWM_TEMPERATURE = "temp";
+	// Wind speed and direction are children of the "wind" object
+	private static final String OWM_WIND = "wind";
+
+	/** Receives the values found in the response, in the order they are parsed. */
+	interface Handler {
+		void onCity(String cityName, double latitude, double longitude);
+
+		/**
+		 * Called once per element of the forecast list.
+		 *
+		 * @param bucketValues weather columns of the bucket, including the bucket start and without location key
+		 */
+		void onBucket(ContentValues bucketValues);
+	}
+
+	/**
+	 * Parses the whole response available from the reader. The reader is not closed.
+	 *
+	 * @throws JSONException if the response is not a forecast, e.g. an error reply without city or list.
+	 */
+	void parse(Reader reader, Handler handler) throws IOException, JSONException {
+		JSONObject forecastJson = new JSONObject(TreeForecastParser.readFully(reader));
+		JSONArray forecastArray = forecastJson.getJSONArray(ForecastParser.OWM_LIST);
+
+		JSONObject cityJson = forecastJson.getJSONObject(ForecastParser.OWM_CITY);
+		JSONObject cityCoord = cityJson.getJSONObject(ForecastParser.OWM_COORD);
+		handler.onCity(cityJson.getString(ForecastParser.OWM_CITY_NAME),
+		               cityCoord.getDouble(ForecastParser.OWM_LATITUDE),
+		               cityCoord.getDouble(ForecastParser.OWM_LONGITUDE));
+
+		for (int i = 0; i < forecastArray.length(); i++) {
+			JSONObject forecast = forecastArray.getJSONObject(i);
+			JSONObject mainObject = forecast.getJSONObject(OWM_MAIN);
+			JSONObject windObject = forecast.getJSONObject(OWM_WIND);
+			JSONObject weatherObject = forecast.getJSONArray(ForecastParser.OWM_WEATHER).getJSONObject(0);
+
+			ContentValues values = new ContentValues();
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_BUCKET,
+			           WeatherContract.ThreeHourlyEntry.normalizeBucket(forecast.getLong(OWM_TIME) * 1000));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_TEMP, mainObject.getDouble(OWM_TEMPERATURE));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_HUMIDITY, mainObject.getDouble(ForecastParser.OWM_HUMIDITY));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_PRESSURE, mainObject.getDouble(ForecastParser.OWM_PRESSURE));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_WIND_SPEED, windObject.getDouble(ForecastParser.OWM_WINDSPEED));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_DEGREES,
+			           windObject.optDouble(ForecastParser.OWM_WIND_DIRECTION, 0));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_SHORT_DESC,
+			           weatherObject.getString(ForecastParser.OWM_DESCRIPTION));
+			values.put(WeatherContract.ThreeHourlyEntry.COLUMN_WEATHER_ID,
+			           weatherObject.getInt(ForecastParser.OWM_WEATHER_ID));
+			handler.onBucket(values);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.android.example.sunshine.sync;
+
+import android.content.ContentValues;
+
+import com.android.example.sunshine.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the complete response into memory and walks the resulting {@link JSONObject} hierarchy. Kept as a fallback for
+ * the {@link StreamingForecastParser}.
+ */
+class TreeForecastParser extends ForecastParser {
+	private static final int BUFFER_SIZE = 4096;
+
+	@Override
+	public void parse(Reader reader, Handler handler) throws IOException, JSONException {
+		// Fortunately parsing is easy:  constructor takes the JSON string and converts it
+		// into an Object hierarchy for us.
+		parse(new JSONObject(readFully(reader)), handler);
+	}
+
+	/** Parses a forecast which has already been read, e.g. the forecast of a city in a group response. */
+	void parse(JSONObject forecastJson, Handler handler) throws JSONException {
+		JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+		JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+		String cityName = cityJson.getString(OWM_CITY_NAME);
+
+		JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+		double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+		double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+		handler.onCity(cityName, cityLatitude, cityLongitude);
+
+		for (int i = 0; i < weatherArray.length(); i++) {
+			// Get the JSON object representing the day
+			JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+			// Description is in a child array called "weather", which is 1 element long.
+			// That element also contains a weather code.
+			JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+			// Temperatures are in a child object called "temp".  Try not to name variables
+			// "temp" when working with temperature.  It confuses everybody.
+			JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+			ContentValues weatherValues = new ContentValues();
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt(OWM_HUMIDITY));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble(OWM_PRESSURE));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble(OWM_WINDSPEED));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble(OWM_WIND_DIRECTION));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble(OWM_MAX));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble(OWM_MIN));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString(OWM_DESCRIPTION));
+			weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+
+			handler.onDay(i, weatherValues);
+		}
+	}
+
+	/** Reads the whole response into memory; also used by {@link ThreeHourlyForecastParser}. */
+	static String readFully(Reader reader) throws IOException {
+		StringBuilder buffer = new StringBuilder();
+		char[] chunk = new char[BUFFER_SIZE];
+		int read;
+		while ((read = reader.read(chunk)) != -1) {
+			buffer.append(chunk, 0, read);
+		}
+		return buffer.toString();
+	}
+}
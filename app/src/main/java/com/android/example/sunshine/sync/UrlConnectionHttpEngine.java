@@ -0,0 +1,211 @@
+package com.android.example.sunshine.sync;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the requests of the sync through {@link HttpURLConnection}, which keeps idle keep-alive connections in a
+ * process-wide pool, so successive downloads don't pay TCP (and TLS) setup and DNS lookups again. Proxies, redirects
+ * and TLS are handled by the platform.
+ * <p/>
+ * A connection goes back to the pool once the body of its response has been read and the response is closed, which
+ * is why {@link Response#close()} must always be called and never disconnects.
+ */
+public class UrlConnectionHttpEngine implements HttpEngine {
+	// The pool is sized from these system properties when the first connection of the process is opened. It keeps
+	// room for the concurrent downloads of a sync and their hedged requests.
+	private static final int MAX_IDLE_CONNECTIONS = 8;
+	private static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+	static {
+		setDefaultProperty("http.keepAlive", "true");
+		setDefaultProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+		setDefaultProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_DURATION));
+	}
+
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+	private final int mTotalTimeout;
+	private final AtomicLong mRequestCount = new AtomicLong();
+
+	private UrlConnectionHttpEngine(Builder builder) {
+		mConnectTimeout = builder.mConnectTimeout;
+		mReadTimeout = builder.mReadTimeout;
+		mTotalTimeout = builder.mTotalTimeout;
+	}
+
+	@Override
+	public Response get(URL url, Map<String, String> headers) throws IOException {
+		final long deadline = SystemClock.elapsedRealtime() + mTotalTimeout;
+		mRequestCount.incrementAndGet();
+
+		HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+		urlConnection.setRequestMethod("GET");
+		urlConnection.setInstanceFollowRedirects(true);
+		urlConnection.setConnectTimeout(getTimeout(mConnectTimeout, deadline));
+		urlConnection.setReadTimeout(getTimeout(mReadTimeout, deadline));
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			urlConnection.setRequestProperty(header.getKey(), header.getValue());
+		}
+		try {
+			// Sends the request and reads the status line and headers
+			final int statusCode = urlConnection.getResponseCode();
+			return new UrlConnectionResponse(urlConnection, statusCode, deadline);
+		}
+		catch (IOException e) {
+			urlConnection.disconnect();
+			throw e;
+		}
+	}
+
+	@Override
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	private int getTimeout(int timeout, long deadline) throws SocketTimeoutException {
+		long remaining = deadline - SystemClock.elapsedRealtime();
+		if (remaining <= 0) {
+			throw new SocketTimeoutException("Total timeout of " + mTotalTimeout + " ms exceeded");
+		}
+		return (int) Math.min(timeout, remaining);
+	}
+
+	// A value set by the user, e.g. on the command line of a test run, wins
+	private static void setDefaultProperty(String name, String value) {
+		if (System.getProperty(name) == null) {
+			System.setProperty(name, value);
+		}
+	}
+
+	public static class Builder {
+		private int mConnectTimeout = 15 * 1000;
+		private int mReadTimeout = 20 * 1000;
+		private int mTotalTimeout = 60 * 1000;
+
+		/** Maximum time to establish a connection, in milliseconds. */
+		public Builder setConnectTimeout(int connectTimeout) {
+			mConnectTimeout = connectTimeout;
+			return this;
+		}
+
+		/** Maximum time to wait for data from an established connection, in milliseconds. */
+		public Builder setReadTimeout(int readTimeout) {
+			mReadTimeout = readTimeout;
+			return this;
+		}
+
+		/** Maximum time for a whole request, from connecting to reading the last byte of the body, in milliseconds. */
+		public Builder setTotalTimeout(int totalTimeout) {
+			mTotalTimeout = totalTimeout;
+			return this;
+		}
+
+		public UrlConnectionHttpEngine build() {
+			return new UrlConnectionHttpEngine(this);
+		}
+	}
+
+	private class UrlConnectionResponse implements Response {
+		private final HttpURLConnection mUrlConnection;
+		private final int mStatusCode;
+		private final long mDeadline;
+		private InputStream mBody;
+		private boolean mClosed;
+
+		UrlConnectionResponse(HttpURLConnection urlConnection, int statusCode, long deadline) {
+			mUrlConnection = urlConnection;
+			mStatusCode = statusCode;
+			mDeadline = deadline;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return mUrlConnection.getHeaderField(name);
+		}
+
+		@Override
+		public synchronized InputStream getBody() {
+			if (mBody == null) {
+				InputStream body;
+				try {
+					body = mUrlConnection.getInputStream();
+				}
+				catch (IOException e) {
+					// Error statuses have their body in the error stream, which is null when it's empty
+					body = mUrlConnection.getErrorStream();
+				}
+				mBody = new DeadlineInputStream(body, mDeadline);
+			}
+			return mBody;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			try {
+				// Closing the body, even one never read, hands the connection back to the pool
+				getBody().close();
+			}
+			catch (IOException e) {
+				mUrlConnection.disconnect();
+			}
+		}
+	}
+
+	/** Applies the total timeout to the reads of a body, the connection only bounds each of them. */
+	private class DeadlineInputStream extends FilterInputStream {
+		private final long mDeadline;
+
+		DeadlineInputStream(InputStream in, long deadline) {
+			super(in);
+			mDeadline = deadline;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			getTimeout(mReadTimeout, mDeadline);
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			getTimeout(mReadTimeout, mDeadline);
+			return super.read(buffer, offset, count);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in == null ? 0 : super.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				super.close();
+			}
+		}
+	}
+}
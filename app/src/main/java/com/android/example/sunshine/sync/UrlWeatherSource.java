@@ -0,0 +1,84 @@
+package com.android.example.sunshine.sync;
+
+import android.net.Uri;
+
+import com.android.example.sunshine.BuildConfig;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/** Downloads forecasts from an OpenWeatherMap compatible endpoint, through the sync's {@link HttpEngine}. */
+public class UrlWeatherSource implements WeatherSource {
+	public static final String FORECAST_BASE_URL = "http://api.openweathermap.org/data/2.5/forecast/daily?";
+	public static final String THREE_HOURLY_BASE_URL = "http://api.openweathermap.org/data/2.5/forecast?";
+	// Days of the daily forecast, and 3-hour buckets of the 3-hour forecast, the 5 days it covers
+	public static final int DAILY_COUNT = 14;
+	public static final int THREE_HOURLY_COUNT = 40;
+	private final static String QUERY_PARAM = "q";
+	private final static String ID_PARAM = "id";
+	private final static String FORMAT_PARAM = "mode";
+	private final static String UNITS_PARAM = "units";
+	private final static String DAYS_PARAM = "cnt";
+	private final static String PARAM_API_KEY = "appid";
+
+	private final String mName;
+	private final String mBaseUrl;
+	private final String mCanonicalBaseUrl;
+	private final int mCount;
+
+	/** @param baseUrl url of the daily forecast endpoint, e.g. {@link #FORECAST_BASE_URL} */
+	public UrlWeatherSource(String name, String baseUrl) {
+		this(name, baseUrl, baseUrl);
+	}
+
+	/**
+	 * @param canonicalBaseUrl url of the endpoint this one mirrors, forecast urls are built on it so both share their
+	 *                         cached validators
+	 */
+	public UrlWeatherSource(String name, String baseUrl, String canonicalBaseUrl) {
+		this(name, baseUrl, canonicalBaseUrl, DAILY_COUNT);
+	}
+
+	/** @param count number of forecast entries requested, e.g. {@link #THREE_HOURLY_COUNT} */
+	public UrlWeatherSource(String name, String baseUrl, String canonicalBaseUrl, int count) {
+		mName = name;
+		mBaseUrl = baseUrl;
+		mCanonicalBaseUrl = canonicalBaseUrl;
+		mCount = count;
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String getForecastUrl(String locationQuery) {
+		return buildUrl(mCanonicalBaseUrl, locationQuery, mCount);
+	}
+
+	@Override
+	public HttpEngine.Response fetch(String locationQuery, Map<String, String> headers) throws IOException {
+		return SunshineSyncAdapter.getHttpEngine().get(new URL(buildUrl(mBaseUrl, locationQuery, mCount)), headers);
+	}
+
+	private static String buildUrl(String baseUrl, String locationQuery, int count) {
+		// Construct the URL for the OpenWeatherMap query
+		// Possible parameters are avaiable at OWM's forecast API page, at
+		// http://openweathermap.org/API#forecast
+		Uri.Builder builder = Uri.parse(baseUrl).buildUpon();
+		if (GroupForecastSource.isCityId(locationQuery)) {
+			builder.appendQueryParameter(ID_PARAM, GroupForecastSource.getCityId(locationQuery));
+		}
+		else {
+			builder.appendQueryParameter(QUERY_PARAM, locationQuery);
+		}
+		return builder.appendQueryParameter(FORMAT_PARAM, "json")
+		          .appendQueryParameter(UNITS_PARAM, "metric")
+		          .appendQueryParameter(DAYS_PARAM, Integer.toString(count))
+		          .appendQueryParameter(PARAM_API_KEY, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+		          .build()
+		          .toString();
+	}
+}
@@ -0,0 +1,26 @@
+package com.android.example.sunshine.sync;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Where the sync gets forecasts from: the OpenWeatherMap API, a mirror of it or a local file. Sources can be combined,
+ * e.g. by {@link HedgedWeatherSource}.
+ */
+public interface WeatherSource {
+	/** @return a short name of the source, used in logs. */
+	String getName();
+
+	/**
+	 * @return the url of the forecast of the location, which identifies it in the validator cache. Sources serving
+	 * the same forecasts return the same url.
+	 */
+	String getForecastUrl(String locationQuery);
+
+	/**
+	 * Requests the forecast of the location. The returned response must be closed.
+	 *
+	 * @param headers request headers, may be empty
+	 */
+	HttpEngine.Response fetch(String locationQuery, Map<String, String> headers) throws IOException;
+}
@@ -127,13 +127,92 @@ public class Utility {
 		return forecastSize;
 	}
 
+	/**
+	 * Returns the parser type used by the sync to read forecast responses, one of the
+	 * {@code pref_value_forecast_parser_*} values.
+	 */
+	public static String getPreferredForecastParser(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getString(context.getString(R.string.pref_key_forecast_parser),
+		                       context.getString(R.string.pref_default_forecast_parser));
+	}
+
+	/**
+	 * Returns which locations the sync downloads, one of the {@code pref_value_sync_locations_*} values: only the
+	 * preferred location, every location stored in the database or the locations flagged for sync.
+	 */
+	public static String getPreferredSyncLocations(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getString(context.getString(R.string.pref_key_sync_locations),
+		                       context.getString(R.string.pref_default_sync_locations));
+	}
+
+	/** Returns the maximum number of locations downloaded at the same time, at least 1. */
+	public static int getPreferredSyncConcurrency(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		int concurrency = Integer.parseInt(prefs.getString(context.getString(R.string.pref_key_sync_concurrency),
+		                                                   context.getString(R.string.pref_default_sync_concurrency)));
+		return Math.max(concurrency, 1);
+	}
+
+	/**
+	 * Returns how many locations the sync downloads per request of the group endpoint, for the locations whose setting
+	 * is explicitly an OpenWeatherMap city id, e.g. id:3081368; 0 when every location is downloaded by its own request.
+	 */
+	public static int getPreferredSyncGroupSize(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		int groupSize = Integer.parseInt(prefs.getString(context.getString(R.string.pref_key_sync_group_size),
+		                                                 context.getString(R.string.pref_default_sync_group_size)));
+		return Math.max(groupSize, 0);
+	}
+
+	/**
+	 * Returns how old a stored forecast may get before reading it schedules a background revalidation, in
+	 * milliseconds. The preference is set in minutes; 0 disables revalidation on read.
+	 */
+	public static long getPreferredFreshnessBudget(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		long budget = Long.parseLong(prefs.getString(context.getString(R.string.pref_key_freshness_budget),
+		                                             context.getString(R.string.pref_default_freshness_budget)));
+		return Math.max(budget, 0) * 60 * 1000;
+	}
+
+	/**
+	 * Returns how much memory the provider may spend on caching forecast query results, in bytes. The preference is set
+	 * in kilobytes; 0 disables the cache.
+	 */
+	public static long getPreferredQueryCacheSize(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		long size = Long.parseLong(prefs.getString(context.getString(R.string.pref_key_query_cache_size),
+		                                           context.getString(R.string.pref_default_query_cache_size)));
+		return Math.max(size, 0) * 1024;
+	}
+
+	/**
+	 * Returns the url of the daily forecast endpoint of an OpenWeatherMap mirror, which hedges the slow requests of
+	 * the sync; empty if there's none.
+	 */
+	public static String getPreferredForecastMirror(final Context context) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return prefs.getString(context.getString(R.string.pref_key_forecast_mirror),
+		                       context.getString(R.string.pref_default_forecast_mirror)).trim();
+	}
+
 	public static String formatTemperature(final Context context, final double temperature) {
-		double temp = (isMetric(context)) ? temperature : 9 * temperature / 5 + 32;
+		return formatTemperature(context, temperature, isMetric(context));
+	}
+
+	/** Formats a temperature in the given units, for callers formatting several without reading the preference again. */
+	public static String formatTemperature(final Context context, final double temperature, final boolean metric) {
+		double temp = metric ? temperature : 9 * temperature / 5 + 32;
 		return context.getString(R.string.format_temperature, temp);
 	}
 
 	public static boolean isMetric(final Context context) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		return isMetric(context, PreferenceManager.getDefaultSharedPreferences(context));
+	}
+
+	public static boolean isMetric(final Context context, final SharedPreferences prefs) {
 		return prefs.getString(context.getString(R.string.pref_key_units),
 		                       context.getString(R.string.pref_value_units_metric))
 		            .equals(context.getString(R.string.pref_value_units_metric));